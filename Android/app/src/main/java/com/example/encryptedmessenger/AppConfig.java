@@ -62,4 +62,69 @@ public class AppConfig {
     public static String getColPassword() {
         return props.getProperty("COL_PASSWORD");
     }
+
+    public static boolean isKeyCachePersistent() {
+        return Boolean.parseBoolean(props.getProperty("KEY_CACHE_PERSIST"));
+    }
+
+    public static boolean isBinaryFraming() {
+        return Boolean.parseBoolean(props.getProperty("BINARY_FRAMING"));
+    }
+
+    public static boolean isMessageEnvelope() {
+        return Boolean.parseBoolean(props.getProperty("MESSAGE_ENVELOPE"));
+    }
+
+    public static boolean isCompression() {
+        return Boolean.parseBoolean(props.getProperty("COMPRESSION"));
+    }
+
+    public static int getCompressionMinBytes() {
+        try {
+            return Integer.parseInt(props.getProperty("COMPRESSION_MIN_BYTES"));
+        } catch (NumberFormatException e) {
+            return 24;
+        }
+    }
+
+    public static int getDecryptWorkers() {
+        try {
+            return Integer.parseInt(props.getProperty("DECRYPT_WORKERS"));
+        } catch (NumberFormatException e) {
+            // Leave a core for the connection's reader, single-core devices decrypt on the reader
+            return Math.min(2, Runtime.getRuntime().availableProcessors() - 1);
+        }
+    }
+
+    public static long getCoalesceWindowMs() {
+        try {
+            return Long.parseLong(props.getProperty("COALESCE_WINDOW_MS"));
+        } catch (NumberFormatException e) {
+            return 3;
+        }
+    }
+
+    public static long getHeartbeatIntervalMs() {
+        try {
+            return Long.parseLong(props.getProperty("HEARTBEAT_INTERVAL_MS"));
+        } catch (NumberFormatException e) {
+            return 5000;
+        }
+    }
+
+    public static long getHeartbeatIntervalCellularMs() {
+        try {
+            return Long.parseLong(props.getProperty("HEARTBEAT_INTERVAL_CELLULAR_MS"));
+        } catch (NumberFormatException e) {
+            return 10_000;
+        }
+    }
+
+    public static long getMetricsDumpIntervalMs() {
+        try {
+            return Long.parseLong(props.getProperty("METRICS_DUMP_INTERVAL_MS"));
+        } catch (NumberFormatException e) {
+            return 60_000;
+        }
+    }
 }
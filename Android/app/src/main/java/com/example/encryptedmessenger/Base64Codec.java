@@ -0,0 +1,110 @@
+package com.example.encryptedmessenger;
+
+
+/**
+ * Base64Codec is a standard-alphabet, unwrapped Base64 codec that works on array ranges.
+ * <p>
+ * Unlike {@link java.util.Base64} it encodes from and decodes into caller-supplied buffers,
+ * and can decode straight out of a line without taking a substring first.
+ * </p>
+ */
+final class Base64Codec {
+
+    // Private constructor to prevent instantiation
+    private Base64Codec() {}
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final int[] DECODE = new int[128];
+
+    static {
+        java.util.Arrays.fill(DECODE, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = i;
+        }
+    }
+
+    /**
+     * Returns the encoded length of {@code len} bytes, including padding.
+     */
+    static int encodedLength(int len) {
+        return 4 * ((len + 2) / 3);
+    }
+
+    /**
+     * Returns the maximum decoded length of {@code len} Base64 characters.
+     */
+    static int maxDecodedLength(int len) {
+        return 3 * (len / 4) + 3;
+    }
+
+    /**
+     * Encodes {@code src[off, off + len)} into {@code dst} as ASCII bytes.
+     *
+     * @return Number of bytes written.
+     */
+    static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int end = off + len;
+        int d = dstOff;
+        int i = off;
+
+        // Full 3-byte groups
+        while (end - i >= 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[d++] = ALPHABET[bits & 0x3f];
+            i += 3;
+        }
+
+        // Trailing 1 or 2 bytes with padding
+        int rest = end - i;
+        if (rest > 0) {
+            int bits = (src[i] & 0xff) << 16 | (rest == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = rest == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            dst[d++] = '=';
+        }
+        return d - dstOff;
+    }
+
+    /**
+     * Decodes the Base64 characters {@code src[start, end)} into {@code dst}.
+     *
+     * @return Number of bytes written, or -1 if the input is not valid Base64.
+     */
+    static int decode(CharSequence src, int start, int end, byte[] dst, int dstOff) {
+        // Strip padding
+        while (end > start && src.charAt(end - 1) == '=') end--;
+        if ((end - start) % 4 == 1) return -1;
+
+        int d = dstOff;
+        int bits = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = src.charAt(i);
+            int v = c < 128 ? DECODE[c] : -1;
+            if (v < 0) return -1;
+            bits = bits << 6 | v;
+            if (++count == 4) {
+                dst[d++] = (byte) (bits >> 16);
+                dst[d++] = (byte) (bits >> 8);
+                dst[d++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // Trailing partial group
+        if (count == 3) {
+            dst[d++] = (byte) (bits >> 10);
+            dst[d++] = (byte) (bits >> 2);
+        } else if (count == 2) {
+            dst[d++] = (byte) (bits >> 4);
+        }
+        return d - dstOff;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.encryptedmessenger;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * ChatAdapter shows a window of the chat history in a RecyclerView.
+ * <p>
+ * 1. Messages are only ever appended at the bottom or prepended at the top, so each change is a
+ * single range insert or remove notification with no diffing.
+ * <br>
+ * 2. Item IDs are the messages' own IDs, so rows keep their views across updates.
+ * <br>
+ * 3. While the list follows the newest message the window is capped at {@link #MAX_WINDOW},
+ * dropping the oldest rows. Older messages are paged back in from the session when scrolled to.
+ * <br>
+ * 4. A message already shown is skipped, since a history page and a live batch can overlap.
+ * </p>
+ */
+final class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.Holder> {
+
+    // Rows kept while following new messages
+    static final int MAX_WINDOW = 200;
+
+    private final List<ChatMessage> items = new ArrayList<>();
+    private final Set<Long> ids = new HashSet<>();
+    private int defaultTextColor = 0;
+
+    static final class Holder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        Holder(TextView view) {
+            super(view);
+            text = view;
+        }
+    }
+
+    ChatAdapter() {
+        setHasStableIds(true);
+    }
+
+    /**
+     * Adds new messages at the bottom with a single insert notification.
+     *
+     * @param messages The messages, in order.
+     * @param trim True if the list is following new messages and old rows may be dropped.
+     */
+    void append(List<ChatMessage> messages, boolean trim) {
+        int start = items.size();
+        for (ChatMessage message : messages) {
+            if (ids.add(message.id)) items.add(message);
+        }
+        if (items.size() > start) notifyItemRangeInserted(start, items.size() - start);
+
+        if (trim && items.size() > MAX_WINDOW) {
+            List<ChatMessage> dropped = items.subList(0, items.size() - MAX_WINDOW);
+            int excess = dropped.size();
+            for (ChatMessage message : dropped) {
+                ids.remove(message.id);
+            }
+            dropped.clear();
+            notifyItemRangeRemoved(0, excess);
+        }
+    }
+
+    /**
+     * Adds older messages above the current first row.
+     *
+     * @param older Messages in chronological order.
+     */
+    void prepend(List<ChatMessage> older) {
+        List<ChatMessage> added = new ArrayList<>(older.size());
+        for (ChatMessage message : older) {
+            if (ids.add(message.id)) added.add(message);
+        }
+        if (added.isEmpty()) return;
+        items.addAll(0, added);
+        notifyItemRangeInserted(0, added.size());
+    }
+
+    /**
+     * Returns the oldest message shown, or null if none are.
+     */
+    ChatMessage getOldest() {
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    void clear() {
+        int size = items.size();
+        items.clear();
+        ids.clear();
+        notifyItemRangeRemoved(0, size);
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return items.get(position).id;
+    }
+
+    @NonNull
+    @Override
+    public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView view = (TextView) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_chat_message, parent, false);
+        if (defaultTextColor == 0) defaultTextColor = view.getCurrentTextColor();
+        return new Holder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull Holder holder, int position) {
+        ChatMessage message = items.get(position);
+
+        if (message.isSystemMessage()) {
+            // System message
+            holder.text.setText("*" + message.text + "*");
+            holder.text.setTextColor(Color.GRAY);
+            holder.text.setTypeface(null, Typeface.ITALIC);
+        } else {
+            // Normal message or notice
+            holder.text.setText(message.text);
+            holder.text.setTextColor(defaultTextColor);
+            holder.text.setTypeface(null, Typeface.NORMAL);
+        }
+    }
+}
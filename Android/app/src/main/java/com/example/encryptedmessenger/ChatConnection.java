@@ -0,0 +1,522 @@
+package com.example.encryptedmessenger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * ChatConnection is the one server connection shared by every open room.
+ * <p>
+ * Each {@link ChatSession} adds its own message stream and keeps its own key, so sitting in
+ * several rooms costs one socket, one event-loop thread and one heartbeat timer instead of one each.
+ * </p>
+ * <p>
+ * The relay only forwards a room's messages to clients that joined its routing token, and keeps
+ * the token on them as a tag. A tagged message goes straight to the room with that token. One with a
+ * tag for no open room is dropped on that comparison, before any Base64 decode or decryption.
+ * Untagged messages from older clients are Base64-decoded once and offered to each room in turn.
+ * The first room whose key authenticates the payload takes it. Drops are counted in {@link InboundStats}.
+ * User counts are pushed tagged with the routing token whenever a room's membership changes.
+ * </p>
+ * <p>
+ * When the relay accepts binary framing, messages arrive as raw bytes and skip the Base64 step.
+ * </p>
+ * <p>
+ * The event-loop thread only checks tags. Message payloads go through an {@link InboundPipeline},
+ * whose {@code DECRYPT_WORKERS} workers Base64-decode and decrypt them in parallel. They are then
+ * delivered one at a time in the order they arrived, so a room's messages are never reordered.
+ * A busy room no longer holds up reading the socket.
+ * </p>
+ */
+public final class ChatConnection {
+    private static final String TAG = "ChatConnection";
+
+    private static final String MESSAGE_PREFIX = AppConfig.getMessagePrefix();
+    private static final String COUNT_PREFIX = "__COUNT__";
+    private static final String ROOM_PREFIX = "__ROOM__";
+
+    private static final Metrics.Counter MSG_RECEIVED = Metrics.getInstance().counter(Metrics.MSG_RECEIVED);
+    private static final Metrics.Counter MSG_REJECTED = Metrics.getInstance().counter(Metrics.MSG_REJECTED);
+    private static final Metrics.Counter MSG_HELD = Metrics.getInstance().counter(Metrics.MSG_HELD);
+    private static final Metrics.Counter MSG_OVERFLOW = Metrics.getInstance().counter(Metrics.MSG_OVERFLOW);
+    private static final Metrics.Counter MSG_FOREIGN = Metrics.getInstance().counter(Metrics.MSG_FOREIGN);
+    private static final Metrics.Counter MSG_DROPPED = Metrics.getInstance().counter(Metrics.MSG_DROPPED);
+
+    // Received messages in flight between the event loop and delivery
+    private static final int PIPELINE_CAPACITY = 256;
+    private static final int DECRYPT_WORKERS = AppConfig.getDecryptWorkers();
+
+    private final String host;
+    private final int port;
+
+    // Open rooms, iterated on the event-loop thread
+    private final List<ChatSession> sessions = new CopyOnWriteArrayList<>();
+
+    // Guarded by this, a new engine is started when the first room opens.
+    // Volatile so the event-loop callbacks can check for a stopped engine without the lock.
+    private volatile ConnectionEngine engine;
+    private EngineListener engineListener;
+    private boolean connected = false;
+
+    private final InboundStats inboundStats = new InboundStats();
+
+    // Guarded by this, applied to each new engine
+    private long heartbeatIntervalMs = AppConfig.getHeartbeatIntervalMs();
+
+    public ChatConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+
+        // Queue depths across every open room
+        Metrics.getInstance().gauge(Metrics.QUEUE_OUTBOUND, () -> {
+            long queued = 0;
+            for (ChatSession session : sessions) {
+                queued += session.getQueuedCount();
+            }
+            return queued;
+        });
+        Metrics.getInstance().gauge(Metrics.QUEUE_HELD, () -> {
+            long held = 0;
+            for (ChatSession session : sessions) {
+                held += session.getHeldCount();
+            }
+            return held;
+        });
+    }
+
+    /**
+     * Adds a room to the connection, connecting first if it is the only one.
+     *
+     * @param session The room's session.
+     * @param queue The room's outbound messages.
+     * @param encoder Encrypts and frames the room's messages.
+     * @return The room's stream, paused until its key is ready.
+     */
+    synchronized ConnectionEngine.Stream register(ChatSession session, OutboundQueue queue,
+                                                  ConnectionEngine.Encoder encoder) {
+        boolean first = engine == null;
+        if (first) {
+            engineListener = new EngineListener();
+            engine = new ConnectionEngine(host, port, engineListener);
+            engineListener.owner = engine;
+            engineListener.pipeline.start();
+            engine.setCoalesceWindowMs(AppConfig.getCoalesceWindowMs());
+            engine.setBinaryFraming(AppConfig.isBinaryFraming());
+            engine.setHeartbeatIntervalMs(heartbeatIntervalMs);
+        }
+
+        ConnectionEngine.Stream stream = engine.addStream(queue, encoder);
+        sessions.add(session);
+
+        if (first) {
+            try {
+                engine.start();
+            } catch (IOException e) {
+                session.onNotice("[!] Could not start connection: " + e.getMessage());
+            }
+        } else if (connected) {
+            // Joining a connection that is already up, the heartbeat follows once the key is ready
+            session.onConnected();
+        }
+        return stream;
+    }
+
+    /**
+     * Removes a room, closing the connection once no rooms are left.
+     *
+     * @param session The room's session.
+     * @param stream The stream returned by {@link #register}.
+     */
+    synchronized void unregister(ChatSession session, ConnectionEngine.Stream stream) {
+        if (!sessions.remove(session) || engine == null) return;
+        engine.removeStream(stream);
+
+        if (sessions.isEmpty()) {
+            engine.stop();
+            engineListener.pipeline.stop();
+            engine = null;
+            engineListener = null;
+            connected = false;
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    public InboundStats getInboundStats() {
+        return inboundStats;
+    }
+
+    /**
+     * Adapts the connection to the current network.
+     * <br>
+     * Cellular networks get a longer heartbeat interval so the radio can drop to idle between heartbeats.
+     *
+     * @param cellular True if the default network is cellular.
+     */
+    public synchronized void onNetworkChanged(boolean cellular) {
+        heartbeatIntervalMs = cellular ? AppConfig.getHeartbeatIntervalCellularMs() : AppConfig.getHeartbeatIntervalMs();
+        if (engine != null) engine.setHeartbeatIntervalMs(heartbeatIntervalMs);
+    }
+
+    /**
+     * Reconnects straight away if the connection is waiting out a reconnect delay.
+     */
+    public synchronized void onNetworkAvailable() {
+        if (engine != null) engine.reconnectNow();
+    }
+
+    /**
+     * Queues an unencrypted protocol line for the current connection.
+     */
+    void sendControl(String line) {
+        ConnectionEngine e;
+        synchronized (this) {
+            e = engine;
+        }
+        if (e != null) e.sendControl(line);
+    }
+
+    /**
+     * Waits until everything queued on the connection has been written or the timeout passes.
+     */
+    boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        ConnectionEngine e;
+        synchronized (this) {
+            e = engine;
+        }
+        return e == null || e.awaitIdle(timeoutMs);
+    }
+
+    /**
+     * A received message on its way through the pipeline.
+     */
+    private static final class Inbound {
+        // Filled in on the event-loop thread, a line and the start of its Base64 or raw bytes
+        String line;
+        int start;
+        byte[] bytes;
+        // The room its tag matched, or null if it was untagged
+        ChatSession target;
+
+        // Filled in by a decrypt worker
+        ChatSession owner;
+        String text;
+        byte[] payload;
+        // Rooms whose key was not ready yet, usually null
+        List<ChatSession> waiting;
+
+        void clear() {
+            line = null;
+            bytes = null;
+            target = null;
+            owner = null;
+            text = null;
+            payload = null;
+            waiting = null;
+        }
+    }
+
+    /**
+     * Decrypts messages on the workers and delivers them in order.
+     */
+    private final class InboundHandler implements InboundPipeline.Handler<Inbound> {
+        // One decode buffer per worker
+        private final InboundPayload[] payloads = new InboundPayload[Math.max(1, DECRYPT_WORKERS)];
+
+        InboundHandler() {
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = new InboundPayload();
+            }
+        }
+
+        @Override
+        public void process(Inbound job, int worker) {
+            InboundPayload payload = payloads[worker];
+            if (job.bytes != null) {
+                payload.wrap(job.bytes, 0, job.bytes.length);
+            } else if (!payload.decode(job.line, job.start)) {
+                return;
+            }
+
+            if (job.target != null) {
+                tryDecrypt(job, job.target, payload);
+            } else {
+                // Untagged, let each room's key try to authenticate it
+                for (ChatSession session : sessions) {
+                    if (tryDecrypt(job, session, payload)) break;
+                }
+            }
+
+            // Kept by the store, or held for a room still deriving its key
+            if (job.owner != null || job.waiting != null) {
+                job.payload = job.bytes != null ? job.bytes : payload.copy();
+            }
+        }
+
+        private boolean tryDecrypt(Inbound job, ChatSession session, InboundPayload payload) {
+            if (!session.hasKey()) {
+                if (job.waiting == null) job.waiting = new ArrayList<>(1);
+                job.waiting.add(session);
+                return false;
+            }
+            String text = session.decrypt(payload.raw, payload.offset, payload.length);
+            if (text == null) return false;
+            job.owner = session;
+            job.text = text;
+            return true;
+        }
+
+        @Override
+        public void dispatch(Inbound job) {
+            try {
+                // Malformed and unauthenticated messages both end up rejected
+                if (job.target == null) inboundStats.recordUntagged();
+                boolean delivered = false;
+                boolean held = false;
+                if (job.owner != null) {
+                    // Skipped if the room was closed while it was being decrypted
+                    if (sessions.contains(job.owner)) job.owner.deliverDecrypted(job.text, job.payload);
+                    delivered = true;
+                } else if (job.waiting != null) {
+                    // Every room still deriving its key holds it, any of them may own it
+                    for (ChatSession session : job.waiting) {
+                        ChatSession.Hold result = session.hold(job.payload);
+                        if (result == ChatSession.Hold.DELIVERED) {
+                            delivered = true;
+                            break;
+                        }
+                        if (result == ChatSession.Hold.HELD) held = true;
+                    }
+                }
+
+                if (delivered) {
+                    if (job.target != null) inboundStats.recordTagged();
+                    MSG_RECEIVED.increment();
+                } else if (held) {
+                    // Counted as received once a room's key authenticates it
+                    inboundStats.recordHeld();
+                    MSG_HELD.increment();
+                } else {
+                    inboundStats.recordRejected();
+                    MSG_REJECTED.increment();
+                }
+            } finally {
+                job.clear();
+            }
+        }
+    }
+
+    /**
+     * Hands a received line to the room it belongs to.
+     * <br>
+     * Runs on the event-loop thread.
+     */
+    private void route(String line, InboundPipeline<Inbound> pipeline) {
+        if (line.startsWith(COUNT_PREFIX)) {
+            routeCount(line);
+            return;
+        }
+
+        if (line.startsWith(ROOM_PREFIX)) {
+            routeTagged(line, pipeline);
+            return;
+        }
+
+        if (line.startsWith(MESSAGE_PREFIX)) {
+            // Decoded once on a worker, then each room's key tries to authenticate it
+            submit(pipeline, line, MESSAGE_PREFIX.length(), null);
+            return;
+        }
+
+        // Other clients' framing offers, broadcast by servers that do not understand them
+        if (line.startsWith(FrameCodec.HELLO) || line.equals(FrameCodec.SWITCH)) return;
+
+        // Show non-protocol lines (server logs, etc.) in every room
+        for (ChatSession session : sessions) {
+            session.onNotice(line);
+        }
+    }
+
+    /**
+     * Parses "__ROOM__token:" + message prefix + Base64, checking the token before decoding anything.
+     */
+    private void routeTagged(String line, InboundPipeline<Inbound> pipeline) {
+        int start = ROOM_PREFIX.length();
+        int sep = line.indexOf(':', start);
+        if (sep < 0) return;
+
+        ChatSession target = null;
+        for (ChatSession session : sessions) {
+            if (session.matchesToken(line, start, sep)) {
+                target = session;
+                break;
+            }
+        }
+        if (target == null) {
+            inboundStats.recordForeign();
+            MSG_FOREIGN.increment();
+            return;
+        }
+
+        if (!line.startsWith(MESSAGE_PREFIX, sep + 1)) return;
+        submit(pipeline, line, sep + 1 + MESSAGE_PREFIX.length(), target);
+    }
+
+    /**
+     * Queues a received Base64 payload for the decrypt workers, dropping it if the pipeline is full.
+     */
+    private void submit(InboundPipeline<Inbound> pipeline, String line, int start, ChatSession target) {
+        Inbound job = claim(pipeline);
+        if (job == null) return;
+        job.line = line;
+        job.start = start;
+        job.target = target;
+        pipeline.publish();
+    }
+
+    /**
+     * Queues a copy of a received raw payload for the decrypt workers, dropping it if the pipeline is full.
+     */
+    private void submit(InboundPipeline<Inbound> pipeline, byte[] buf, int off, int len, ChatSession target) {
+        Inbound job = claim(pipeline);
+        if (job == null) return;
+        job.bytes = Arrays.copyOfRange(buf, off, off + len);
+        job.target = target;
+        pipeline.publish();
+    }
+
+    /**
+     * Claims a job without waiting, since this runs on the engine's event loop.
+     *
+     * @return The job, or null if the message has to be dropped.
+     */
+    private Inbound claim(InboundPipeline<Inbound> pipeline) {
+        Inbound job = pipeline.tryClaim();
+        if (job == null && !pipeline.isStopped()) {
+            // Every slot is in flight, parking here would stall writes and heartbeats too
+            inboundStats.recordOverflowed();
+            MSG_OVERFLOW.increment();
+        }
+        return job;
+    }
+
+    /**
+     * Parses "__COUNT__token:n", or the old untagged "__COUNT__n" when only one room is open.
+     */
+    private void routeCount(String line) {
+        try {
+            String body = line.substring(COUNT_PREFIX.length()).trim();
+            int sep = body.lastIndexOf(':');
+            if (sep < 0) {
+                if (sessions.size() == 1) sessions.get(0).onUserCount(Integer.parseInt(body));
+                return;
+            }
+
+            String token = body.substring(0, sep);
+            int count = Integer.parseInt(body.substring(sep + 1));
+            for (ChatSession session : sessions) {
+                if (token.equals(session.getRoomToken())) session.onUserCount(count);
+            }
+        } catch (Exception ignored) {}
+    }
+
+    /**
+     * Engine events, fanned out to every open room.
+     */
+    private final class EngineListener implements ConnectionEngine.Listener {
+        // Events from an engine that has since been stopped are ignored
+        private volatile ConnectionEngine owner;
+
+        // Started and stopped with the engine
+        private final InboundPipeline<Inbound> pipeline = new InboundPipeline<>(
+                PIPELINE_CAPACITY, DECRYPT_WORKERS, Inbound::new, new InboundHandler());
+
+        private boolean isCurrent() {
+            return owner == engine;
+        }
+
+        @Override
+        public void onConnecting() {
+            synchronized (ChatConnection.this) {
+                if (!isCurrent()) return;
+                Log.d(TAG, "Connecting to " + host + ":" + port);
+                for (ChatSession session : sessions) {
+                    session.onConnecting();
+                }
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            synchronized (ChatConnection.this) {
+                if (!isCurrent()) return;
+                connected = true;
+                for (ChatSession session : sessions) {
+                    session.onConnected();
+                }
+            }
+        }
+
+        @Override
+        public void onLine(String line) {
+            if (!isCurrent()) return;
+            route(line, pipeline);
+        }
+
+        @Override
+        public void onPayload(byte[] buf, int off, int len) {
+            if (!isCurrent()) return;
+            submit(pipeline, buf, off, len, null);
+        }
+
+        @Override
+        public void onRoomPayload(byte[] buf, int off, int len) {
+            if (!isCurrent()) return;
+            for (ChatSession session : sessions) {
+                if (session.matchesToken(buf, off)) {
+                    submit(pipeline, buf, off + FrameCodec.TOKEN_SIZE, len - FrameCodec.TOKEN_SIZE, session);
+                    return;
+                }
+            }
+            inboundStats.recordForeign();
+            MSG_FOREIGN.increment();
+        }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            synchronized (ChatConnection.this) {
+                if (!isCurrent()) return;
+                connected = false;
+                Log.d(TAG, "Disconnected: " + cause + ", outbound " + engine.getStats() + ", inbound " + inboundStats);
+                for (ChatSession session : sessions) {
+                    session.onDisconnected();
+                }
+            }
+        }
+
+        @Override
+        public String onHeartbeat(ConnectionEngine.Stream stream) {
+            for (ChatSession session : sessions) {
+                if (session.ownsStream(stream)) return session.heartbeatLine();
+            }
+            return null;
+        }
+
+        @Override
+        public void onMessageDropped(ConnectionEngine.Stream stream, String plaintext, Exception cause) {
+            MSG_DROPPED.increment();
+            for (ChatSession session : sessions) {
+                if (session.ownsStream(stream)) {
+                    session.onNotice("[!] Message not sent: " + (cause == null ? "disconnected" : cause.getMessage()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.encryptedmessenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * ChatMessage is one line shown in the chat.
+ * <p>
+ * IDs increase across app restarts once {@link MessageStore} has reserved the stored ones,
+ * so a message keeps the same ID in memory and in the history table.
+ * </p>
+ */
+public final class ChatMessage {
+
+    // A message typed by a user
+    public static final int TYPE_USER = 0;
+    // A join/leave style system message
+    public static final int TYPE_SYSTEM = 1;
+    // A local notice or non-protocol server line
+    public static final int TYPE_NOTICE = 2;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    public final long id;
+    public final String room;
+    public final String text;
+    public final int type;
+    public final long timestamp;
+
+    public ChatMessage(String room, String text, int type) {
+        this(NEXT_ID.getAndIncrement(), room, text, type, System.currentTimeMillis());
+    }
+
+    /**
+     * A message read back from the history store.
+     */
+    ChatMessage(long id, String room, String text, int type, long timestamp) {
+        this.id = id;
+        this.room = room;
+        this.text = text;
+        this.type = type;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Makes new IDs start above {@code maxId}.
+     */
+    static void reserveIdsUpTo(long maxId) {
+        NEXT_ID.accumulateAndGet(maxId + 1, Math::max);
+    }
+
+    /**
+     * Builds a message from decrypted text, splitting off the system tag.
+     *
+     * @param room The chat room name.
+     * @param text The decrypted text.
+     * @param systemTag Prefix that marks system messages.
+     * @return A user or system message.
+     */
+    public static ChatMessage fromPlaintext(String room, String text, String systemTag) {
+        if (text.startsWith(systemTag)) {
+            return new ChatMessage(room, text.substring(systemTag.length()), TYPE_SYSTEM);
+        }
+        return new ChatMessage(room, text, TYPE_USER);
+    }
+
+    /**
+     * Builds a message from stored history, keeping its original ID and time.
+     */
+    static ChatMessage fromStored(String room, String text, String systemTag, long id, long timestamp) {
+        if (text.startsWith(systemTag)) {
+            return new ChatMessage(id, room, text.substring(systemTag.length()), TYPE_SYSTEM, timestamp);
+        }
+        return new ChatMessage(id, room, text, TYPE_USER, timestamp);
+    }
+
+    public boolean isSystemMessage() {
+        return type == TYPE_SYSTEM;
+    }
+}
@@ -0,0 +1,627 @@
+package com.example.encryptedmessenger;
+
+import android.content.Context;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+
+/**
+ * ChatSession is the long-lived connection to one chat room.
+ * <p>
+ * It is owned by {@link MessageListenerService} and outlives the chat screen, so rotating
+ * the screen or reopening it from a notification reuses the same connection and derived key.
+ * The UI attaches a {@link Listener} while it is visible and receives the newest messages on attach.
+ * Older messages are paged in with {@link #loadBefore} as the user scrolls back.
+ * </p>
+ * <p>
+ * Every open room shares one {@link ChatConnection}. The session keeps its own key, outbound
+ * queue and heartbeat, and takes the received lines its key authenticates. Received payloads are
+ * decrypted on the connection's decrypt workers, several at once, and delivered back in arrival order.
+ * </p>
+ * <p>
+ * Once the key is ready the room is known to the relay only by its routing token
+ * (see {@link EncryptionHelper#deriveRoomToken}). Heartbeats carry the token and sent messages
+ * are tagged with it, so the relay only forwards them to clients in the same room.
+ * </p>
+ * <p>
+ * With {@code MESSAGE_ENVELOPE} set, chat messages carry a {@link MessageEnvelope} with this
+ * session's sender ID, a sequence number and the send time. Received envelopes feed the room's
+ * {@link LatencyTracker}, and messages without one are shown as before.
+ * </p>
+ */
+public final class ChatSession {
+    /**
+     * Connection state shown in the chat screen.
+     */
+    public enum Status {
+        DISCONNECTED,
+        CONNECTING,
+        DERIVING_KEY,
+        CONNECTED
+    }
+
+    /**
+     * What {@link #hold} did with a payload.
+     */
+    enum Hold {
+        // This room's key authenticated it and it was delivered
+        DELIVERED,
+        // Queued until the key is ready
+        HELD,
+        // This room's key did not authenticate it
+        NOT_OURS
+    }
+
+    /**
+     * Receives session events. Called from background threads.
+     */
+    public interface Listener {
+        void onStatusChanged(Status status);
+
+        void onUserCountChanged(int count);
+
+        void onMessage(ChatMessage message);
+
+        /**
+         * Called when stored history older than the shown messages has been loaded.
+         */
+        void onHistoryLoaded();
+    }
+
+    // Setup config pulled from build settings
+    private static final String MESSAGE_PREFIX = AppConfig.getMessagePrefix();
+    private static final String AAD_STR = AppConfig.getAadStr();
+    private static final String SYSTEM_TAG = AppConfig.getSystemTag();
+    private static final String ROOM_PREFIX = "__ROOM__";
+    private static final String HEARTBEAT_PREFIX = "__HEARTBEAT__";
+    private static final String LEAVE_PREFIX = "__LEAVE__";
+    private static final boolean TRACE_MESSAGES = AppConfig.isMessageEnvelope();
+    private static final boolean COMPRESS_MESSAGES = AppConfig.isCompression();
+    private static final int COMPRESS_MIN_BYTES = AppConfig.getCompressionMinBytes();
+
+    // Outbound messages, written in order by the engine
+    private static final int OUTBOUND_CAPACITY = 256;
+    private static final int OUTBOUND_MAX_ATTEMPTS = 3;
+    private static final long LEAVE_FLUSH_TIMEOUT_MS = 200;
+
+    // Payloads received before the key is ready, replayed in order once it is
+    private static final int MAX_PENDING_PAYLOADS = 500;
+
+    // Messages kept for a UI that attaches later or scrolls back
+    private static final int BACKLOG_SIZE = 500;
+
+    private static final Metrics.Histogram MSG_DECRYPT = Metrics.getInstance().histogram(Metrics.MSG_DECRYPT);
+    private static final Metrics.Counter MSG_RECEIVED = Metrics.getInstance().counter(Metrics.MSG_RECEIVED);
+
+    // Newest messages replayed on attach, the rest are paged in on scroll
+    private static final int ATTACH_REPLAY_SIZE = 50;
+
+    private final Context context;
+    private final String username;
+    private final String room;
+    private final String passphrase;
+
+    private final OutboundQueue outboundQueue = new OutboundQueue(
+            OUTBOUND_CAPACITY, OutboundQueue.OverflowPolicy.REJECT, 0, OUTBOUND_MAX_ATTEMPTS);
+    private final ChatConnection connection;
+    private final KeyDerivationTask keyTask;
+    private final MessageStore store;
+    private volatile ConnectionEngine.Stream stream;
+
+    // Cipher session for the engine's encoder
+    private final Object keyLock = new Object();
+    private CipherSession txCipher;
+
+    // Set once held payloads have been replayed, received payloads are decrypted with pooled
+    // sessions so each decrypt worker has one to itself
+    private volatile byte[] rxKey;
+    private final ConcurrentLinkedQueue<CipherSession> rxCiphers = new ConcurrentLinkedQueue<>();
+    private volatile String roomToken;
+    private volatile byte[] roomTokenBytes;
+    private final ArrayDeque<byte[]> pendingPayloads = new ArrayDeque<>();
+
+    // Message tracing, the sender ID is new for every session so its sequence starts clean
+    private final String senderId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final LatencyTracker latency = new LatencyTracker();
+    private final Supplier<String> latencySection = latency::snapshot;
+
+    // Decrypts stored history, guarded by itself since pages load on their own threads
+    private volatile CipherSession historyCipher;
+
+    // UI state, guarded by this
+    private final ArrayDeque<ChatMessage> backlog = new ArrayDeque<>();
+    private Listener listener;
+    private Status status = Status.DISCONNECTED;
+    private int userCount = 0;
+
+    public ChatSession(Context context, ChatConnection connection, String username, String room, String passphrase) {
+        this.context = context.getApplicationContext();
+        this.connection = connection;
+        this.username = username;
+        this.room = room;
+        this.passphrase = passphrase;
+
+        keyTask = new KeyDerivationTask(context, room, passphrase);
+        store = MessageStore.getInstance(context);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns true if this session was opened with the same login details.
+     */
+    public boolean matches(String username, String room, String passphrase) {
+        return this.username.equals(username) && this.room.equals(room) && this.passphrase.equals(passphrase);
+    }
+
+    /**
+     * Joins the shared connection and derives the key in parallel.
+     * <br>
+     * Chat messages are held until the key is ready, heartbeats go out straight away.
+     */
+    public void start() {
+        Metrics.getInstance().section("latency " + room, latencySection);
+        stream = connection.register(this, outboundQueue, new ConnectionEngine.Encoder() {
+            @Override
+            public String encode(String plaintext) throws Exception {
+                return ROOM_PREFIX + roomToken + ":" + MESSAGE_PREFIX + txCipher.encryptToBase64(plaintext);
+            }
+
+            @Override
+            public int encodeFrame(String plaintext, ByteBuffer out) throws Exception {
+                out.put(roomTokenBytes);
+                txCipher.encryptText(plaintext, out);
+                return FrameCodec.TYPE_ROOM_MESSAGE;
+            }
+        });
+
+        keyTask.start(new KeyDerivationTask.Callback() {
+            @Override
+            public void onDerivationStarted() {
+                if (!connection.isConnected()) setStatus(Status.DERIVING_KEY);
+            }
+
+            @Override
+            public void onKeyReady(byte[] key) {
+                onRoomKeyReady(key);
+            }
+
+            @Override
+            public void onKeyFailed(Exception e) {
+                // Nothing can be sent or read without a key
+                notice(context.getString(R.string.error_key_derivation, e.getMessage()));
+                connection.unregister(ChatSession.this, stream);
+            }
+        });
+    }
+
+    /**
+     * Sends the leave message, gives it a moment to flush, then leaves the shared connection.
+     * <br>
+     * Blocks for up to twice {@code LEAVE_FLUSH_TIMEOUT_MS}. The connection closes once no rooms are left.
+     */
+    public void close() {
+        keyTask.cancel();
+        try {
+            if (connection.isConnected() && roomToken != null) {
+                sendSystemMessage(username + " has left the chat room");
+                // Control lines are written ahead of queued messages, so the room must hear the
+                // message before the server takes this client out of it
+                connection.awaitIdle(LEAVE_FLUSH_TIMEOUT_MS);
+                connection.sendControl(heartbeatLine(true));
+                connection.awaitIdle(LEAVE_FLUSH_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connection.unregister(this, stream);
+        Metrics.getInstance().removeSection("latency " + room, latencySection);
+    }
+
+    /**
+     * Attaches the UI listener and replays the current state and newest messages to it.
+     */
+    public synchronized void attach(Listener uiListener) {
+        listener = uiListener;
+        uiListener.onStatusChanged(status);
+        uiListener.onUserCountChanged(userCount);
+
+        int skip = backlog.size() - ATTACH_REPLAY_SIZE;
+        for (ChatMessage message : backlog) {
+            if (skip-- > 0) continue;
+            uiListener.onMessage(message);
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} messages older than {@code oldest}, oldest first.
+     * <p>
+     * The in-memory backlog is used first, then the stored history. May read the database,
+     * so call it off the main thread.
+     * </p>
+     *
+     * @param oldest The oldest message the UI shows, or null if it shows none.
+     * @param limit Maximum number of messages.
+     * @return The page, empty once the start of the history is reached.
+     */
+    public List<ChatMessage> loadBefore(ChatMessage oldest, int limit) {
+        long beforeId = oldest == null ? Long.MAX_VALUE : oldest.id;
+        ArrayList<ChatMessage> page = new ArrayList<>(limit);
+        synchronized (this) {
+            Iterator<ChatMessage> it = backlog.descendingIterator();
+            while (it.hasNext() && page.size() < limit) {
+                ChatMessage message = it.next();
+                if (message.id < beforeId) page.add(message);
+            }
+        }
+
+        if (page.size() < limit) {
+            // Continue from the oldest message found so far
+            ChatMessage cursor = page.isEmpty() ? oldest : page.get(page.size() - 1);
+            page.addAll(loadStored(cursor, limit - page.size()));
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * Reads and decrypts stored messages older than {@code cursor}, newest first.
+     */
+    private List<ChatMessage> loadStored(ChatMessage cursor, int limit) {
+        String token = roomToken;
+        CipherSession cipher = historyCipher;
+        if (token == null || cipher == null) return Collections.emptyList();
+
+        List<MessageStore.Row> rows = store.loadBefore(token,
+                cursor == null ? Long.MAX_VALUE : cursor.timestamp,
+                cursor == null ? Long.MAX_VALUE : cursor.id, limit);
+
+        List<ChatMessage> messages = new ArrayList<>(rows.size());
+        synchronized (cipher) {
+            for (MessageStore.Row row : rows) {
+                try {
+                    String text = MessageEnvelope.bodyOf(cipher.decryptToString(row.payload, 0, row.payload.length));
+                    messages.add(ChatMessage.fromStored(room, text, SYSTEM_TAG, row.id, row.timestamp));
+                } catch (Exception ignored) {
+                    // Stored under a different key, for example after a passphrase change
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Puts the newest stored messages in front of the backlog once the key is ready.
+     */
+    private void loadHistory() {
+        ChatMessage oldest;
+        synchronized (this) {
+            oldest = backlog.peekFirst();
+        }
+        List<ChatMessage> history = loadStored(oldest, ATTACH_REPLAY_SIZE);
+        if (history.isEmpty()) return;
+
+        synchronized (this) {
+            for (ChatMessage message : history) {
+                if (backlog.size() >= BACKLOG_SIZE) break;
+                backlog.addFirst(message);
+            }
+            if (listener != null) listener.onHistoryLoaded();
+        }
+    }
+
+    /**
+     * Detaches the UI listener if it is still the attached one.
+     */
+    public synchronized void detach(Listener uiListener) {
+        if (listener == uiListener) listener = null;
+    }
+
+    public synchronized boolean hasListener() {
+        return listener != null;
+    }
+
+    /**
+     * Returns how many messages wait to be sent.
+     */
+    int getQueuedCount() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * Returns how many received payloads wait for the key.
+     */
+    int getHeldCount() {
+        synchronized (keyLock) {
+            return pendingPayloads.size();
+        }
+    }
+
+    /**
+     * Queues a chat message typed by the user.
+     * <br>
+     * Traced messages are stamped when queued, so their latency includes any wait for a connection.
+     *
+     * @param msg The text typed by the user.
+     */
+    public void sendChatMessage(String msg) {
+        String body = username + ": " + msg;
+        if (TRACE_MESSAGES) {
+            body = MessageEnvelope.wrap(senderId, nextSeq.getAndIncrement(), System.currentTimeMillis(), body);
+        }
+        sendEncrypted(body);
+    }
+
+    /**
+     * Queues a plaintext message to be encrypted and sent to the server.
+     * <p>
+     * The connection engine encrypts and writes it in order. While disconnected the
+     * message is held and sent after reconnecting.
+     * </p>
+     *
+     * @param plaintext The plaintext message to send.
+     */
+    private void sendEncrypted(String plaintext) {
+        try {
+            if (!outboundQueue.offer(plaintext)) {
+                Metrics.getInstance().counter(Metrics.MSG_DROPPED).increment();
+                notice("[!] Send queue full, message not sent");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a system message.
+     * <p>
+     * Sends a system message with a unique prefix that prevents user spoofing.
+     * </p>
+     *
+     * @param content The system message text
+     */
+    private void sendSystemMessage(String content) {
+        sendEncrypted(SYSTEM_TAG + content);
+    }
+
+    /**
+     * Installs the derived key.
+     * <p>
+     * Replays lines that arrived while the key was being derived and releases messages
+     * held on the connection.
+     * </p>
+     *
+     * @param key The 32-byte room key.
+     */
+    private void onRoomKeyReady(byte[] key) {
+        String token;
+        try {
+            token = EncryptionHelper.deriveRoomToken(key);
+        } catch (Exception e) {
+            notice(context.getString(R.string.error_key_derivation, e.getMessage()));
+            connection.unregister(this, stream);
+            return;
+        }
+
+        byte[] aad = AAD_STR.getBytes(StandardCharsets.UTF_8);
+        synchronized (keyLock) {
+            roomToken = token;
+            roomTokenBytes = FrameCodec.tokenBytes(token);
+            txCipher = new CipherSession(key, aad);
+            txCipher.setCompression(COMPRESS_MESSAGES, COMPRESS_MIN_BYTES);
+        }
+        historyCipher = new CipherSession(key, aad);
+
+        // Earlier history goes in front of anything already shown, still on the key thread
+        loadHistory();
+
+        synchronized (keyLock) {
+            // Payloads keep being held until here, so none is delivered ahead of the older held ones
+            rxKey = key;
+
+            // Held payloads may belong to other rooms, those fail to authenticate and are skipped
+            byte[] held;
+            while ((held = pendingPayloads.poll()) != null) {
+                String text = decrypt(held, 0, held.length);
+                if (text == null) continue;
+                deliver(text, held);
+                // Counted as held when it arrived, received only now
+                MSG_RECEIVED.increment();
+            }
+
+            stream.setPaused(false);
+        }
+
+        if (connection.isConnected()) {
+            // Join the room's group on the relay straight away rather than at the next heartbeat
+            connection.sendControl(heartbeatLine());
+            setStatus(Status.CONNECTED);
+        }
+    }
+
+    /**
+     * Returns true once received payloads can be decrypted.
+     */
+    boolean hasKey() {
+        return rxKey != null;
+    }
+
+    /**
+     * Decrypts a received payload with this room's key. Safe to call from several threads at once.
+     *
+     * @return The plaintext, or null if this room's key did not authenticate it or is not ready.
+     */
+    String decrypt(byte[] buf, int off, int len) {
+        byte[] key = rxKey;
+        if (key == null) return null;
+
+        // One session per concurrent caller, created on first use
+        CipherSession cipher = rxCiphers.poll();
+        if (cipher == null) cipher = new CipherSession(key, AAD_STR.getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        try {
+            return cipher.decryptToString(buf, off, len);
+        } catch (Exception ex) {
+            // Not for this room
+            return null;
+        } finally {
+            // Failed attempts are timed too, they cost as much as successful ones
+            MSG_DECRYPT.recordSince(start);
+            rxCiphers.offer(cipher);
+        }
+    }
+
+    /**
+     * Holds a received payload that arrived before the key was ready, since it may belong to this room.
+     * <br>
+     * If the key has become ready since, the payload is decrypted and delivered instead.
+     *
+     * @param payload The received payload, kept as it is.
+     * @return {@link Hold#HELD} if it was queued, otherwise whether this room's key authenticated and delivered it.
+     */
+    Hold hold(byte[] payload) {
+        synchronized (keyLock) {
+            if (rxKey == null) {
+                // Bounded, oldest payloads are dropped first if the derivation is very slow
+                if (pendingPayloads.size() >= MAX_PENDING_PAYLOADS) pendingPayloads.poll();
+                pendingPayloads.add(payload);
+                return Hold.HELD;
+            }
+
+            String text = decrypt(payload, 0, payload.length);
+            if (text == null) return Hold.NOT_OURS;
+            deliver(text, payload);
+            return Hold.DELIVERED;
+        }
+    }
+
+    /**
+     * Delivers a message decrypted by {@link #decrypt}, in arrival order.
+     *
+     * @param text The decrypted plaintext.
+     * @param payload The received payload, kept as it is.
+     */
+    void deliverDecrypted(String text, byte[] payload) {
+        synchronized (keyLock) {
+            deliver(text, payload);
+        }
+    }
+
+    /**
+     * Shows a decrypted message and posts it on the {@link EventBus} for notifications.
+     *
+     * @param text The decrypted plaintext, with or without a {@link MessageEnvelope}.
+     */
+    private void deliver(String text, byte[] payload) {
+        MessageEnvelope envelope = MessageEnvelope.parse(text);
+        if (envelope.isTraced()) latency.record(envelope, System.currentTimeMillis());
+
+        ChatMessage message = ChatMessage.fromPlaintext(room, envelope.body, SYSTEM_TAG);
+        store.append(roomToken, message, payload);
+        EventBus.getInstance().post(message);
+        dispatch(message);
+    }
+
+    // Connection events, called by ChatConnection
+
+    void onConnecting() {
+        setStatus(Status.CONNECTING);
+    }
+
+    void onConnected() {
+        // Send join message ahead of anything held while disconnected
+        outboundQueue.offerFirst(SYSTEM_TAG + username + " has entered the chat room");
+        setStatus(Status.CONNECTED);
+    }
+
+    void onDisconnected() {
+        setStatus(Status.DISCONNECTED);
+    }
+
+    void onUserCount(int count) {
+        setUserCount(count);
+    }
+
+    void onNotice(String text) {
+        notice(text);
+    }
+
+    boolean ownsStream(ConnectionEngine.Stream other) {
+        return stream == other;
+    }
+
+    String getRoomToken() {
+        return roomToken;
+    }
+
+    /**
+     * Returns true if {@code buf} holds this room's token at {@code off}.
+     */
+    boolean matchesToken(byte[] buf, int off) {
+        byte[] token = roomTokenBytes;
+        if (token == null) return false;
+        for (int i = 0; i < token.length; i++) {
+            if (buf[off + i] != token[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if {@code line} holds this room's token from {@code start} to {@code end}.
+     */
+    boolean matchesToken(String line, int start, int end) {
+        String token = roomToken;
+        return token != null && token.length() == end - start && line.regionMatches(start, token, 0, token.length());
+    }
+
+    /**
+     * Returns this room's heartbeat, or null while the routing token is not known yet.
+     */
+    String heartbeatLine() {
+        return roomToken == null ? null : heartbeatLine(false);
+    }
+
+    /**
+     * Builds this room's heartbeat, just the routing token. A leave line removes the room from the relay's group.
+     */
+    private String heartbeatLine(boolean leave) {
+        return (leave ? LEAVE_PREFIX : HEARTBEAT_PREFIX) + roomToken;
+    }
+
+    private void notice(String text) {
+        dispatch(new ChatMessage(room, text, ChatMessage.TYPE_NOTICE));
+    }
+
+    private synchronized void dispatch(ChatMessage message) {
+        if (backlog.size() >= BACKLOG_SIZE) backlog.poll();
+        backlog.add(message);
+        if (listener != null) listener.onMessage(message);
+    }
+
+    private synchronized void setStatus(Status newStatus) {
+        status = newStatus;
+        if (listener != null) listener.onStatusChanged(newStatus);
+    }
+
+    private synchronized void setUserCount(int count) {
+        userCount = count;
+        if (listener != null) listener.onUserCountChanged(count);
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.encryptedmessenger;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+
+/**
+ * CipherSession is a reusable ChaCha20-Poly1305 engine bound to a single room key.
+ * <p>
+ * The key schedule is set up once and reused for every message, and all output is
+ * written into caller-supplied or pooled buffers, so the hot path does not allocate.
+ * <br>
+ * The wire format is identical to {@link EncryptionHelper}: nonce (12 bytes) || ciphertext+tag.
+ * </p>
+ * <p>
+ * The text methods can compress plaintext before encrypting it, see {@link #setCompression}, and
+ * always restore compressed plaintext when decrypting. The byte methods work on the plaintext as given.
+ * </p>
+ * <p>
+ * Instances are NOT thread-safe. Each thread that encrypts or decrypts must own its own session.
+ * </p>
+ */
+public final class CipherSession {
+
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+
+    // Initial size of the pooled scratch buffers, grown on demand
+    private static final int INITIAL_SCRATCH_SIZE = 1024;
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private final ChaCha20Poly1305 aead = new ChaCha20Poly1305();
+    private final byte[] aad;
+    private final byte[] nonce = new byte[NONCE_SIZE];
+
+    // Key is only passed to the engine on the first init, later inits reuse its key schedule
+    private KeyParameter keyParam;
+
+    // Pooled buffers for the Base64 convenience methods
+    private byte[] rawScratch = new byte[INITIAL_SCRATCH_SIZE];
+    private byte[] textScratch = new byte[INITIAL_SCRATCH_SIZE];
+
+    // Created on first use, by compression or by the first compressed payload received
+    private PayloadCodec codec;
+    private boolean compress = false;
+    private int compressMinBytes = 0;
+
+    /**
+     * Creates a session for one room key.
+     *
+     * @param key 32-byte room key.
+     * @param aad Additional authenticated data used for every message.
+     */
+    public CipherSession(byte[] key, byte[] aad) {
+        if (key == null || key.length != 32) throw new IllegalArgumentException("key must be 32 bytes");
+        this.keyParam = new KeyParameter(key);
+        this.aad = aad == null ? null : aad.clone();
+    }
+
+    /**
+     * Compresses plaintext in the text methods from now on.
+     *
+     * @param enabled False to send plaintext as it is, compressed payloads are still read.
+     * @param minBytes Plaintexts shorter than this in UTF-8 are never compressed.
+     */
+    public void setCompression(boolean enabled, int minBytes) {
+        compress = enabled;
+        compressMinBytes = minBytes;
+        codec = null;
+    }
+
+    /**
+     * Returns the number of bytes {@code encrypt} writes for a plaintext of the given length.
+     */
+    public static int encryptedLength(int plaintextLength) {
+        return NONCE_SIZE + plaintextLength + TAG_SIZE;
+    }
+
+    /**
+     * Returns the number of bytes {@code decrypt} writes for a payload of the given length.
+     */
+    public static int decryptedLength(int payloadLength) {
+        return Math.max(0, payloadLength - NONCE_SIZE - TAG_SIZE);
+    }
+
+    /**
+     * Encrypts plaintext into {@code out} as nonce || ciphertext+tag.
+     *
+     * @param in Plaintext buffer.
+     * @param inOff Offset of the plaintext.
+     * @param inLen Length of the plaintext.
+     * @param out Output buffer, needs {@link #encryptedLength(int)} bytes from {@code outOff}.
+     * @param outOff Offset to write at.
+     * @return Number of bytes written.
+     * @throws InvalidCipherTextException If the engine fails to finalise.
+     */
+    public int encrypt(byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        if (out.length - outOff < encryptedLength(inLen)) throw new IllegalArgumentException("output buffer too short");
+
+        // Fresh random nonce, written straight into the output
+        RNG.nextBytes(nonce);
+        System.arraycopy(nonce, 0, out, outOff, NONCE_SIZE);
+
+        init(true);
+
+        int off = outOff + NONCE_SIZE;
+        off += aead.processBytes(in, inOff, inLen, out, off);
+        off += aead.doFinal(out, off);
+        return off - outOff;
+    }
+
+    /**
+     * Decrypts nonce || ciphertext+tag into {@code out}.
+     *
+     * @param in Payload buffer.
+     * @param inOff Offset of the payload.
+     * @param inLen Length of the payload.
+     * @param out Output buffer, needs {@link #decryptedLength(int)} bytes from {@code outOff}.
+     * @param outOff Offset to write at.
+     * @return Number of plaintext bytes written.
+     * @throws InvalidCipherTextException If authentication fails.
+     */
+    public int decrypt(byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        if (inLen < NONCE_SIZE + TAG_SIZE) throw new IllegalArgumentException("ciphertext too short");
+        if (out.length - outOff < decryptedLength(inLen)) throw new IllegalArgumentException("output buffer too short");
+
+        System.arraycopy(in, inOff, nonce, 0, NONCE_SIZE);
+
+        init(false);
+
+        int off = outOff;
+        off += aead.processBytes(in, inOff + NONCE_SIZE, inLen - NONCE_SIZE, out, off);
+        off += aead.doFinal(out, off);
+        return off - outOff;
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code src} into {@code dst}.
+     * <br>
+     * Both buffers must be array-backed. Positions are advanced by the bytes consumed and written.
+     *
+     * @return Number of bytes written.
+     * @throws InvalidCipherTextException If the engine fails to finalise.
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws InvalidCipherTextException {
+        int n = encrypt(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                dst.array(), dst.arrayOffset() + dst.position());
+        src.position(src.limit());
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code src} into {@code dst}.
+     * <br>
+     * Both buffers must be array-backed. Positions are advanced by the bytes consumed and written.
+     *
+     * @return Number of plaintext bytes written.
+     * @throws InvalidCipherTextException If authentication fails.
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws InvalidCipherTextException {
+        int n = decrypt(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                dst.array(), dst.arrayOffset() + dst.position());
+        src.position(src.limit());
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    /**
+     * Encrypts a UTF-8 string and returns Base64(NO_WRAP) of nonce || ciphertext+tag.
+     * <br>
+     * Matches the output of {@link EncryptionHelper#encrypt}.
+     *
+     * @param plaintext The text to encrypt.
+     * @return Base64-encoded payload.
+     * @throws InvalidCipherTextException If the engine fails to finalise.
+     */
+    public String encryptToBase64(String plaintext) throws InvalidCipherTextException {
+        byte[] pt = plaintext.getBytes(StandardCharsets.UTF_8);
+        int ptLen = pt.length;
+        if (compress) {
+            int n = codec().encode(pt, 0, ptLen);
+            if (n >= 0) {
+                pt = codec.buffer();
+                ptLen = n;
+            }
+        }
+
+        int rawLen = encryptedLength(ptLen);
+        rawScratch = ensure(rawScratch, rawLen);
+        encrypt(pt, 0, ptLen, rawScratch, 0);
+
+        textScratch = ensure(textScratch, Base64Codec.encodedLength(rawLen));
+        int textLen = Base64Codec.encode(rawScratch, 0, rawLen, textScratch, 0);
+        return new String(textScratch, 0, textLen, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Decrypts a Base64(NO_WRAP) payload and returns the plaintext as a UTF-8 string.
+     * <br>
+     * The payload is read straight out of {@code line} from {@code start}, so callers
+     * do not need to strip a protocol prefix first.
+     *
+     * @param line Line containing Base64-encoded nonce || ciphertext+tag.
+     * @param start Index of the first Base64 character.
+     * @return Decrypted text.
+     * @throws InvalidCipherTextException If authentication fails.
+     */
+    public String decryptFromBase64(CharSequence line, int start) throws InvalidCipherTextException {
+        int end = line.length();
+        rawScratch = ensure(rawScratch, Base64Codec.maxDecodedLength(end - start));
+        int rawLen = Base64Codec.decode(line, start, end, rawScratch, 0);
+        if (rawLen < 0) throw new IllegalArgumentException("invalid Base64 payload");
+
+        textScratch = ensure(textScratch, decryptedLength(rawLen));
+        int ptLen = decrypt(rawScratch, 0, rawLen, textScratch, 0);
+        return toText(textScratch, ptLen);
+    }
+
+    /**
+     * Decrypts an already decoded payload and returns the plaintext as a UTF-8 string.
+     * <br>
+     * Lets a caller decode a line's Base64 once and try it against several sessions.
+     *
+     * @param in Payload buffer holding nonce || ciphertext+tag.
+     * @param inOff Offset of the payload.
+     * @param inLen Length of the payload.
+     * @return Decrypted text.
+     * @throws InvalidCipherTextException If authentication fails.
+     */
+    public String decryptToString(byte[] in, int inOff, int inLen) throws InvalidCipherTextException {
+        textScratch = ensure(textScratch, decryptedLength(inLen));
+        int ptLen = decrypt(in, inOff, inLen, textScratch, 0);
+        return toText(textScratch, ptLen);
+    }
+
+    /**
+     * Encrypts a UTF-8 string into {@code dst} as nonce || ciphertext+tag, compressing it first if enabled.
+     * <br>
+     * {@code dst} must be array-backed with {@link #encryptedLength(int)} of the UTF-8 length
+     * remaining. Its position is advanced by the bytes written.
+     *
+     * @return Number of bytes written.
+     * @throws InvalidCipherTextException If the engine fails to finalise.
+     */
+    public int encryptText(String plaintext, ByteBuffer dst) throws InvalidCipherTextException {
+        byte[] pt = plaintext.getBytes(StandardCharsets.UTF_8);
+        int ptLen = pt.length;
+        if (compress) {
+            int n = codec().encode(pt, 0, ptLen);
+            if (n >= 0) {
+                pt = codec.buffer();
+                ptLen = n;
+            }
+        }
+
+        int n = encrypt(pt, 0, ptLen, dst.array(), dst.arrayOffset() + dst.position());
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    /**
+     * Decodes a decrypted plaintext, restoring it first if it was compressed.
+     */
+    private String toText(byte[] pt, int len) {
+        if (!PayloadCodec.isEncoded(pt, 0, len)) return new String(pt, 0, len, StandardCharsets.UTF_8);
+        int n = codec().decode(pt, 0, len);
+        return new String(codec.buffer(), 0, n, StandardCharsets.UTF_8);
+    }
+
+    private PayloadCodec codec() {
+        if (codec == null) codec = new PayloadCodec(compressMinBytes);
+        return codec;
+    }
+
+    /**
+     * Re-initialises the engine with the current nonce, reusing the cached key after the first call.
+     */
+    private void init(boolean forEncryption) {
+        aead.init(forEncryption, new AEADParameters(keyParam, TAG_SIZE * 8, nonce, aad));
+        keyParam = null;
+    }
+
+    private static byte[] ensure(byte[] buf, int size) {
+        return buf.length >= size ? buf : new byte[Math.max(size, buf.length * 2)];
+    }
+}
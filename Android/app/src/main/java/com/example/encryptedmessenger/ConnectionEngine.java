@@ -0,0 +1,748 @@
+package com.example.encryptedmessenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * ConnectionEngine keeps a line-based connection to the chat server on a single event-loop thread.
+ * <p>
+ * 1. Connects with a non-blocking {@link SocketChannel}, reconnecting with jittered exponential backoff
+ * when the connection drops.
+ * <br>
+ * 2. Splits received bytes into lines and hands them to the {@link Listener}.
+ * <br>
+ * 3. Drains each {@link Stream}'s {@link OutboundQueue}, coalescing lines queued within a short window into one write.
+ * <br>
+ * 4. Sends each stream's heartbeat when it has sent nothing for a heartbeat interval, see {@link HeartbeatScheduler}.
+ * <br>
+ * 5. Optionally offers {@link FrameCodec} binary framing. If the server accepts, messages travel as
+ * raw nonce || ciphertext frames with no Base64 and no line parsing. Otherwise it stays on text lines.
+ * </p>
+ * <p>
+ * Several rooms can share one connection, each adding its own {@link Stream} with its own
+ * queue and encoder. Streams are drained round-robin so a busy room cannot starve the others.
+ * </p>
+ * <p>
+ * It has no Android dependencies and does not depend on any Activity lifecycle, so it can be
+ * driven on the JVM against a local loopback server.
+ * All {@link Listener} and {@link Encoder} callbacks run on the event-loop thread and must not block.
+ * </p>
+ */
+public final class ConnectionEngine {
+
+    /**
+     * Turns a queued plaintext message into what is sent to the server.
+     */
+    public interface Encoder {
+        // Room for the frame body beyond 3 bytes per plaintext char (UTF-8 worst case)
+        int FRAME_OVERHEAD = 64;
+
+        /**
+         * Text framing: returns the line to send, without a trailing newline.
+         */
+        String encode(String plaintext) throws Exception;
+
+        /**
+         * Binary framing: writes the frame body into {@code out} and returns the frame type.
+         * <br>
+         * {@code out} is array-backed with at least {@code 3 * plaintext.length() + FRAME_OVERHEAD} bytes remaining.
+         */
+        int encodeFrame(String plaintext, ByteBuffer out) throws Exception;
+    }
+
+    /**
+     * Receives connection events and lines from the event-loop thread.
+     */
+    public interface Listener {
+        void onConnecting();
+
+        void onConnected();
+
+        /**
+         * Called for each text line, and for each control frame once binary framing is on.
+         */
+        void onLine(String line);
+
+        /**
+         * Called for each message frame once binary framing is on.
+         *
+         * @param buf Buffer holding nonce || ciphertext+tag, only valid during the call.
+         */
+        void onPayload(byte[] buf, int off, int len);
+
+        /**
+         * Called for each room message frame once binary framing is on.
+         *
+         * @param buf Buffer holding the {@link FrameCodec#TOKEN_SIZE}-byte room token then
+         *            nonce || ciphertext+tag, only valid during the call.
+         */
+        void onRoomPayload(byte[] buf, int off, int len);
+
+        void onDisconnected(IOException cause);
+
+        /**
+         * Called when a stream's heartbeat is due.
+         *
+         * @param stream The stream that has been quiet for a heartbeat interval.
+         * @return The heartbeat line to send, or null to skip it.
+         */
+        String onHeartbeat(Stream stream);
+
+        /**
+         * Called when a queued message is given up on.
+         */
+        void onMessageDropped(Stream stream, String plaintext, Exception cause);
+    }
+
+    /**
+     * One source of chat messages on the connection, usually a room.
+     */
+    public final class Stream {
+        private final OutboundQueue queue;
+        private final Encoder encoder;
+        private volatile boolean paused = false;
+
+        // Last time a message or heartbeat for this stream was sent, event-loop thread only
+        private long lastActivityAt;
+
+        private Stream(OutboundQueue queue, Encoder encoder) {
+            this.queue = queue;
+            this.encoder = encoder;
+        }
+
+        /**
+         * Holds or releases this stream's messages, for example while its room key is not ready yet.
+         * <br>
+         * Heartbeats and other control lines are not affected.
+         */
+        public void setPaused(boolean paused) {
+            this.paused = paused;
+            wakeUp();
+        }
+
+        private boolean hasOutput() {
+            return !paused && !queue.isEmpty();
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int MAX_BATCH_BYTES = 8 * 1024;
+
+    private static final Metrics.Counter CONNECT_ATTEMPTS = Metrics.getInstance().counter(Metrics.CONNECT_ATTEMPTS);
+    private static final Metrics.Counter CONNECT_FAILURES = Metrics.getInstance().counter(Metrics.CONNECT_FAILURES);
+    private static final Metrics.Counter CONNECT_DROPS = Metrics.getInstance().counter(Metrics.CONNECT_DROPS);
+    private static final Metrics.Histogram CONNECT_LATENCY = Metrics.getInstance().histogram(Metrics.CONNECT_LATENCY);
+    private static final Metrics.Histogram MSG_ENCRYPT = Metrics.getInstance().histogram(Metrics.MSG_ENCRYPT);
+    private static final Metrics.Counter MSG_ENCRYPT_FAILURES = Metrics.getInstance().counter(Metrics.MSG_ENCRYPT_FAILURES);
+    private static final Metrics.Counter MSG_SENT = Metrics.getInstance().counter(Metrics.MSG_SENT);
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+    private final OutboundStats stats = new OutboundStats();
+    private final HeartbeatScheduler scheduler;
+
+    // Settings, only changed before start
+    private long connectTimeoutMs = 5000;
+    private long coalesceWindowMs = 3;
+    private boolean offerBinary = false;
+
+    // Unencrypted protocol lines for the current connection only
+    private final ConcurrentLinkedQueue<String> controlLines = new ConcurrentLinkedQueue<>();
+
+    // Shared with other threads
+    private final Object idleLock = new Object();
+    private volatile boolean running = false;
+    private volatile boolean connected = false;
+    private volatile boolean busy = false;
+    private volatile boolean reconnectNow = false;
+    private volatile Selector selector;
+    private Thread thread;
+
+    // Event-loop state
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer writeBuf = ByteBuffer.allocate(MAX_BATCH_BYTES * 2);
+    private ByteBuffer frameScratch = ByteBuffer.allocate(1024);
+    private final FrameCodec.Sink frameSink = this::onFrame;
+    private boolean readBinary = false;
+    private boolean writeBinary = false;
+    private final List<OutboundQueue.Entry> inFlight = new ArrayList<>();
+    private final List<Stream> inFlightStreams = new ArrayList<>();
+    private long inFlightLines = 0;
+    private int nextStream = 0;
+    private boolean batchPending = false;
+    private long connectStartedAt = 0;
+    private long connectDeadline = 0;
+    private long nextConnectAt = 0;
+    private long batchDeadline = 0;
+
+    /**
+     * @param host Server host.
+     * @param port Server port.
+     * @param listener Receives events and lines.
+     */
+    public ConnectionEngine(String host, int port, Listener listener) {
+        this(host, port, listener, new HeartbeatScheduler());
+    }
+
+    /**
+     * @param host Server host.
+     * @param port Server port.
+     * @param listener Receives events and lines.
+     * @param scheduler Heartbeat and reconnect timing, and the clock the loop runs on.
+     */
+    public ConnectionEngine(String host, int port, Listener listener, HeartbeatScheduler scheduler) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds a source of chat messages to the connection.
+     *
+     * @param queue Chat messages to send, held while disconnected.
+     * @param encoder Encrypts and frames each message on the event-loop thread.
+     * @return The stream, paused until {@link Stream#setPaused} releases it.
+     */
+    public Stream addStream(OutboundQueue queue, Encoder encoder) {
+        Stream stream = new Stream(queue, encoder);
+        stream.paused = true;
+        // A room joining a live connection sends its own first heartbeat
+        stream.lastActivityAt = scheduler.now();
+        streams.add(stream);
+        queue.setOnQueued(this::wakeUp);
+        return stream;
+    }
+
+    /**
+     * Removes a stream. Messages still in its queue are not sent.
+     */
+    public void removeStream(Stream stream) {
+        streams.remove(stream);
+        stream.queue.setOnQueued(null);
+        wakeUp();
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    public void setConnectTimeoutMs(long connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Sets the reconnect backoff, see {@link HeartbeatScheduler#setBackoff}.
+     */
+    public void setReconnectBackoff(long baseDelayMs, long maxDelayMs) {
+        scheduler.setBackoff(baseDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Sets the heartbeat interval. Can be changed while running, for example when the network type changes.
+     */
+    public void setHeartbeatIntervalMs(long heartbeatIntervalMs) {
+        scheduler.setIntervalMs(heartbeatIntervalMs);
+        wakeUp();
+    }
+
+    /**
+     * Skips the rest of the reconnect delay, for example when a network has just become available.
+     */
+    public void reconnectNow() {
+        reconnectNow = true;
+        wakeUp();
+    }
+
+    public void setCoalesceWindowMs(long coalesceWindowMs) {
+        this.coalesceWindowMs = coalesceWindowMs;
+    }
+
+    /**
+     * Offers binary framing on every connection. Servers that do not answer the offer stay on text lines.
+     */
+    public void setBinaryFraming(boolean offerBinary) {
+        this.offerBinary = offerBinary;
+    }
+
+    /**
+     * Returns true if the current connection switched to binary framing.
+     */
+    public boolean isBinary() {
+        return readBinary;
+    }
+
+    public OutboundStats getStats() {
+        return stats;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Starts the event-loop thread.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) return;
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(this::run, "connection-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the event loop and closes the connection. Queued messages are kept.
+     */
+    public synchronized void stop() {
+        running = false;
+        wakeUp();
+        thread = null;
+    }
+
+    /**
+     * Queues an unencrypted protocol line, such as a heartbeat, for the current connection.
+     * <br>
+     * Dropped if the connection closes before it is written.
+     *
+     * @param line The line to send, without a trailing newline.
+     */
+    public void sendControl(String line) {
+        controlLines.add(line);
+        wakeUp();
+    }
+
+    /**
+     * Waits until every queued line has been written or the timeout passes on the scheduler's clock.
+     *
+     * @param timeoutMs Maximum time to wait.
+     * @return True if everything was written.
+     */
+    public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = scheduler.now() + timeoutMs;
+        synchronized (idleLock) {
+            while (busy || !controlLines.isEmpty() || hasQueuedMessages()) {
+                long remaining = deadline - scheduler.now();
+                if (remaining <= 0 || !connected) return false;
+                idleLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    private boolean hasQueuedMessages() {
+        for (Stream stream : streams) {
+            if (stream.hasOutput()) return true;
+        }
+        return false;
+    }
+
+    private void wakeUp() {
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    private long now() {
+        return scheduler.now();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long now = now();
+
+                if (reconnectNow) {
+                    reconnectNow = false;
+                    scheduler.resetBackoff();
+                    if (channel == null) nextConnectAt = now;
+                }
+                if (channel == null && now >= nextConnectAt) startConnect(now);
+
+                selector.select(Math.max(1, nextDeadline(now) - now));
+                now = now();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    try {
+                        if (k.isValid() && k.isConnectable()) finishConnect(now);
+                        if (k.isValid() && k.isReadable()) read();
+                        if (k.isValid() && k.isWritable()) write();
+                    } catch (IOException e) {
+                        closeChannel(e, now);
+                    }
+                }
+
+                if (channel == null) continue;
+                try {
+                    runTimers(now);
+                    if (connected) fillAndWrite(now);
+                } catch (IOException e) {
+                    closeChannel(e, now);
+                }
+            }
+        } catch (IOException e) {
+            // Selector failed, nothing can be done on this thread any more
+            closeChannel(e, now());
+        } finally {
+            closeChannel(null, now());
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Returns the next time the loop must wake up without any I/O.
+     */
+    private long nextDeadline(long now) {
+        long next = now + 60_000;
+        if (channel == null) return Math.min(next, nextConnectAt);
+        if (!connected) return Math.min(next, connectDeadline);
+        for (Stream stream : streams) {
+            next = Math.min(next, scheduler.dueAt(stream.lastActivityAt));
+        }
+        if (batchDeadline != 0) {
+            next = Math.min(next, batchDeadline);
+        } else if (!batchPending && (!controlLines.isEmpty() || hasQueuedMessages())) {
+            // Output is waiting and no batch has been started for it yet
+            next = now;
+        }
+        return next;
+    }
+
+    private void startConnect(long now) {
+        listener.onConnecting();
+        CONNECT_ATTEMPTS.increment();
+        connectStartedAt = now;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                key = channel.register(selector, SelectionKey.OP_READ);
+                onConnected(now);
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+                connectDeadline = now + connectTimeoutMs;
+            }
+        } catch (IOException e) {
+            closeChannel(e, now);
+        }
+    }
+
+    private void finishConnect(long now) throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            onConnected(now);
+        }
+    }
+
+    private void onConnected(long now) {
+        connected = true;
+        CONNECT_LATENCY.recordMillis(now - connectStartedAt);
+        for (Stream stream : streams) {
+            stream.lastActivityAt = HeartbeatScheduler.NEVER;
+        }
+        if (offerBinary) controlLines.add(FrameCodec.HELLO);
+        listener.onConnected();
+    }
+
+    private void runTimers(long now) throws IOException {
+        if (!connected) {
+            if (now >= connectDeadline) throw new IOException("connect timed out");
+            return;
+        }
+        // Only streams that have been quiet for a whole interval need one
+        for (Stream stream : streams) {
+            if (!scheduler.isDue(stream.lastActivityAt, now)) continue;
+            String heartbeat = listener.onHeartbeat(stream);
+            if (heartbeat != null) controlLines.add(heartbeat);
+            stream.lastActivityAt = now;
+        }
+    }
+
+    /**
+     * Splits everything read so far into lines, or frames once binary framing is on.
+     */
+    private void read() throws IOException {
+        int n = channel.read(readBuf);
+        if (n < 0) throw new IOException("connection closed by server");
+
+        // The server is answering, so the next drop starts the backoff over
+        if (n > 0) scheduler.resetBackoff();
+
+        byte[] buf = readBuf.array();
+        int end = readBuf.position();
+        int start = 0;
+        while (start < end) {
+            if (readBinary) {
+                int used = FrameCodec.decode(buf, start, end, frameSink);
+                if (used == 0) break;
+                start += used;
+                continue;
+            }
+
+            int i = start;
+            while (i < end && buf[i] != '\n') i++;
+            if (i == end) break;
+            int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+            String line = new String(buf, start, lineEnd - start, StandardCharsets.UTF_8);
+            start = i + 1;
+
+            if (offerBinary && line.equals(FrameCodec.HELLO)) {
+                // The server accepted, everything after its answer is frames
+                readBinary = true;
+                controlLines.add(FrameCodec.SWITCH);
+                continue;
+            }
+            listener.onLine(line);
+        }
+
+        // Keep the partial line or frame, growing the buffer if a single one does not fit
+        readBuf.position(start);
+        readBuf.limit(end);
+        readBuf.compact();
+        if (!readBuf.hasRemaining()) {
+            if (readBuf.capacity() >= MAX_LINE_LENGTH) throw new IOException("line too long");
+            ByteBuffer bigger = ByteBuffer.allocate(readBuf.capacity() * 2);
+            readBuf.flip();
+            bigger.put(readBuf);
+            readBuf = bigger;
+        }
+    }
+
+    private void onFrame(int type, byte[] buf, int off, int len) {
+        switch (type) {
+            case FrameCodec.TYPE_MESSAGE:
+                listener.onPayload(buf, off, len);
+                break;
+            case FrameCodec.TYPE_ROOM_MESSAGE:
+                if (len > FrameCodec.TOKEN_SIZE) listener.onRoomPayload(buf, off, len);
+                break;
+            case FrameCodec.TYPE_CONTROL:
+                listener.onLine(new String(buf, off, len, StandardCharsets.UTF_8));
+                break;
+            default:
+                // Unknown frame types are skipped so the server can add new ones
+                break;
+        }
+    }
+
+    /**
+     * Moves queued lines into the write buffer once the coalescing window has passed, then writes.
+     */
+    private void fillAndWrite(long now) throws IOException {
+        // A batch is still being written, wait for OP_WRITE
+        if (batchPending) return;
+
+        boolean pending = !controlLines.isEmpty() || hasQueuedMessages();
+        if (!pending) return;
+
+        busy = true;
+        if (batchDeadline == 0) {
+            batchDeadline = now + coalesceWindowMs;
+        }
+        if (now < batchDeadline) return;
+        batchDeadline = 0;
+
+        int bytes = 0;
+        String line;
+        while (bytes < MAX_BATCH_BYTES && (line = controlLines.poll()) != null) {
+            bytes += putControl(line);
+            inFlightLines++;
+        }
+
+        // Take one message from each stream in turn
+        Stream[] active = streams.toArray(new Stream[0]);
+        int idle = 0;
+        while (bytes < MAX_BATCH_BYTES && idle < active.length) {
+            nextStream = (nextStream + 1) % active.length;
+            Stream stream = active[nextStream];
+            OutboundQueue.Entry entry = stream.paused ? null : stream.queue.poll();
+            if (entry == null) {
+                idle++;
+                continue;
+            }
+            idle = 0;
+            int written;
+            long encodeStart = System.nanoTime();
+            try {
+                written = writeBinary ? putMessageFrame(stream.encoder, entry.plaintext)
+                        : putLine(stream.encoder.encode(entry.plaintext));
+            } catch (Exception e) {
+                // Encoding failed, retrying will not help
+                MSG_ENCRYPT_FAILURES.increment();
+                listener.onMessageDropped(stream, entry.plaintext, e);
+                continue;
+            }
+            MSG_ENCRYPT.recordSince(encodeStart);
+            inFlight.add(entry);
+            inFlightStreams.add(stream);
+            stream.lastActivityAt = now;
+            bytes += written;
+            inFlightLines++;
+        }
+
+        if (inFlightLines == 0) {
+            signalIdle();
+            return;
+        }
+        writeBuf.flip();
+        batchPending = true;
+        write();
+    }
+
+    /**
+     * Writes a control line, which may hold several lines joined by newlines, in the current framing.
+     */
+    private int putControl(String line) {
+        if (!writeBinary) {
+            int written = putLine(line);
+            // Everything after the switch line is frames
+            if (line.equals(FrameCodec.SWITCH)) writeBinary = true;
+            return written;
+        }
+
+        int written = 0;
+        int start = 0;
+        while (start <= line.length()) {
+            int nl = line.indexOf('\n', start);
+            if (nl < 0) nl = line.length();
+            byte[] data = line.substring(start, nl).getBytes(StandardCharsets.UTF_8);
+            ensureWritable(data.length + 4);
+            FrameCodec.putHeader(writeBuf, FrameCodec.TYPE_CONTROL, data.length);
+            writeBuf.put(data);
+            written += data.length + 4;
+            start = nl + 1;
+        }
+        return written;
+    }
+
+    private int putLine(String line) {
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        ensureWritable(data.length + 1);
+        writeBuf.put(data).put((byte) '\n');
+        return data.length + 1;
+    }
+
+    /**
+     * Encodes a message frame body straight from the encoder, then writes it with its header.
+     */
+    private int putMessageFrame(Encoder encoder, String plaintext) throws Exception {
+        int max = 3 * plaintext.length() + Encoder.FRAME_OVERHEAD;
+        if (frameScratch.capacity() < max) frameScratch = ByteBuffer.allocate(Math.max(max, frameScratch.capacity() * 2));
+        frameScratch.clear();
+        int type = encoder.encodeFrame(plaintext, frameScratch);
+        frameScratch.flip();
+
+        int bodyLength = frameScratch.remaining();
+        int headerLength = FrameCodec.varintLength(bodyLength + 1) + 1;
+        ensureWritable(headerLength + bodyLength);
+        FrameCodec.putHeader(writeBuf, type, bodyLength);
+        writeBuf.put(frameScratch);
+        return headerLength + bodyLength;
+    }
+
+    private void ensureWritable(int length) {
+        if (writeBuf.remaining() >= length) return;
+        ByteBuffer bigger = ByteBuffer.allocate(writeBuf.capacity() + length);
+        writeBuf.flip();
+        bigger.put(writeBuf);
+        writeBuf = bigger;
+    }
+
+    /**
+     * Writes the current batch, waiting for OP_WRITE if the socket buffer is full.
+     */
+    private void write() throws IOException {
+        if (!batchPending) return;
+
+        channel.write(writeBuf);
+        if (writeBuf.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        // Batch fully written
+        key.interestOps(SelectionKey.OP_READ);
+        stats.recordWrite(writeBuf.limit(), inFlightLines);
+        MSG_SENT.add(inFlight.size());
+        batchPending = false;
+        writeBuf.clear();
+        inFlight.clear();
+        inFlightStreams.clear();
+        inFlightLines = 0;
+        signalIdle();
+    }
+
+    private void signalIdle() {
+        synchronized (idleLock) {
+            busy = false;
+            idleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the connection, puts unwritten messages back in order and schedules a reconnect.
+     *
+     * @param cause Why it closed, or null when stopping.
+     */
+    private void closeChannel(IOException cause, long now) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        channel = null;
+        key = null;
+
+        for (int i = inFlight.size() - 1; i >= 0; i--) {
+            OutboundQueue.Entry entry = inFlight.get(i);
+            Stream stream = inFlightStreams.get(i);
+            if (!stream.queue.retry(entry)) listener.onMessageDropped(stream, entry.plaintext, cause);
+        }
+        inFlight.clear();
+        inFlightStreams.clear();
+        inFlightLines = 0;
+        batchPending = false;
+        writeBuf.clear();
+        readBuf.clear();
+        controlLines.clear();
+        batchDeadline = 0;
+        readBinary = false;
+        writeBinary = false;
+
+        boolean wasConnected = connected;
+        connected = false;
+        signalIdle();
+
+        // Stopping is not counted
+        if (wasConnected && cause != null) {
+            CONNECT_DROPS.increment();
+        } else if (cause != null) {
+            CONNECT_FAILURES.increment();
+        }
+
+        nextConnectAt = now + scheduler.nextReconnectDelayMs();
+        if (wasConnected || cause != null) listener.onDisconnected(cause);
+    }
+}
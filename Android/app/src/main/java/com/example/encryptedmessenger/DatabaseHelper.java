@@ -3,35 +3,100 @@ package com.example.encryptedmessenger;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DatabaseHelper owns the app's SQLite database: saved logins and the encrypted message history.
+ * <p>
+ * The schema is built and upgraded step by step by {@link SchemaMigrations}, which keeps its own
+ * schema version and is checked every time the database is opened. Upgrades only ever add to the
+ * schema, so saved logins and history survive an app update.
+ * Write-ahead logging lets the history writer and the UI's reads run at the same time.
+ * </p>
+ */
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = "DatabaseHelper";
     private static final String DB_NAME = AppConfig.getDBName();
-    private static final int DB_VERSION = Integer.parseInt(AppConfig.getDBVersion());
 
     private static final String TABLE_NAME = AppConfig.getTableName();
     private static final String COL_ID = AppConfig.getColID();
     private static final String COL_ROOM = AppConfig.getColRoom();
     private static final String COL_PASSWORD = AppConfig.getColPassword();
 
+    private static final SchemaMigrations MIGRATIONS = new SchemaMigrations(TABLE_NAME, COL_ID, COL_ROOM, COL_PASSWORD);
+
+    // Only SQLiteOpenHelper's version, the schema version is kept by SchemaMigrations
+    private static final int DB_VERSION = Math.max(1, Integer.parseInt(AppConfig.getDBVersion()));
+
+    // Message history, payloads are stored exactly as received: nonce || ciphertext+tag
+    static final String MESSAGES_TABLE = "messages";
+    static final String MSG_ID = "id";
+    static final String MSG_ROOM_TOKEN = "room_token";
+    static final String MSG_TIMESTAMP = "timestamp";
+    static final String MSG_PAYLOAD = "payload";
+
+    /**
+     * One saved room and its passphrase.
+     */
+    public static final class SavedLogin {
+        public final String room;
+        public final String password;
+
+        SavedLogin(String room, String password) {
+            this.room = room;
+            this.password = password;
+        }
+    }
+
+    private final Context context;
+
     public DatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
+        setWriteAheadLoggingEnabled(true);
     }
 
+    /**
+     * Builds the latest schema. Runs inside SQLiteOpenHelper's transaction.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String createTable = "CREATE TABLE " + TABLE_NAME + " (" +
-                COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                COL_ROOM + " TEXT UNIQUE, " +
-                COL_PASSWORD + " TEXT)";
-        db.execSQL(createTable);
+        MIGRATIONS.create(db::execSQL);
     }
 
+    /**
+     * A changed DB_VERSION no longer touches the schema, {@link #onOpen} migrates it.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+
+    /**
+     * Lowering DB_VERSION is allowed too, instead of failing to open.
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        onCreate(db);
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+
+    /**
+     * Runs any migrations the database is missing, in one transaction, so a failure leaves it
+     * unchanged at its old schema version.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (db.isReadOnly()) return;
+        db.beginTransaction();
+        try {
+            int run = MIGRATIONS.migrate(db::execSQL, sql -> DatabaseUtils.longForQuery(db, sql, null));
+            db.setTransactionSuccessful();
+            if (run > 0) Log.i(TAG, "Migrated database schema with " + run + " migrations");
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public boolean insertLogin(String room, String password) {
@@ -43,14 +108,30 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return result != -1;
     }
 
-    public Cursor getAllLogins() {
+    /**
+     * Reads every saved login, oldest first.
+     * <br>
+     * Only the room and password columns are read and the cursor is closed before returning.
+     * Reads the database, call it off the main thread.
+     */
+    public List<SavedLogin> loadLogins() {
         SQLiteDatabase db = this.getReadableDatabase();
-        return db.rawQuery("SELECT * FROM " + TABLE_NAME, null);
+        List<SavedLogin> logins = new ArrayList<>();
+        try (Cursor c = db.query(TABLE_NAME, new String[]{COL_ROOM, COL_PASSWORD},
+                null, null, null, null, COL_ID)) {
+            while (c.moveToNext()) {
+                logins.add(new SavedLogin(c.getString(0), c.getString(1)));
+            }
+        }
+        return logins;
     }
 
     public boolean deleteLogin(String room) {
         SQLiteDatabase db = this.getWritableDatabase();
-        int result = db.delete("saved_logins", "room=?", new String[]{room});
+        int result = db.delete(TABLE_NAME, COL_ROOM + "=?", new String[]{room});
+
+        // Forget the cached key so a deleted login cannot open the room without re-deriving
+        RoomKeyCache.getInstance(context).invalidate(room);
         return result > 0;
     }
 }
@@ -1,7 +1,5 @@
 package com.example.encryptedmessenger;
 
-import android.util.Base64;
-
 import org.bouncycastle.crypto.generators.SCrypt;
 import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
 import org.bouncycastle.crypto.params.AEADParameters;
@@ -11,6 +9,10 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 
 /**
@@ -21,6 +23,15 @@ import java.util.Arrays;
  * 2. Encrypting messages with ChaCha20-Poly1305 AEAD.
  * <br>
  * 3. Decrypting messages previously encrypted.
+ * <br>
+ * 4. Deriving the opaque routing token the relay uses to group a room's clients.
+ * </p>
+ * <p>
+ * The encrypt/decrypt methods set up a new cipher per call. For repeated messages
+ * with the same room key use {@link CipherSession}, which produces the same wire format.
+ * </p>
+ * <p>
+ * It only uses JDK and BouncyCastle classes, so it also runs in the JVM benchmarks.
  * </p>
  */
 public final class EncryptionHelper {
@@ -30,6 +41,11 @@ public final class EncryptionHelper {
 
     private static final SecureRandom RNG = new SecureRandom();
 
+    // Label mixed into the routing token so it is never the key itself or a message MAC
+    private static final byte[] ROOM_TOKEN_LABEL = "room-token".getBytes(StandardCharsets.US_ASCII);
+    private static final int ROOM_TOKEN_BYTES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     /**
      * Generates a 16-byte salt from the room name.
      * <br>
@@ -73,6 +89,30 @@ public final class EncryptionHelper {
         );
     }
 
+    /**
+     * Derives the room's routing token from its key.
+     * <br>
+     * HMAC-SHA256(key, "room-token") truncated to 16 bytes, as lowercase hex.
+     * Everyone with the same room key gets the same token, and the token reveals
+     * nothing about the room name, passphrase or key.
+     *
+     * @param key 32-byte room key.
+     * @return 32-character hex token.
+     * @throws Exception If HMAC-SHA256 is unavailable.
+     */
+    public static String deriveRoomToken(byte[] key) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] h = mac.doFinal(ROOM_TOKEN_LABEL);
+
+        char[] out = new char[ROOM_TOKEN_BYTES * 2];
+        for (int i = 0; i < ROOM_TOKEN_BYTES; i++) {
+            out[i * 2] = HEX[(h[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[h[i] & 0xF];
+        }
+        return new String(out);
+    }
+
     /**
      * Encrypts plaintext using ChaCha20-Poly1305 AEAD.
      * <br>
@@ -107,7 +147,7 @@ public final class EncryptionHelper {
         System.arraycopy(out, 0, combined, 12, finalLen);
 
         // Return Base64-encoded string without line breaks
-        return Base64.encodeToString(combined, Base64.NO_WRAP);
+        return Base64.getEncoder().encodeToString(combined);
     }
 
     /**
@@ -123,7 +163,7 @@ public final class EncryptionHelper {
      */
     public static byte[] decrypt(byte[] key, String payloadB64, byte[] aad) throws Exception {
         // Decode Base64
-        byte[] raw = Base64.decode(payloadB64, Base64.NO_WRAP);
+        byte[] raw = Base64.getDecoder().decode(payloadB64);
         if (raw.length < 12 + 16) throw new IllegalArgumentException("ciphertext too short");
 
         // Split nonce and ciphertext
@@ -0,0 +1,108 @@
+package com.example.encryptedmessenger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+
+/**
+ * EventBus passes typed events between the connection layer, the service and the UI in-process.
+ * <p>
+ * 1. Subscribers register for an event class and get the posted object itself, so nothing
+ * is packed into an Intent or Bundle and read back out.
+ * <br>
+ * 2. Each subscriber chooses where it runs. {@link #POSTING} runs it on the posting thread with no
+ * hand-off, any other {@link Executor}, such as the main thread's, gets one task per event.
+ * <br>
+ * 3. Events are matched on their exact class. Posting an event no one subscribes to costs one map lookup.
+ * </p>
+ * <p>
+ * Received chat messages are posted as {@link ChatMessage}s, in the order they arrived.
+ * It has no Android dependencies, so it can be driven on the JVM.
+ * </p>
+ */
+public final class EventBus {
+    /**
+     * Runs subscribers on the thread that posts the event. They must be quick and must not block.
+     */
+    public static final Executor POSTING = Runnable::run;
+
+    /**
+     * Receives events of one type.
+     */
+    public interface Subscriber<E> {
+        void onEvent(E event);
+    }
+
+    /**
+     * One subscriber and where it runs, returned by {@link #subscribe} to unsubscribe with.
+     */
+    public static final class Subscription<E> {
+        private final Class<E> type;
+        private final Executor executor;
+        private final Subscriber<? super E> subscriber;
+
+        private Subscription(Class<E> type, Executor executor, Subscriber<? super E> subscriber) {
+            this.type = type;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        private void deliver(E event) {
+            if (executor == POSTING) {
+                call(event);
+            } else {
+                executor.execute(() -> call(event));
+            }
+        }
+
+        private void call(E event) {
+            try {
+                subscriber.onEvent(event);
+            } catch (Exception ignored) {
+                // A failing subscriber does not stop the others
+            }
+        }
+    }
+
+    private static EventBus instance;
+
+    // Subscribers by event class, copied on write since events are posted far more often than subscribers change
+    private final Map<Class<?>, List<Subscription<?>>> subscriptions = new ConcurrentHashMap<>();
+
+    public static synchronized EventBus getInstance() {
+        if (instance == null) instance = new EventBus();
+        return instance;
+    }
+
+    /**
+     * Registers a subscriber for events of exactly {@code type}.
+     *
+     * @param executor Runs the subscriber, {@link #POSTING} for the posting thread.
+     * @return Pass to {@link #unsubscribe} to stop receiving events.
+     */
+    public <E> Subscription<E> subscribe(Class<E> type, Executor executor, Subscriber<? super E> subscriber) {
+        Subscription<E> subscription = new Subscription<>(type, executor, subscriber);
+        subscriptions.computeIfAbsent(type, t -> new CopyOnWriteArrayList<>()).add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription<?> subscription) {
+        List<Subscription<?>> list = subscriptions.get(subscription.type);
+        if (list != null) list.remove(subscription);
+    }
+
+    /**
+     * Hands an event to every subscriber of its class, each on its own executor.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> void post(E event) {
+        List<Subscription<?>> list = subscriptions.get(event.getClass());
+        if (list == null) return;
+        for (Subscription<?> subscription : list) {
+            ((Subscription<E>) subscription).deliver(event);
+        }
+    }
+}
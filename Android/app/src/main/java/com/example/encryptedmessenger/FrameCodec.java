@@ -0,0 +1,103 @@
+package com.example.encryptedmessenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * FrameCodec holds the binary framing used once client and relay agree on it.
+ * <p>
+ * Negotiation, all in text lines:
+ * <br>
+ * 1. The client sends {@link #HELLO}. Relays that do not know it ignore it and the connection stays text.
+ * <br>
+ * 2. A relay that supports it answers {@link #HELLO}. Everything it sends after that line is binary frames.
+ * <br>
+ * 3. The client sends {@link #SWITCH}. Everything it sends after that line is binary frames.
+ * </p>
+ * <p>
+ * A frame is an unsigned LEB128 varint length, then one type byte, then the body. The length
+ * counts the type byte and the body. Messages carry the raw nonce || ciphertext+tag, so there is
+ * no Base64 and no String in the message path.
+ * </p>
+ */
+final class FrameCodec {
+
+    // Private constructor to prevent instantiation
+    private FrameCodec() {}
+
+    static final String HELLO = "__HELLO__bin1";
+    static final String SWITCH = "__BINARY__";
+
+    // Body: nonce || ciphertext+tag, as delivered by the relay
+    static final int TYPE_MESSAGE = 1;
+    // Body: 16-byte room token || nonce || ciphertext+tag, as sent to the relay
+    static final int TYPE_ROOM_MESSAGE = 2;
+    // Body: a UTF-8 protocol line such as a heartbeat or user count, without newline
+    static final int TYPE_CONTROL = 3;
+
+    static final int TOKEN_SIZE = 16;
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    /**
+     * Receives each complete frame.
+     */
+    interface Sink {
+        void onFrame(int type, byte[] buf, int off, int len) throws IOException;
+    }
+
+    static int varintLength(int value) {
+        int n = 1;
+        while ((value >>>= 7) != 0) n++;
+        return n;
+    }
+
+    /**
+     * Writes the frame header for a body of {@code bodyLength} bytes.
+     */
+    static void putHeader(ByteBuffer out, int type, int bodyLength) {
+        int value = bodyLength + 1;
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+        out.put((byte) type);
+    }
+
+    /**
+     * Decodes one frame from {@code buf[off, end)}.
+     *
+     * @return Bytes consumed, or 0 if the frame is not complete yet.
+     * @throws IOException If the frame is empty or longer than {@link #MAX_FRAME_LENGTH}.
+     */
+    static int decode(byte[] buf, int off, int end, Sink sink) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int i = off;
+        while (true) {
+            if (i >= end) return 0;
+            int b = buf[i++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 21) throw new IOException("frame length too long");
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) throw new IOException("bad frame length " + length);
+        if (end - i < length) return 0;
+
+        sink.onFrame(buf[i] & 0xFF, buf, i + 1, length - 1);
+        return i + length - off;
+    }
+
+    /**
+     * Parses a 32-character hex room token into its 16 bytes.
+     */
+    static byte[] tokenBytes(String hexToken) {
+        byte[] out = new byte[TOKEN_SIZE];
+        for (int i = 0; i < TOKEN_SIZE; i++) {
+            out[i] = (byte) Integer.parseInt(hexToken.substring(i * 2, i * 2 + 2), 16);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.encryptedmessenger;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * HeartbeatScheduler decides when {@link ConnectionEngine} sends heartbeats and when it reconnects.
+ * <p>
+ * 1. A room's heartbeat is due one interval after the room last sent anything. A room that is
+ * sending messages needs no heartbeat, since the server counts its tagged messages as activity.
+ * <br>
+ * 2. The interval can be changed at any time, for example a longer one on cellular networks so
+ * the radio can sleep between heartbeats. It must stay below the server's inactivity timeout.
+ * <br>
+ * 3. Reconnect delays grow exponentially up to a cap, with random jitter so clients dropped by the
+ * same server outage do not all reconnect at the same moment.
+ * </p>
+ * <p>
+ * All times come from its {@link Clock}, so the schedule can be stepped through with a virtual clock.
+ * </p>
+ */
+public final class HeartbeatScheduler {
+
+    /**
+     * Monotonic time in milliseconds.
+     */
+    public interface Clock {
+        Clock SYSTEM = () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+        long nowMs();
+    }
+
+    // Activity time of a room that has sent nothing yet on this connection, its heartbeat is due at once
+    public static final long NEVER = Long.MIN_VALUE;
+
+    private final Clock clock;
+    private final Random random;
+
+    // Changed from other threads, read on the event-loop thread
+    private volatile long intervalMs = 5000;
+
+    // Event-loop thread only
+    private long baseDelayMs = 1000;
+    private long maxDelayMs = 60_000;
+    private int failures = 0;
+
+    public HeartbeatScheduler() {
+        this(Clock.SYSTEM, new Random());
+    }
+
+    /**
+     * @param clock Source of time.
+     * @param random Source of reconnect jitter.
+     */
+    public HeartbeatScheduler(Clock clock, Random random) {
+        this.clock = clock;
+        this.random = random;
+    }
+
+    public long now() {
+        return clock.nowMs();
+    }
+
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Returns when the heartbeat of a room last active at {@code lastActivityAt} is due.
+     */
+    public long dueAt(long lastActivityAt) {
+        return lastActivityAt == NEVER ? NEVER : lastActivityAt + intervalMs;
+    }
+
+    /**
+     * Returns true if a room last active at {@code lastActivityAt} needs a heartbeat at {@code now}.
+     */
+    public boolean isDue(long lastActivityAt, long now) {
+        return now >= dueAt(lastActivityAt);
+    }
+
+    /**
+     * Sets the reconnect backoff.
+     *
+     * @param baseDelayMs Longest delay after the first failure.
+     * @param maxDelayMs Cap on the delay however many attempts fail.
+     */
+    public void setBackoff(long baseDelayMs, long maxDelayMs) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = Math.max(baseDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Returns how long to wait before the next connection attempt and counts the failure.
+     * <br>
+     * The ceiling doubles with each failure up to the cap. The delay is picked between half
+     * the ceiling and the ceiling, so it keeps growing while still being spread out.
+     */
+    public long nextReconnectDelayMs() {
+        long ceiling = baseDelayMs << Math.min(failures, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMs) ceiling = maxDelayMs;
+        if (failures < Integer.MAX_VALUE) failures++;
+
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half + 1));
+    }
+
+    /**
+     * Starts the backoff over, once the server has answered on a connection.
+     */
+    public void resetBackoff() {
+        failures = 0;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.encryptedmessenger;
+
+import java.util.Arrays;
+
+/**
+ * InboundPayload is a received message payload, nonce || ciphertext+tag.
+ * <p>
+ * With text framing it is decoded out of the line's Base64. With binary framing it points
+ * straight into the connection's read buffer, so there is nothing to decode.
+ * </p>
+ * <p>
+ * Each decrypt worker of the connection's {@link InboundPipeline} reuses one instance for every
+ * line it takes, and the same decoded bytes are offered to each open room, so a line is decoded
+ * once however many rooms try it.
+ * </p>
+ */
+final class InboundPayload {
+    byte[] raw = new byte[1024];
+    int offset;
+    int length;
+
+    // Own buffer for decoded Base64, raw may point elsewhere after wrap
+    private byte[] decoded = raw;
+
+    /**
+     * Decodes the Base64 payload of {@code line} from {@code start}.
+     *
+     * @param line The received line.
+     * @param start Index of the first Base64 character, after the protocol prefix.
+     * @return False if the payload is not valid Base64.
+     */
+    boolean decode(String line, int start) {
+        int max = Base64Codec.maxDecodedLength(line.length() - start);
+        if (decoded.length < max) decoded = new byte[Math.max(max, decoded.length * 2)];
+        raw = decoded;
+        offset = 0;
+        length = Base64Codec.decode(line, start, line.length(), raw, 0);
+        return length >= 0;
+    }
+
+    /**
+     * Points at a payload that is already raw bytes, only valid until the next call.
+     */
+    void wrap(byte[] buf, int off, int len) {
+        raw = buf;
+        offset = off;
+        length = len;
+    }
+
+    /**
+     * Returns a copy of the payload that outlives the next call.
+     */
+    byte[] copy() {
+        return Arrays.copyOfRange(raw, offset, offset + length);
+    }
+}
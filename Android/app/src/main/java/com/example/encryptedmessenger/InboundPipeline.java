@@ -0,0 +1,275 @@
+package com.example.encryptedmessenger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+/**
+ * InboundPipeline takes the work on received messages off the connection's reader thread.
+ * <p>
+ * 1. The reader claims the next slot of a fixed ring with {@link #claim}, fills in the job and
+ * {@link #publish}es it. When every slot is in flight it waits for one, so a burst the workers
+ * cannot keep up with pushes back on the socket instead of growing the heap. A reader that must
+ * not block, such as an event loop, uses {@link #tryClaim} instead and drops what does not fit.
+ * <br>
+ * 2. A small pool of workers runs {@link Handler#process} on published jobs in parallel, for
+ * example Base64 decoding and trying room keys.
+ * <br>
+ * 3. Processed jobs are resequenced and handed to {@link Handler#dispatch} one at a time, strictly
+ * in the order they were published. Whichever worker finishes the oldest outstanding job
+ * dispatches it and every finished job behind it, so no extra thread is needed.
+ * </p>
+ * <p>
+ * With no workers, {@link #publish} processes and dispatches the job on the reader thread,
+ * as if there were no pipeline.
+ * </p>
+ * <p>
+ * Each stage is timed in {@link Metrics} and the number of jobs in flight is the
+ * {@link Metrics#QUEUE_DECRYPT} gauge. It has no Android dependencies, so it can be driven
+ * on the JVM with synthetic jobs.
+ * </p>
+ *
+ * @param <J> The job type. Slots are reused, so jobs are filled in and cleared, never replaced.
+ */
+final class InboundPipeline<J> {
+    private static final Metrics.Histogram PIPELINE_STALL = Metrics.getInstance().histogram(Metrics.PIPELINE_STALL);
+    private static final Metrics.Histogram PIPELINE_WAIT = Metrics.getInstance().histogram(Metrics.PIPELINE_WAIT);
+    private static final Metrics.Histogram PIPELINE_PROCESS = Metrics.getInstance().histogram(Metrics.PIPELINE_PROCESS);
+    private static final Metrics.Histogram PIPELINE_RESEQUENCE = Metrics.getInstance().histogram(Metrics.PIPELINE_RESEQUENCE);
+    private static final Metrics.Histogram PIPELINE_DISPATCH = Metrics.getInstance().histogram(Metrics.PIPELINE_DISPATCH);
+
+    // How often a reader waiting for a slot checks whether the pipeline was stopped
+    private static final long CLAIM_POLL_MS = 100;
+
+    /**
+     * Does the work on each job.
+     */
+    interface Handler<J> {
+        /**
+         * Called on a worker thread, for several jobs at once.
+         *
+         * @param worker Index of the calling worker, from 0, for per-worker scratch buffers.
+         */
+        void process(J job, int worker);
+
+        /**
+         * Called for one job at a time, in the order the jobs were published. Must clear the job.
+         */
+        void dispatch(J job);
+    }
+
+    /**
+     * One position in the ring.
+     */
+    private static final class Slot<J> {
+        final J job;
+        long publishedAt;
+        long processedAt;
+        volatile boolean done;
+
+        Slot(J job) {
+            this.job = job;
+        }
+    }
+
+    private final Handler<J> handler;
+    private final Slot<J>[] slots;
+    private final int mask;
+    private final int workerCount;
+    private final Thread[] workers;
+
+    // Free slots, taken by the reader and given back once a job is dispatched
+    private final Semaphore free;
+    private final BlockingQueue<Slot<J>> work;
+    private final LongSupplier inFlight;
+
+    // Next slot to claim, reader thread only
+    private long tail = 0;
+    private Slot<J> claimed;
+
+    // Next slot to dispatch, written only while holding dispatchLock
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+    private volatile long head = 0;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * @param capacity Jobs in flight at most, rounded up to a power of two.
+     * @param workerCount Worker threads, 0 to do everything on the reader thread.
+     * @param factory Creates the job held by each slot.
+     */
+    InboundPipeline(int capacity, int workerCount, Supplier<J> factory, Handler<J> handler) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.handler = handler;
+        // Generic arrays cannot be created directly, every element is a Slot<J> built just below
+        @SuppressWarnings("unchecked")
+        Slot<J>[] ring = (Slot<J>[]) new Slot<?>[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot<>(factory.get());
+        }
+        this.slots = ring;
+        this.mask = size - 1;
+        this.workerCount = Math.max(0, workerCount);
+        this.workers = new Thread[this.workerCount];
+        this.free = new Semaphore(size);
+        this.work = new ArrayBlockingQueue<>(size);
+        this.inFlight = () -> size - free.availablePermits();
+    }
+
+    /**
+     * Starts the workers and registers the in-flight gauge.
+     */
+    synchronized void start() {
+        Metrics.getInstance().gauge(Metrics.QUEUE_DECRYPT, inFlight);
+        for (int i = 0; i < workerCount; i++) {
+            final int index = i;
+            workers[i] = new Thread(() -> runWorker(index), "inbound-decrypt-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the workers. Jobs not yet dispatched are dropped and a waiting {@link #claim} returns null.
+     */
+    synchronized void stop() {
+        stopped = true;
+        for (Thread worker : workers) {
+            if (worker != null) worker.interrupt();
+        }
+        Metrics.getInstance().removeGauge(Metrics.QUEUE_DECRYPT, inFlight);
+    }
+
+    int getWorkerCount() {
+        return workerCount;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Returns the job to fill in for the next message, waiting while every slot is in flight.
+     * <br>
+     * Reader thread only. Every claimed job must be passed to {@link #publish} before the next claim.
+     *
+     * @return The job, or null if the pipeline was stopped.
+     */
+    J claim() {
+        if (!free.tryAcquire()) {
+            // Every slot is in flight, hold the reader until the oldest is dispatched
+            long start = System.nanoTime();
+            try {
+                while (!free.tryAcquire(CLAIM_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (stopped) return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                PIPELINE_STALL.recordSince(start);
+            }
+        }
+        return take();
+    }
+
+    /**
+     * Returns the job to fill in for the next message, or null straight away if every slot is in flight.
+     * <br>
+     * Reader thread only. Every claimed job must be passed to {@link #publish} before the next claim.
+     *
+     * @return The job, or null if the pipeline is full or was stopped.
+     */
+    J tryClaim() {
+        if (!free.tryAcquire()) return null;
+        return take();
+    }
+
+    /**
+     * Takes the next slot once a free one has been acquired.
+     */
+    private J take() {
+        if (stopped) {
+            free.release();
+            return null;
+        }
+        claimed = slots[(int) (tail++ & mask)];
+        return claimed.job;
+    }
+
+    /**
+     * Hands the job returned by the last {@link #claim} to the workers. Reader thread only.
+     */
+    void publish() {
+        Slot<J> slot = claimed;
+        claimed = null;
+        slot.publishedAt = System.nanoTime();
+
+        if (workerCount == 0) {
+            try {
+                handler.process(slot.job, 0);
+            } catch (Exception ignored) {}
+            slot.processedAt = System.nanoTime();
+            PIPELINE_PROCESS.recordNanos(slot.processedAt - slot.publishedAt);
+            slot.done = true;
+            drain();
+            return;
+        }
+        // Never full, there are no more slots than it holds
+        work.add(slot);
+    }
+
+    private void runWorker(int index) {
+        try {
+            while (!stopped) {
+                Slot<J> slot = work.take();
+                long start = System.nanoTime();
+                PIPELINE_WAIT.recordNanos(start - slot.publishedAt);
+                try {
+                    handler.process(slot.job, index);
+                } catch (Exception ignored) {
+                    // Still dispatched, so the jobs behind it are not held up
+                }
+                slot.processedAt = System.nanoTime();
+                PIPELINE_PROCESS.recordNanos(slot.processedAt - start);
+                slot.done = true;
+                drain();
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * Dispatches finished jobs from the head of the ring until one that is not finished yet.
+     */
+    private void drain() {
+        while (true) {
+            // Another thread is dispatching and will see this job if it is next
+            if (!dispatchLock.tryLock()) return;
+            try {
+                Slot<J> slot;
+                while (!stopped && (slot = slots[(int) (head & mask)]).done) {
+                    long start = System.nanoTime();
+                    PIPELINE_RESEQUENCE.recordNanos(start - slot.processedAt);
+                    try {
+                        handler.dispatch(slot.job);
+                    } catch (Exception ignored) {}
+                    PIPELINE_DISPATCH.recordSince(start);
+
+                    slot.done = false;
+                    head++;
+                    free.release();
+                }
+            } finally {
+                dispatchLock.unlock();
+            }
+
+            // The next job may have finished after the check but before the unlock, with no one left to dispatch it
+            if (stopped || !slots[(int) (head & mask)].done) return;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.encryptedmessenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * InboundStats counts what happens to received messages before they reach a room.
+ * <p>
+ * 1. Tagged: carried a room tag that matched an open room, so only that room's key was tried.
+ * <br>
+ * 2. Foreign: carried a tag for no open room and was dropped on a token comparison,
+ * with no Base64 decode and no decryption.
+ * <br>
+ * 3. Untagged: sent by an older client without a tag, so every open room's key was tried.
+ * <br>
+ * 4. Rejected: not valid Base64, or no key authenticated it after the full decrypt.
+ * <br>
+ * 5. Held: arrived while a room was still deriving its key, and is tried again once the key is ready.
+ * <br>
+ * 6. Overflowed: arrived while the decrypt workers were too far behind, and was dropped unread.
+ * </p>
+ */
+public final class InboundStats {
+    private final AtomicLong tagged = new AtomicLong();
+    private final AtomicLong foreign = new AtomicLong();
+    private final AtomicLong untagged = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+
+    void recordTagged() {
+        tagged.incrementAndGet();
+    }
+
+    void recordForeign() {
+        foreign.incrementAndGet();
+    }
+
+    void recordUntagged() {
+        untagged.incrementAndGet();
+    }
+
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    void recordHeld() {
+        held.incrementAndGet();
+    }
+
+    void recordOverflowed() {
+        overflowed.incrementAndGet();
+    }
+
+    public long getTagged() {
+        return tagged.get();
+    }
+
+    public long getForeign() {
+        return foreign.get();
+    }
+
+    public long getUntagged() {
+        return untagged.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getHeld() {
+        return held.get();
+    }
+
+    public long getOverflowed() {
+        return overflowed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "tagged=" + getTagged() +
+                " foreign=" + getForeign() +
+                " untagged=" + getUntagged() +
+                " rejected=" + getRejected() +
+                " held=" + getHeld() +
+                " overflowed=" + getOverflowed();
+    }
+}
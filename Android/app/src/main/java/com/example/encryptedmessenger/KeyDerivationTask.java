@@ -0,0 +1,89 @@
+package com.example.encryptedmessenger;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * KeyDerivationTask derives a room key on a background thread.
+ * <p>
+ * The key comes from {@link RoomKeyCache}, so a cached room completes almost immediately
+ * while an uncached room runs scrypt off the UI thread, in parallel with the server connect.
+ * </p>
+ * <p>
+ * Cancelling stops the callback from firing. BouncyCastle's scrypt cannot be interrupted,
+ * so a derivation already in progress runs to completion and its result is discarded.
+ * </p>
+ */
+public final class KeyDerivationTask {
+    private static final String TAG = "KeyDerivationTask";
+
+    /**
+     * Receives the derivation result on the derivation thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the background thread starts looking up or deriving the key.
+         */
+        void onDerivationStarted();
+
+        void onKeyReady(byte[] key);
+
+        void onKeyFailed(Exception e);
+    }
+
+    private final Context context;
+    private final String room;
+    private final String passphrase;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+    private Thread thread;
+
+    public KeyDerivationTask(Context context, String room, String passphrase) {
+        this.context = context.getApplicationContext();
+        this.room = room;
+        this.passphrase = passphrase;
+    }
+
+    /**
+     * Starts deriving the key on a new background thread.
+     *
+     * @param callback Receives progress and the result, unless cancelled first.
+     */
+    public synchronized void start(Callback callback) {
+        if (thread != null) throw new IllegalStateException("already started");
+
+        thread = new Thread(() -> {
+            if (cancelled) return;
+            callback.onDerivationStarted();
+
+            long start = SystemClock.elapsedRealtime();
+            try {
+                byte[] key = RoomKeyCache.getInstance(context).getOrDerive(room, passphrase);
+                Log.d(TAG, "Key for " + room + " ready in " + (SystemClock.elapsedRealtime() - start) + " ms");
+                done = true;
+                if (!cancelled) callback.onKeyReady(key);
+            } catch (Exception e) {
+                done = true;
+                Metrics.getInstance().counter(Metrics.KEY_FAILURES).increment();
+                Log.w(TAG, "Key for " + room + " failed", e);
+                if (!cancelled) callback.onKeyFailed(e);
+            }
+        }, "key-derivation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Cancels the task. The result of a derivation still in progress is dropped.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.encryptedmessenger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * LatencyTracker records the one-way latency and ordering of traced messages in one room.
+ * <p>
+ * 1. Latency is the receiver's wall clock minus the send time in the {@link MessageEnvelope}.
+ * It includes time queued while the sender was disconnected, and is only as exact as the two
+ * devices' clocks agree. Messages that appear to arrive before they were sent are counted as skewed.
+ * A sender's own messages echoed back by the relay share one clock, so they give an exact round trip.
+ * <br>
+ * 2. Each sender's sequence numbers are checked in arrival order. A jump ahead counts the skipped
+ * numbers as gaps. A number at or below the highest seen counts as a reorder, which includes
+ * duplicates and late arrivals of earlier gaps.
+ * </p>
+ * <p>
+ * Totals go to {@link Metrics}. Per-sender histograms and counts are kept for the most recently
+ * heard {@code MAX_SENDERS} senders and shown as a section of the metrics snapshot.
+ * </p>
+ */
+final class LatencyTracker {
+    private static final int MAX_SENDERS = 32;
+
+    private static final Metrics.Histogram MSG_LATENCY = Metrics.getInstance().histogram(Metrics.MSG_LATENCY);
+    private static final Metrics.Counter MSG_TRACED = Metrics.getInstance().counter(Metrics.MSG_TRACED);
+    private static final Metrics.Counter MSG_GAPS = Metrics.getInstance().counter(Metrics.MSG_GAPS);
+    private static final Metrics.Counter MSG_REORDERS = Metrics.getInstance().counter(Metrics.MSG_REORDERS);
+    private static final Metrics.Counter MSG_CLOCK_SKEW = Metrics.getInstance().counter(Metrics.MSG_CLOCK_SKEW);
+
+    /**
+     * What has been received from one sender.
+     */
+    static final class Sender {
+        final Metrics.Histogram latency = new Metrics.Histogram();
+        String name = "";
+        long highestSeq = -1;
+        long received = 0;
+        long gaps = 0;
+        long reorders = 0;
+        long skewed = 0;
+    }
+
+    // Access-ordered, drops the sender heard from least recently
+    private final Map<String, Sender> senders = new LinkedHashMap<String, Sender>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Sender> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    /**
+     * Records one traced message.
+     *
+     * @param envelope A traced message's envelope.
+     * @param receivedAt Wall-clock time it was decrypted, in milliseconds.
+     */
+    synchronized void record(MessageEnvelope envelope, long receivedAt) {
+        Sender sender = senders.get(envelope.sender);
+        if (sender == null) {
+            sender = new Sender();
+            senders.put(envelope.sender, sender);
+        }
+        // Traced bodies are "user: text"
+        int sep = envelope.body.indexOf(": ");
+        if (sep > 0) sender.name = envelope.body.substring(0, sep);
+
+        long latency = receivedAt - envelope.sentAt;
+        if (latency < 0) {
+            sender.skewed++;
+            MSG_CLOCK_SKEW.increment();
+        }
+        sender.latency.recordMillis(latency);
+        MSG_LATENCY.recordMillis(latency);
+        sender.received++;
+        MSG_TRACED.increment();
+
+        if (sender.highestSeq < 0 || envelope.seq == sender.highestSeq + 1) {
+            sender.highestSeq = envelope.seq;
+        } else if (envelope.seq > sender.highestSeq) {
+            long skipped = envelope.seq - sender.highestSeq - 1;
+            sender.gaps += skipped;
+            MSG_GAPS.add(skipped);
+            sender.highestSeq = envelope.seq;
+        } else {
+            sender.reorders++;
+            MSG_REORDERS.increment();
+        }
+    }
+
+    /**
+     * Returns one line per sender, with latencies in milliseconds.
+     */
+    synchronized String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Sender> e : senders.entrySet()) {
+            Sender s = e.getValue();
+            sb.append(String.format("%s/%s n=%d gaps=%d reorders=%d skewed=%d p50=%.1f p99=%.1f max=%.1f ms\n",
+                    s.name, e.getKey(), s.received, s.gaps, s.reorders, s.skewed,
+                    s.latency.getPercentile(0.5) / 1000.0, s.latency.getPercentile(0.99) / 1000.0,
+                    s.latency.getMax() / 1000.0));
+        }
+        return sb.toString();
+    }
+}
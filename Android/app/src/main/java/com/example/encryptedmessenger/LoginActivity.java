@@ -60,7 +60,9 @@ public class LoginActivity extends AppCompatActivity {
             }
         }
 
-        DatabaseHelper dbHelper = new DatabaseHelper(this);
+        // Read saved logins now so the saved rooms screen opens with them ready
+        SavedLoginsCache savedLogins = SavedLoginsCache.getInstance(this);
+        savedLogins.prefetch();
 
         // Initialise UI
         usernameInput = findViewById(R.id.usernameInput);
@@ -81,7 +83,7 @@ public class LoginActivity extends AppCompatActivity {
             String password = passwordInput.getText().toString().trim();
 
             if (saveCheckBox.isChecked()) {
-                dbHelper.insertLogin(room, password);
+                savedLogins.save(room, password);
             }
 
             // Validation
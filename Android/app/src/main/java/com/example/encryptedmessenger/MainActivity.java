@@ -3,76 +3,122 @@ package com.example.encryptedmessenger;
 import androidx.activity.OnBackPressedCallback;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
-import android.graphics.Typeface;
 import android.os.Bundle;
-import android.text.SpannableString;
-import android.text.Spanned;
-import android.text.style.ForegroundColorSpan;
-import android.text.style.StyleSpan;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.LinearLayout;
-import android.widget.ScrollView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 
 /**
- * MainActivity handles the UI and networking for a secure encrypted chat.
+ * MainActivity handles the UI for a secure encrypted chat.
  * <p>
- * It connects to a server, encrypts messages before sending, and decrypts incoming messages.
+ * The connection, key and encryption live in a {@link ChatSession} owned by
+ * {@link MessageListenerService}. This screen binds to the service, attaches to the room's
+ * session while it exists, and detaches without leaving the room when it is destroyed.
+ * </p>
+ * <p>
+ * Messages are shown in a RecyclerView through {@link ChatAdapter}, so the cost of a new message
+ * does not grow with the length of the history.
  * </p>
  */
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
 
-    // Server config pulled from build settings
-    String SERVER_IP = AppConfig.getServerIp();
-    int SERVER_PORT = AppConfig.getServerPort();
-
-    // Setup config pulled from build settings
-    String MESSAGE_PREFIX = AppConfig.getMessagePrefix();
-    String AAD_STR = AppConfig.getAadStr();
-    String SYSTEM_TAG = AppConfig.getSystemTag();
+    // Older messages loaded per page when scrolled to the top
+    private static final int HISTORY_PAGE_SIZE = 50;
 
     // UI
-    private TextView chatBox;
+    private boolean loadingHistory = false;
+    private RecyclerView chatList;
+    private final ChatAdapter chatAdapter = new ChatAdapter();
+    private MessageBatcher messageBatcher;
     private EditText inputBox;
-    private ScrollView scrollView;
     private TextView connectionStatusText;
 
-    // Networking
-    private Socket socket;
-
-    // Reader and writer
-    private PrintWriter writer;
-    private BufferedReader reader;
-
-    // Key
-    private byte[] key;
+    // Session owned by the service, set once bound
+    private MessageListenerService service;
+    private ChatSession session;
+    private boolean bound = false;
 
     // Vars
     private String ROOM;
     private String USERNAME;
     private String PASSPHRASE;
-    private volatile boolean isRunning = true;
 
     // Heartbeat
     private TextView userCountText;
     private View onlineDot;
 
+    // Session events, posted to the UI thread
+    private final ChatSession.Listener sessionListener = new ChatSession.Listener() {
+        @Override
+        public void onStatusChanged(ChatSession.Status status) {
+            runOnUiThread(() -> showStatus(status));
+        }
+
+        @Override
+        public void onUserCountChanged(int count) {
+            runOnUiThread(() -> {
+                userCountText.setText(count + " users online");             // TODO
+                onlineDot.setBackgroundColor(
+                        count > 0 ? Color.GREEN : Color.GRAY
+                );
+            });
+        }
+
+        @Override
+        public void onMessage(ChatMessage message) {
+            // Applied with the rest of the frame's messages
+            messageBatcher.post(message);
+        }
+
+        @Override
+        public void onHistoryLoaded() {
+            runOnUiThread(() -> loadOlderMessages());
+        }
+    };
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((MessageListenerService.LocalBinder) binder).getService();
+            if (isFinishing()) return;
+
+            // Reuses the running session if this room is already open, its recent messages are replayed
+            session = PASSPHRASE == null ? service.reopenSession(ROOM) : service.openSession(USERNAME, ROOM, PASSPHRASE);
+            if (session == null) {
+                // Opened from a notification for a room that has been closed since
+                finish();
+                startActivity(new Intent(MainActivity.this, LoginActivity.class));
+                return;
+            }
+            messageBatcher.clear();
+            chatAdapter.clear();
+            session.attach(sessionListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+            session = null;
+            setDisconnected();
+        }
+    };
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -88,7 +134,8 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Called when the activity is first created.
      * <p>
-     * Sets up the UI, gets the user login info, derives encryption key, and connects to server.
+     * Sets up the UI, gets the user login info, and binds to the service that holds the
+     * room's connection.
      * </p>
      *
      * @param savedInstanceState Standard bundle containing activity state.
@@ -97,6 +144,7 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        messageBatcher = new MessageBatcher(this::appendMessages);
 
         // Get login data from Intent extras or SharedPreferences fallback
         Intent intent = getIntent();
@@ -106,15 +154,18 @@ public class MainActivity extends AppCompatActivity {
         ROOM = intent.getStringExtra("ROOM");
         PASSPHRASE = intent.getStringExtra("PASSWORD");
 
-        // If activity launched from notification, fallback to saved login details
-        if (USERNAME == null || ROOM == null || PASSPHRASE == null) {
+        // Opened from a notification, only the room is passed and its running session is reused
+        boolean reopen = ROOM != null && USERNAME == null && PASSPHRASE == null;
+
+        // If launched with nothing usable, fallback to saved login details
+        if (!reopen && (USERNAME == null || ROOM == null || PASSPHRASE == null)) {
             USERNAME = prefs.getString("username", null);
             ROOM = prefs.getString("room", null);
             PASSPHRASE = prefs.getString("password", null);
         }
 
         // If still missing something, fail
-        if (USERNAME == null || ROOM == null || PASSPHRASE == null) {
+        if (!reopen && (USERNAME == null || ROOM == null || PASSPHRASE == null)) {
             finish(); // nothing usable, go back to login
             startActivity(new Intent(this, LoginActivity.class));
             return;
@@ -129,59 +180,46 @@ public class MainActivity extends AppCompatActivity {
         onlineDot = findViewById(R.id.onlineDot);
 
         // UI references
-        chatBox = findViewById(R.id.chatBox);
+        chatList = findViewById(R.id.chatList);
         inputBox = findViewById(R.id.inputBox);
-        scrollView = findViewById(R.id.scrollView);
         Button sendButton = findViewById(R.id.sendButton);
         ImageButton exitButton = findViewById(R.id.exitButton);
 
-        // Show room name
+        // Show room name, long-press for the metrics screen
         roomNameText.setText(ROOM);
+        roomNameText.setOnLongClickListener(v -> {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        });
         setDisconnected();
 
-        // Exit button
-        exitButton.setOnClickListener(v -> {
-            isRunning = false;
-            try {
-                if (writer != null && key != null && socket != null && socket.isConnected()) {
-                    // Send leave message
-                    sendSystemMessage(USERNAME + " has left the chat room");
-                    Thread.sleep(100);
-                }
-
-                if (socket != null && !socket.isClosed()) {
-                    // Close connection
-                    socket.close();
-                }
-            } catch (Exception ignored) {}
-
-            // Return to login screen
-            Intent backIntent = new Intent(MainActivity.this, LoginActivity.class);
-            backIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NEW_TASK);
-            startActivity(backIntent);
-            finish();
+        // Chat history, newest at the bottom
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        chatList.setLayoutManager(layoutManager);
+        chatList.setAdapter(chatAdapter);
+        chatList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // Scrolled up to the first row, page in older messages
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) loadOlderMessages();
+            }
         });
 
-        // Derive key
-        try {
-            assert PASSPHRASE != null;
-            key = EncryptionHelper.deriveRoomKey(ROOM, PASSPHRASE);
-        } catch (Exception e) {
-
-            // Show error if key derivation fails
-            appendMessage(getString(R.string.error_key_derivation, e.getMessage()));
-            return;
-        }
+        // Exit button
+        exitButton.setOnClickListener(v -> leaveRoom());
 
-        // Start connection thread
-        new Thread(this::connectToServer).start();
+        // Keep the service running past this screen, then bind to its session
+        Intent serviceIntent = new Intent(this, MessageListenerService.class);
+        ContextCompat.startForegroundService(this, serviceIntent);
+        bound = bindService(serviceIntent, connection, Context.BIND_AUTO_CREATE);
 
         // Send message on button click
         sendButton.setOnClickListener(v -> {
             String msg = inputBox.getText().toString().trim();
-            if (!msg.isEmpty()) {
+            if (!msg.isEmpty() && session != null) {
                 // Encrypt and send message
-                sendEncrypted(USERNAME + ": " + msg);
+                session.sendChatMessage(msg);
 
                 // Clear input box
                 inputBox.setText("");
@@ -192,83 +230,44 @@ public class MainActivity extends AppCompatActivity {
         getOnBackPressedDispatcher().addCallback(this, new OnBackPressedCallback(true) {
             @Override
             public void handleOnBackPressed() {
-                isRunning = false;
-                new Thread(() -> {
-                    try {
-                        if (writer != null && key != null && socket != null && socket.isConnected()) {
-                            sendSystemMessage(USERNAME + " has left the chat room");
-                            Thread.sleep(100);
-                        }
-                        if (socket != null && !socket.isClosed()) socket.close();
-                    } catch (Exception ignored) {}
-
-                    runOnUiThread(() -> {
-                        Intent backIntent = new Intent(MainActivity.this, LoginActivity.class);
-                        backIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NEW_TASK);
-                        startActivity(backIntent);
-                        finish();
-                    });
-                }).start();
+                leaveRoom();
             }
         });
     }
 
-    private void connectToServer() {
-        new Thread(() -> {
-            while (isRunning) {
-                try {
-                    Log.d("DEBUG", "Connecting to " + SERVER_IP + ":" + SERVER_PORT);
-                    // Show user reconnecting
-                    runOnUiThread(this::setReconnecting);
-
-                    // Connect to server
-                    socket = new Socket();
-                    socket.connect(new InetSocketAddress(SERVER_IP, SERVER_PORT), 5000);
-
-                    // Set up writer
-                    writer = new PrintWriter(socket.getOutputStream(), true);
-
-                    // Set up reader
-                    reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                    // Connected
-                    runOnUiThread(this::setConnected);
-
-                    // Send join message
-                    sendSystemMessage(USERNAME + " has entered the chat room");
-
-                    // Heartbeat
-                    new Thread(() -> {
-                        try {
-                            while (socket != null && socket.isConnected() && isRunning) {
-                                String heartbeat = "__HEARTBEAT__" +
-                                        "{\"room\":\"" + ROOM + "\",\"password\":\"" + PASSPHRASE + "\"}";
-                                writer.println(heartbeat);
-                                Thread.sleep(5000);
-                            }
-                        } catch (Exception ignored) {}
-                    }).start();
-
-                    // Continuously read incoming messages
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        // Process incoming message
-                        handleIncoming(line);
-                    }
-
-                    runOnUiThread(this::setDisconnected);
-                } catch (Exception e) {
-                    runOnUiThread(this::setDisconnected);
-                }
-
-                // Wait 5s
-                if (isRunning) {
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ignored) {}
-                }
-            }
-        }).start();
+    /**
+     * Leaves the room and returns to the login screen.
+     * <p>
+     * The service sends the leave message and closes the connection in the background.
+     * </p>
+     */
+    private void leaveRoom() {
+        if (session != null) session.detach(sessionListener);
+        if (service != null) service.closeSession(ROOM);
+        session = null;
+
+        // Return to login screen
+        Intent backIntent = new Intent(MainActivity.this, LoginActivity.class);
+        backIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(backIntent);
+        finish();
+    }
+
+    private void showStatus(ChatSession.Status status) {
+        switch (status) {
+            case CONNECTED:
+                setConnected();
+                break;
+            case CONNECTING:
+                setReconnecting();
+                break;
+            case DERIVING_KEY:
+                setDerivingKey();
+                break;
+            default:
+                setDisconnected();
+                break;
+        }
     }
 
     private void setConnected() {
@@ -281,6 +280,11 @@ public class MainActivity extends AppCompatActivity {
         connectionStatusText.setTextColor(ContextCompat.getColor(this, R.color.reconnecting_orange));
     }
 
+    private void setDerivingKey() {
+        connectionStatusText.setText(R.string.deriving_key_status);
+        connectionStatusText.setTextColor(ContextCompat.getColor(this, R.color.reconnecting_orange));
+    }
+
     private void setDisconnected() {
         connectionStatusText.setText(R.string.disconnected_status);
         connectionStatusText.setTextColor(ContextCompat.getColor(this, android.R.color.holo_red_dark));
@@ -288,180 +292,56 @@ public class MainActivity extends AppCompatActivity {
 
 
     /**
-     * Encrypts a plaintext message and sends it to the server.
+     * Appends one frame's messages and keeps following the bottom if the list was already there.
      * <p>
-     * Runs in a separate thread to avoid blocking the UI.
+     * While the user reads older messages the list stays where it is and nothing is trimmed.
      * </p>
-     *
-     * @param plaintext The plaintext message to send.
      */
-    private void sendEncrypted(String plaintext) {
-        new Thread(() -> {
-            try {
-                if (writer != null && key != null) {
-                    // Encrypt the message using key and AAD, encode as Base64
-                    String payloadB64 = EncryptionHelper.encrypt(
-                            key,
-                            plaintext.getBytes(StandardCharsets.UTF_8),
-                            AAD_STR.getBytes(StandardCharsets.UTF_8)
-                    );
-                    // Send the encrypted message with protocol prefix
-                    writer.println(MESSAGE_PREFIX + payloadB64);
-                }
-            } catch (Exception e) {
-                // Show error if encryption or sending fails
-                runOnUiThread(() ->
-                        appendMessage("\n[!] Encrypt/send error: " + e.getMessage()));
-            }
-        }).start();
+    private void appendMessages(List<ChatMessage> batch) {
+        boolean atBottom = !chatList.canScrollVertically(1);
+        chatAdapter.append(batch, atBottom);
+        if (atBottom) chatList.scrollToPosition(chatAdapter.getItemCount() - 1);
     }
 
-
     /**
-     * Sends a system message.
-     * <p>
-     * Sends a system message with a unique prefix that prevents user spoofing.
-     * </p>
-     *
-     * @param content The system message text
+     * Loads the page of messages before the oldest one shown on a background thread, then prepends it.
      */
-    private void sendSystemMessage(String content) {
-        sendEncrypted(SYSTEM_TAG + content);
-    }
-
-
-    /**
-     * Handles incoming messages from the server.
-     * <p>
-     * Decrypts messages with the protocol prefix and displays them in the chatBox.
-     * </p>
-     *
-     * @param line The raw line received from the server.
-     */
-    private void handleIncoming(String line) {
-        // Heartbeat
-        if (line.startsWith("__COUNT__")) {
-            try {
-                int count = Integer.parseInt(line.replace("__COUNT__", "").trim());
-                runOnUiThread(() -> {
-                    userCountText.setText(count + " users online");             // TODO
-                    onlineDot.setBackgroundColor(
-                            count > 0 ? Color.GREEN : Color.GRAY
-                    );
-                });
-            } catch (Exception ignored) {}
-            return;
-        }
-
-        if (line.startsWith(MESSAGE_PREFIX)) {
-            // Extract Base64 payload from protocol message
-            String payloadB64 = line.substring(MESSAGE_PREFIX.length());
-            try {
-                // Decrypt message
-                byte[] pt = EncryptionHelper.decrypt(
-                        key,
-                        payloadB64,
-                        AAD_STR.getBytes(StandardCharsets.UTF_8)
-                );
-                String text = new String(pt, StandardCharsets.UTF_8);
-
-                boolean isSystemMessage = text.startsWith(SYSTEM_TAG);
-                if (isSystemMessage) {
-                    text = text.substring(SYSTEM_TAG.length());
-                }
-
-                // Broadcast message
-                Intent msgIntent = new Intent("NEW_MESSAGE_RECEIVED");
-                msgIntent.putExtra("message", text);
-                msgIntent.putExtra("room", ROOM);
-                msgIntent.putExtra("isSystemMessage", isSystemMessage);
-                LocalBroadcastManager.getInstance(this).sendBroadcast(msgIntent);
-
-                // Display decrypted message and scroll to bottom
-                String finalText = text;
-                boolean finalIsSystemMessage = isSystemMessage;
-                runOnUiThread(() -> appendMessage(finalText, finalIsSystemMessage));
-            } catch (Exception ex) {
-                // Failed decryption, ignore silently
-
-            }
-        } else {
-            // Show non-protocol lines (server logs, etc.)
-            runOnUiThread(() -> appendMessage(line));
-        }
-    }
+    private void loadOlderMessages() {
+        if (session == null || loadingHistory) return;
+        loadingHistory = true;
 
+        ChatSession from = session;
+        ChatMessage oldest = chatAdapter.getOldest();
+        if (oldest == null) oldest = messageBatcher.peekOldest();
+        ChatMessage cursor = oldest;
 
-    /**
-     * Appends a message to the chatBox and scrolls to the bottom automatically.
-     */
-    private void appendMessage(String message, boolean isSystem) {
-        runOnUiThread(() -> {
-            SpannableString styledMessage;
-
-            if (isSystem) {
-                // System message
-                styledMessage = new SpannableString("*" + message + "*\n");
-                styledMessage.setSpan(
-                        new ForegroundColorSpan(Color.GRAY),
-                        0,
-                        styledMessage.length(),
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-                );
-                styledMessage.setSpan(
-                        new StyleSpan(Typeface.ITALIC),
-                        0,
-                        styledMessage.length(),
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-                );
-            } else {
-                // Normal message
-                styledMessage = new SpannableString(message + "\n");
-            }
-
-            chatBox.append(styledMessage);
-            scrollView.post(() -> scrollView.fullScroll(ScrollView.FOCUS_DOWN));
-        });
-    }
-
-
-    /**
-     * Appends a message to the chatBox and scrolls to the bottom automatically.
-     */
-    private void appendMessage(String message) {
-        runOnUiThread(() -> {
-            chatBox.append(message + "\n");
-            scrollView.post(() -> scrollView.fullScroll(ScrollView.FOCUS_DOWN));
-        });
+        new Thread(() -> {
+            List<ChatMessage> older = from.loadBefore(cursor, HISTORY_PAGE_SIZE);
+            runOnUiThread(() -> {
+                loadingHistory = false;
+                if (from == session) chatAdapter.prepend(older);
+            });
+        }, "history-page").start();
     }
 
 
     /**
      * Called when the activity is destroyed.
      * <p>
-     * Ensures socket connection is closed properly.
+     * Detaches from the session but stays in the room, the service keeps the connection open.
      * </p>
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        // Stop reconnect loop
-        isRunning = false;
-
-        try {
-            // Send leave message
-            if (writer != null && key != null && socket != null && socket.isConnected()) {
-                sendSystemMessage(USERNAME + " has left the chat room");
+        messageBatcher.stop();
+        Log.d(TAG, "UI batches: " + messageBatcher.getStats());
 
-                // Delay to make sure it sends
-                Thread.sleep(100);
-            }
-
-            // Close network socket
-            if (socket != null && !socket.isClosed()) socket.close();
-        } catch (Exception ignored) {}
-
-        setDisconnected();
+        if (session != null) session.detach(sessionListener);
+        if (bound) {
+            unbindService(connection);
+            bound = false;
+        }
     }
 }
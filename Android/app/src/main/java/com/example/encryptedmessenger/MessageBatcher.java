@@ -0,0 +1,127 @@
+package com.example.encryptedmessenger;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+
+/**
+ * MessageBatcher collects incoming messages and hands them to the UI once per frame.
+ * <p>
+ * 1. Any thread may {@link #post} a message. It is queued without touching the main thread.
+ * <br>
+ * 2. The first message after a drain schedules a {@link Choreographer} frame callback.
+ * Later messages before that frame only join the queue.
+ * <br>
+ * 3. On the frame, everything queued is passed to the {@link Sink} as one batch, so a burst
+ * costs one list update and one scroll instead of one of each per message.
+ * </p>
+ * <p>
+ * Each frame records the time from its first message being posted to the batch being applied
+ * as {@link Metrics#UI_APPEND}, and the number of messages waiting is the {@link Metrics#QUEUE_UI} gauge.
+ * </p>
+ */
+final class MessageBatcher implements Choreographer.FrameCallback {
+    private static final Metrics.Histogram UI_APPEND = Metrics.getInstance().histogram(Metrics.UI_APPEND);
+
+    /**
+     * Applies a batch of messages on the main thread.
+     */
+    interface Sink {
+        void onMessages(List<ChatMessage> batch);
+    }
+
+    private final Choreographer choreographer;
+    private final Sink sink;
+    private final ConcurrentLinkedQueue<ChatMessage> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final UiBatchStats stats = new UiBatchStats();
+    private final LongSupplier queueDepth = this::size;
+    private volatile boolean stopped = false;
+
+    // When the message that scheduled the current frame was posted
+    private volatile long firstPostedAt = 0;
+
+    /**
+     * Must be created on the main thread, the Choreographer is the main thread's.
+     */
+    MessageBatcher(Sink sink) {
+        this.choreographer = Choreographer.getInstance();
+        this.sink = sink;
+        Metrics.getInstance().gauge(Metrics.QUEUE_UI, queueDepth);
+    }
+
+    /**
+     * Queues a message for the next frame. Safe to call from any thread.
+     */
+    void post(ChatMessage message) {
+        if (stopped) return;
+        long now = System.nanoTime();
+        pending.add(message);
+        // Choreographer callbacks can be posted from any thread
+        if (frameScheduled.compareAndSet(false, true)) {
+            firstPostedAt = now;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Returns the oldest message not yet applied, or null.
+     */
+    ChatMessage peekOldest() {
+        return pending.peek();
+    }
+
+    /**
+     * Returns how many messages wait for the next frame. Walks the queue, so only for metrics.
+     */
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Drops messages not yet applied, for example before a session replays its history.
+     */
+    void clear() {
+        pending.clear();
+    }
+
+    /**
+     * Drops queued messages and stops scheduling frames. Main thread only.
+     */
+    void stop() {
+        stopped = true;
+        choreographer.removeFrameCallback(this);
+        pending.clear();
+        Metrics.getInstance().removeGauge(Metrics.QUEUE_UI, queueDepth);
+    }
+
+    UiBatchStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Cleared first so a message queued while draining schedules the next frame
+        long postedAt = firstPostedAt;
+        frameScheduled.set(false);
+        if (stopped) return;
+
+        List<ChatMessage> batch = new ArrayList<>();
+        ChatMessage message;
+        while ((message = pending.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) return;
+
+        long start = System.nanoTime();
+        sink.onMessages(batch);
+        long end = System.nanoTime();
+        stats.recordFrame(batch.size(), end - start);
+        UI_APPEND.recordNanos(end - postedAt);
+    }
+}
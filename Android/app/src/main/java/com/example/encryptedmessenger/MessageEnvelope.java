@@ -0,0 +1,96 @@
+package com.example.encryptedmessenger;
+
+
+/**
+ * MessageEnvelope is the optional trace header inside a message's encrypted plaintext.
+ * <p>
+ * A traced plaintext is {@code MARK + "1;" + sender + ";" + seq + ";" + sentAt + MARK + body},
+ * where the body is the plaintext an untraced message would carry, {@code "user: text"} or a
+ * system message. {@code MARK} is the ASCII record separator, which users cannot type.
+ * </p>
+ * <p>
+ * 1. Plaintext that does not start with the mark is a legacy message and is used as it is.
+ * <br>
+ * 2. A header with an unknown version is stripped without reading its fields, so later
+ * versions can add fields.
+ * <br>
+ * 3. A malformed header is left in place and the whole text is treated as a legacy message.
+ * </p>
+ */
+final class MessageEnvelope {
+    static final char MARK = '\u001E';
+    static final String VERSION = "1";
+
+    // Set only on traced messages
+    final String sender;
+    final long seq;
+    final long sentAt;
+
+    final String body;
+
+    private MessageEnvelope(String sender, long seq, long sentAt, String body) {
+        this.sender = sender;
+        this.seq = seq;
+        this.sentAt = sentAt;
+        this.body = body;
+    }
+
+    /**
+     * Returns true if the message carried a sender, sequence number and send time.
+     */
+    boolean isTraced() {
+        return sender != null;
+    }
+
+    /**
+     * Builds a traced plaintext.
+     *
+     * @param sender Identifies the sending session, must not contain ';' or the mark.
+     * @param seq Increases by one with each traced message from the sender.
+     * @param sentAt Wall-clock time the message was queued, in milliseconds.
+     * @param body The untraced plaintext.
+     */
+    static String wrap(String sender, long seq, long sentAt, String body) {
+        return MARK + VERSION + ";" + sender + ";" + seq + ";" + sentAt + MARK + body;
+    }
+
+    /**
+     * Splits a decrypted plaintext into its header fields and body.
+     */
+    static MessageEnvelope parse(String text) {
+        int end = headerEnd(text);
+        if (end < 0) return new MessageEnvelope(null, -1, 0, text);
+
+        String body = text.substring(end + 1);
+        if (!text.startsWith(VERSION + ";", 1)) return new MessageEnvelope(null, -1, 0, body);
+
+        int senderEnd = text.indexOf(';', VERSION.length() + 2);
+        int seqEnd = senderEnd < 0 ? -1 : text.indexOf(';', senderEnd + 1);
+        if (seqEnd < 0 || seqEnd > end || senderEnd == VERSION.length() + 2) {
+            return new MessageEnvelope(null, -1, 0, text);
+        }
+        try {
+            return new MessageEnvelope(text.substring(VERSION.length() + 2, senderEnd),
+                    Long.parseLong(text.substring(senderEnd + 1, seqEnd)),
+                    Long.parseLong(text.substring(seqEnd + 1, end)), body);
+        } catch (NumberFormatException e) {
+            return new MessageEnvelope(null, -1, 0, text);
+        }
+    }
+
+    /**
+     * Returns the body of a traced or legacy plaintext.
+     */
+    static String bodyOf(String text) {
+        int end = headerEnd(text);
+        return end < 0 ? text : text.substring(end + 1);
+    }
+
+    /**
+     * Returns the index of the mark closing the header, or -1 if there is no header.
+     */
+    private static int headerEnd(String text) {
+        if (text.isEmpty() || text.charAt(0) != MARK) return -1;
+        return text.indexOf(MARK, 1);
+    }
+}
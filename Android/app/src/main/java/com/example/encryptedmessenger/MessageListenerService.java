@@ -5,24 +5,67 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.media.AudioAttributes;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
 import android.provider.Settings;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * MessageListenerService owns the chat connections and shows notifications for new messages.
+ * <p>
+ * Sessions live here rather than in {@link MainActivity}, so the chat screen can be recreated
+ * or reopened from a notification without reconnecting or re-deriving the room key.
+ * The chat screen binds to the service and attaches to its room's {@link ChatSession}.
+ * </p>
+ * <p>
+ * All open rooms share a single {@link ChatConnection} to the server. The service tells it
+ * when the default network changes, so it can adapt its heartbeat interval and reconnect as soon
+ * as a network comes back.
+ * </p>
+ * <p>
+ * While it runs, a {@link MetricsReporter} dumps the app's {@link Metrics} every
+ * {@code METRICS_DUMP_INTERVAL_MS}.
+ * </p>
+ */
 public class MessageListenerService extends Service {
     private static final String CHANNEL_ID = "message_listener_channel";
 
-    public static boolean isChatVisible = false;
-    private BroadcastReceiver messageReceiver;
+    // Read on the thread that delivers received messages
+    public static volatile boolean isChatVisible = false;
+    private EventBus.Subscription<ChatMessage> messageSubscription;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private MetricsReporter metricsReporter;
+
+    private final IBinder binder = new LocalBinder();
+
+    // One server connection for every open room
+    private final ChatConnection connection =
+            new ChatConnection(AppConfig.getServerIp(), AppConfig.getServerPort());
+
+    // Open sessions by room
+    private final Map<String, ChatSession> sessions = new HashMap<>();
+
+    /**
+     * Binder handed to the chat screen, gives direct access to the service.
+     */
+    public class LocalBinder extends Binder {
+        public MessageListenerService getService() {
+            return MessageListenerService.this;
+        }
+    }
 
     @Override
     public void onCreate() {
@@ -42,24 +85,109 @@ public class MessageListenerService extends Service {
 
         startForeground(1, notification);
 
-        // Register to receive messages from MainActivity
-        messageReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if ("NEW_MESSAGE_RECEIVED".equals(intent.getAction())) {
-                    String message = intent.getStringExtra("message");
-                    String room = intent.getStringExtra("room");
-                    boolean isSystemMessage = intent.getBooleanExtra("isSystemMessage", false);
-
-                    // Only notify if chat is not visible and not system messages
-                    if (!isChatVisible && !isSystemMessage) {
-                        showNewMessageNotification(room, message);
-                    }
+        // Periodic metrics dump to logcat and the metrics file
+        metricsReporter = new MetricsReporter(this, AppConfig.getMetricsDumpIntervalMs());
+        metricsReporter.start();
+
+        // Received messages from every session, filtered where they are delivered
+        messageSubscription = EventBus.getInstance().subscribe(ChatMessage.class, EventBus.POSTING, message -> {
+            // Only notify if chat is not visible and not system messages
+            if ((!isChatVisible || !hasAttachedUi(message.room)) && !message.isSystemMessage()) {
+                // Only messages that need a notification go to the main thread
+                getMainExecutor().execute(() -> showNewMessageNotification(message.room, message.text));
+            }
+        });
+
+        // Follow the default network
+        ConnectivityManager connectivity = getSystemService(ConnectivityManager.class);
+        if (connectivity != null) {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    connection.onNetworkAvailable();
                 }
+
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    connection.onNetworkChanged(capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR));
+                }
+            };
+            try {
+                connectivity.registerDefaultNetworkCallback(networkCallback);
+            } catch (Exception e) {
+                // Keep the default interval
+                networkCallback = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the session for a room, opening and starting one if needed.
+     * <br>
+     * An open session for the same room with different login details is closed and replaced.
+     *
+     * @param username The user's name.
+     * @param room The chat room name.
+     * @param passphrase The room passphrase.
+     * @return The running session.
+     */
+    public ChatSession openSession(String username, String room, String passphrase) {
+        ChatSession stale = null;
+        ChatSession session;
+        synchronized (sessions) {
+            session = sessions.get(room);
+            if (session != null && !session.matches(username, room, passphrase)) {
+                stale = session;
+                session = null;
+            }
+            if (session == null) {
+                session = new ChatSession(this, connection, username, room, passphrase);
+                sessions.put(room, session);
+                session.start();
             }
-        };
-        LocalBroadcastManager.getInstance(this)
-                .registerReceiver(messageReceiver, new IntentFilter("NEW_MESSAGE_RECEIVED"));
+        }
+
+        if (stale != null) closeInBackground(stale);
+        return session;
+    }
+
+    /**
+     * Returns the open session for a room, without needing its login details.
+     * <br>
+     * Used when the chat screen is reopened from a notification, which does not carry the passphrase.
+     *
+     * @param room The chat room name.
+     * @return The running session, or null if the room has been closed since.
+     */
+    public ChatSession reopenSession(String room) {
+        synchronized (sessions) {
+            return sessions.get(room);
+        }
+    }
+
+    /**
+     * Leaves a room and closes its connection.
+     *
+     * @param room The chat room name.
+     */
+    public void closeSession(String room) {
+        ChatSession session;
+        synchronized (sessions) {
+            session = sessions.remove(room);
+        }
+        if (session != null) closeInBackground(session);
+    }
+
+    private boolean hasAttachedUi(String room) {
+        synchronized (sessions) {
+            ChatSession session = sessions.get(room);
+            return session != null && session.hasListener();
+        }
+    }
+
+    private void closeInBackground(ChatSession session) {
+        // Closing waits briefly for the leave message to flush
+        new Thread(session::close, "session-close").start();
     }
 
     private void createNotificationChannel() {
@@ -87,17 +215,14 @@ public class MessageListenerService extends Service {
     }
 
     private void showNewMessageNotification(String room, String message) {
-        var prefs = getSharedPreferences("LoginPrefs", MODE_PRIVATE);
-        String username = prefs.getString("username", "");
-        String password = prefs.getString("password", "");
-
+        // Only the room is passed, the chat screen reattaches to its live session with reopenSession.
+        // The passphrase stays out of the PendingIntent.
         Intent intent = new Intent(this, MainActivity.class);
         intent.putExtra("ROOM", room);
-        intent.putExtra("ROOM", room);
-        intent.putExtra("PASSWORD", password);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        // One PendingIntent per room, so an older notification does not open the newest one's room
         PendingIntent pendingIntent = PendingIntent.getActivity(
-                this, 0, intent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+                this, room.hashCode(), intent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setSmallIcon(android.R.drawable.ic_dialog_info)
@@ -117,14 +242,26 @@ public class MessageListenerService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (messageReceiver != null) {
-            LocalBroadcastManager.getInstance(this).unregisterReceiver(messageReceiver);
+        if (messageSubscription != null) EventBus.getInstance().unsubscribe(messageSubscription);
+        if (networkCallback != null) {
+            try {
+                getSystemService(ConnectivityManager.class).unregisterNetworkCallback(networkCallback);
+            } catch (Exception ignored) {}
+        }
+        if (metricsReporter != null) metricsReporter.stop();
+
+        // Leave every room
+        synchronized (sessions) {
+            for (ChatSession session : sessions.values()) {
+                closeInBackground(session);
+            }
+            sessions.clear();
         }
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 }
@@ -0,0 +1,182 @@
+package com.example.encryptedmessenger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * MessageStore keeps each room's message history on disk, still encrypted.
+ * <p>
+ * 1. Rows hold the payload exactly as received (nonce || ciphertext+tag), keyed by the room's
+ * routing token, so the database never contains a room name or plaintext.
+ * <br>
+ * 2. Writes are queued and a single writer thread commits them in batches, one transaction
+ * per batch instead of one fsync per message.
+ * <br>
+ * 3. Reads page backwards with a keyset on (timestamp, id), so every page costs the same
+ * however deep into the history it is.
+ * </p>
+ * <p>
+ * Decryption is left to the caller, which holds the room key.
+ * </p>
+ */
+public final class MessageStore {
+    private static final String TAG = "MessageStore";
+
+    // A batch is committed once it is this big or this old
+    private static final int MAX_BATCH_ROWS = 128;
+    private static final long MAX_BATCH_DELAY_MS = 200;
+
+    private static MessageStore instance;
+
+    private final DatabaseHelper helper;
+    private final LinkedBlockingQueue<Row> pending = new LinkedBlockingQueue<>();
+
+    /**
+     * One stored message.
+     */
+    static final class Row {
+        final long id;
+        final String roomToken;
+        final long timestamp;
+        final byte[] payload;
+
+        Row(long id, String roomToken, long timestamp, byte[] payload) {
+            this.id = id;
+            this.roomToken = roomToken;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private MessageStore(Context context) {
+        helper = new DatabaseHelper(context);
+
+        // New messages must not reuse the IDs of stored ones
+        try (Cursor c = helper.getReadableDatabase().rawQuery(
+                "SELECT MAX(" + DatabaseHelper.MSG_ID + ") FROM " + DatabaseHelper.MESSAGES_TABLE, null)) {
+            if (c.moveToFirst() && !c.isNull(0)) ChatMessage.reserveIdsUpTo(c.getLong(0));
+        } catch (Exception e) {
+            // History is best effort, rooms still open without it
+            Log.w(TAG, "History unavailable", e);
+        }
+
+        Thread writer = new Thread(this::writeLoop, "message-store");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the store, opening the database on first use.
+     * <br>
+     * Call once before any {@link ChatMessage} is created, so their IDs start above the stored ones.
+     */
+    public static synchronized MessageStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a received message for the next batch.
+     *
+     * @param roomToken The room's routing token.
+     * @param message The decrypted message, for its ID and time.
+     * @param payload The received payload. Not copied, must not be modified afterwards.
+     */
+    void append(String roomToken, ChatMessage message, byte[] payload) {
+        pending.add(new Row(message.id, roomToken, message.timestamp, payload));
+    }
+
+    /**
+     * Returns up to {@code limit} stored messages older than the given position, newest first.
+     * <br>
+     * Reads the database, call it off the main thread.
+     *
+     * @param roomToken The room's routing token.
+     * @param beforeTimestamp Timestamp of the oldest message already shown, or {@link Long#MAX_VALUE}.
+     * @param beforeId ID of that message, or {@link Long#MAX_VALUE}.
+     * @param limit Maximum number of rows.
+     */
+    List<Row> loadBefore(String roomToken, long beforeTimestamp, long beforeId, int limit) {
+        List<Row> rows = new ArrayList<>(limit);
+        String ts = String.valueOf(beforeTimestamp);
+        try (Cursor c = helper.getReadableDatabase().rawQuery(
+                "SELECT " + DatabaseHelper.MSG_ID + ", " + DatabaseHelper.MSG_TIMESTAMP + ", " + DatabaseHelper.MSG_PAYLOAD +
+                        " FROM " + DatabaseHelper.MESSAGES_TABLE +
+                        " WHERE " + DatabaseHelper.MSG_ROOM_TOKEN + " = ?" +
+                        " AND (" + DatabaseHelper.MSG_TIMESTAMP + " < ?" +
+                        " OR (" + DatabaseHelper.MSG_TIMESTAMP + " = ? AND " + DatabaseHelper.MSG_ID + " < ?))" +
+                        " ORDER BY " + DatabaseHelper.MSG_TIMESTAMP + " DESC, " + DatabaseHelper.MSG_ID + " DESC" +
+                        " LIMIT " + limit,
+                new String[]{roomToken, ts, ts, String.valueOf(beforeId)})) {
+            while (c.moveToNext()) {
+                rows.add(new Row(c.getLong(0), roomToken, c.getLong(1), c.getBlob(2)));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "History read failed", e);
+        }
+        return rows;
+    }
+
+    /**
+     * Waits for the first queued row, gathers more for a short while, then commits them together.
+     */
+    private void writeLoop() {
+        List<Row> batch = new ArrayList<>(MAX_BATCH_ROWS);
+        while (true) {
+            try {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY_MS);
+                while (batch.size() < MAX_BATCH_ROWS) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Row row = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (row == null) break;
+                    batch.add(row);
+                }
+                pending.drainTo(batch, MAX_BATCH_ROWS - batch.size());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                write(batch);
+            } catch (Exception e) {
+                // History is best effort, the chat itself is unaffected
+                Log.w(TAG, "History write of " + batch.size() + " rows failed", e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<Row> batch) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement insert = db.compileStatement(
+                "INSERT OR IGNORE INTO " + DatabaseHelper.MESSAGES_TABLE + " (" +
+                        DatabaseHelper.MSG_ID + ", " + DatabaseHelper.MSG_ROOM_TOKEN + ", " +
+                        DatabaseHelper.MSG_TIMESTAMP + ", " + DatabaseHelper.MSG_PAYLOAD + ") VALUES (?, ?, ?, ?)")) {
+            for (Row row : batch) {
+                insert.bindLong(1, row.id);
+                insert.bindString(2, row.roomToken);
+                insert.bindLong(3, row.timestamp);
+                insert.bindBlob(4, row.payload);
+                insert.executeInsert();
+                insert.clearBindings();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
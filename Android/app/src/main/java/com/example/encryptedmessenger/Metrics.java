@@ -0,0 +1,312 @@
+package com.example.encryptedmessenger;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+/**
+ * Metrics is the process-wide registry of counters, latency histograms and gauges.
+ * <p>
+ * 1. Counters are {@link LongAdder}s, so threads counting the same event do not contend.
+ * <br>
+ * 2. Histograms keep log-linear buckets in an {@link AtomicLongArray}, eight per power of two,
+ * so recording is one bucket increment and percentiles are within 12.5%.
+ * <br>
+ * 3. Gauges are read only when a snapshot is taken, used for queue depths.
+ * <br>
+ * 4. Sections are free-form text appended to the snapshot, used for per-sender breakdowns.
+ * </p>
+ * <p>
+ * Hot paths look their metrics up once and keep them in a static field, recording never locks
+ * or allocates. Snapshots are read by {@link MetricsReporter} and {@link MetricsActivity}.
+ * </p>
+ */
+public final class Metrics {
+
+    // Connection
+    public static final String CONNECT_ATTEMPTS = "connect.attempts";
+    public static final String CONNECT_FAILURES = "connect.failures";
+    public static final String CONNECT_DROPS = "connect.drops";
+    public static final String CONNECT_LATENCY = "connect.latency";
+
+    // Room keys
+    public static final String KEY_SCRYPT = "key.scrypt";
+    public static final String KEY_FAILURES = "key.failures";
+
+    // Messages
+    public static final String MSG_SENT = "msg.sent";
+    public static final String MSG_ENCRYPT = "msg.encrypt";
+    public static final String MSG_ENCRYPT_FAILURES = "msg.encrypt_failures";
+    public static final String MSG_DECRYPT = "msg.decrypt";
+    public static final String MSG_RECEIVED = "msg.received";
+    public static final String MSG_REJECTED = "msg.rejected";
+    public static final String MSG_HELD = "msg.held";
+    public static final String MSG_OVERFLOW = "msg.overflow";
+    public static final String MSG_FOREIGN = "msg.foreign";
+    public static final String MSG_DROPPED = "msg.dropped";
+
+    // Traced messages, see LatencyTracker
+    public static final String MSG_LATENCY = "msg.latency";
+    public static final String MSG_TRACED = "msg.traced";
+    public static final String MSG_GAPS = "msg.gaps";
+    public static final String MSG_REORDERS = "msg.reorders";
+    public static final String MSG_CLOCK_SKEW = "msg.clock_skew";
+
+    // Received messages between the reader and dispatch, see InboundPipeline
+    public static final String PIPELINE_STALL = "pipeline.stall";
+    public static final String PIPELINE_WAIT = "pipeline.wait";
+    public static final String PIPELINE_PROCESS = "pipeline.process";
+    public static final String PIPELINE_RESEQUENCE = "pipeline.resequence";
+    public static final String PIPELINE_DISPATCH = "pipeline.dispatch";
+
+    // Queues and UI
+    public static final String QUEUE_OUTBOUND = "queue.outbound";
+    public static final String QUEUE_HELD = "queue.held";
+    public static final String QUEUE_DECRYPT = "queue.decrypt";
+    public static final String QUEUE_UI = "queue.ui";
+    public static final String UI_APPEND = "ui.append";
+
+    private static Metrics instance;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<String>> sections = new ConcurrentHashMap<>();
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) instance = new Metrics();
+        return instance;
+    }
+
+    /**
+     * A count of events.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        void reset() {
+            value.reset();
+        }
+    }
+
+    /**
+     * A distribution of durations, recorded in microseconds.
+     * <p>
+     * Values below 16 get a bucket each. Above that each power of two is split into eight
+     * equal sub-buckets, so a bucket is never wider than an eighth of its lower bound.
+     * </p>
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int LINEAR = 1 << (SUB_BITS + 1);
+        private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records one value in microseconds, negative values count as 0.
+         */
+        public void record(long micros) {
+            long v = Math.max(0, micros);
+            buckets.incrementAndGet(bucketOf(v));
+            count.increment();
+            sum.add(v);
+            if (v > max.get()) max.accumulateAndGet(v, Math::max);
+        }
+
+        public void recordNanos(long nanos) {
+            record(nanos / 1000);
+        }
+
+        public void recordMillis(long millis) {
+            record(millis * 1000);
+        }
+
+        /**
+         * Records the time since {@code startNanos}, taken from {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            recordNanos(System.nanoTime() - startNanos);
+        }
+
+        static int bucketOf(long v) {
+            if (v < LINEAR) return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift << SUB_BITS) + (int) (v >>> shift);
+        }
+
+        /**
+         * Returns the highest value that falls in a bucket.
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket < LINEAR) return bucket;
+            int shift = (bucket >>> SUB_BITS) - 1;
+            long mantissa = (bucket & ((1 << SUB_BITS) - 1)) | (1 << SUB_BITS);
+            long next = (mantissa + 1) << shift;
+            return next <= 0 ? Long.MAX_VALUE : next - 1;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * Returns the value at or below which {@code fraction} of the recorded values fall,
+         * as the upper bound of its bucket, capped at the largest value seen.
+         *
+         * @param fraction Between 0 and 1, e.g. 0.99.
+         */
+        public long getPercentile(double fraction) {
+            // Summed from the buckets so it agrees with them even while values are being recorded
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(upperBoundOf(i), getMax());
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier one with the same name.
+     *
+     * @param supplier Read on whichever thread takes the snapshot, must be thread-safe.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Removes a gauge if it is still the one registered under its name.
+     */
+    public void removeGauge(String name, LongSupplier supplier) {
+        gauges.remove(name, supplier);
+    }
+
+    /**
+     * Registers a section of the snapshot, replacing any earlier one with the same name.
+     *
+     * @param supplier Read on whichever thread takes the snapshot, must be thread-safe.
+     */
+    public void section(String name, Supplier<String> supplier) {
+        sections.put(name, supplier);
+    }
+
+    /**
+     * Removes a section if it is still the one registered under its name.
+     */
+    public void removeSection(String name, Supplier<String> supplier) {
+        sections.remove(name, supplier);
+    }
+
+    /**
+     * Zeroes every counter and histogram, for example before comparing two runs. Gauges are left alone.
+     */
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns every metric as one line each, sorted by name, followed by the sections.
+     * <br>
+     * Histograms show their count and mean, p50, p90, p99 and max in milliseconds.
+     */
+    public String snapshot() {
+        Map<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            lines.put(e.getKey(), Long.toString(e.getValue().get()));
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            long value;
+            try {
+                value = e.getValue().getAsLong();
+            } catch (Exception ex) {
+                value = -1;
+            }
+            lines.put(e.getKey(), Long.toString(value));
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            lines.put(e.getKey(), String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms",
+                    h.getCount(), h.getMean() / 1000,
+                    h.getPercentile(0.5) / 1000.0, h.getPercentile(0.9) / 1000.0,
+                    h.getPercentile(0.99) / 1000.0, h.getMax() / 1000.0));
+        }
+
+        // Share of received messages that no open room's key authenticated
+        long received = counter(MSG_RECEIVED).get();
+        long rejected = counter(MSG_REJECTED).get();
+        lines.put(MSG_REJECTED + "_rate", String.format("%.4f",
+                received + rejected == 0 ? 0 : (double) rejected / (received + rejected)));
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : lines.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Supplier<String>> e : new TreeMap<>(sections).entrySet()) {
+            sb.append('[').append(e.getKey()).append("]\n").append(e.getValue().get());
+        }
+        return sb.toString();
+    }
+}
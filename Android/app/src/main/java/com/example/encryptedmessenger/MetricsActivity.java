@@ -0,0 +1,69 @@
+package com.example.encryptedmessenger;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+
+/**
+ * MetricsActivity is a debug screen showing the current {@link Metrics} snapshot.
+ * <p>
+ * The snapshot is refreshed every second while the screen is shown. Metrics can be reset before
+ * a run, or dumped to logcat and the metrics file after it. Opened by long-pressing the room name.
+ * </p>
+ */
+public class MetricsActivity extends AppCompatActivity {
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private TextView metricsText;
+    private MetricsReporter reporter;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            metricsText.setText(Metrics.getInstance().snapshot());
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        TextView buildText = findViewById(R.id.buildText);
+        buildText.setText(getString(R.string.metrics_build, BuildConfig.VERSION_NAME, BuildConfig.VERSION_CODE));
+        metricsText = findViewById(R.id.metricsText);
+        reporter = new MetricsReporter(this, 0);
+
+        Button resetButton = findViewById(R.id.resetButton);
+        resetButton.setOnClickListener(v -> {
+            Metrics.getInstance().reset();
+            metricsText.setText(Metrics.getInstance().snapshot());
+        });
+
+        Button dumpButton = findViewById(R.id.dumpButton);
+        dumpButton.setOnClickListener(v -> {
+            new Thread(reporter::dump, "metrics-dump").start();
+            Toast.makeText(this, getString(R.string.metrics_dumped, reporter.getFile().getPath()), Toast.LENGTH_SHORT).show();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.encryptedmessenger;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+
+/**
+ * MetricsReporter periodically writes a {@link Metrics} snapshot to logcat and to a file.
+ * <p>
+ * Each dump starts with the build's version, so logs pulled from different devices and builds
+ * can be compared. The file lives in the app's files directory and is rotated once it reaches
+ * {@code MAX_FILE_BYTES}, keeping one older file.
+ * </p>
+ */
+public final class MetricsReporter {
+    private static final String TAG = "Metrics";
+    private static final String FILE_NAME = "metrics.log";
+    private static final long MAX_FILE_BYTES = 256 * 1024;
+
+    // Reporters share the file, so writes are serialised across instances
+    private static final Object FILE_LOCK = new Object();
+
+    private final File file;
+    private final long intervalMs;
+    private Thread thread;
+
+    /**
+     * @param intervalMs Time between dumps, 0 to only dump on request.
+     */
+    public MetricsReporter(Context context, long intervalMs) {
+        this.file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+        this.intervalMs = intervalMs;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Starts dumping on a background thread, does nothing if the interval is 0.
+     */
+    public synchronized void start() {
+        if (thread != null || intervalMs <= 0) return;
+        thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(intervalMs);
+                    dump();
+                }
+            } catch (InterruptedException ignored) {}
+        }, "metrics-dump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the dump thread after writing one last snapshot.
+     */
+    public synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+        new Thread(this::dump, "metrics-dump").start();
+    }
+
+    /**
+     * Writes one snapshot now. Blocks on file I/O, call it off the main thread.
+     */
+    public void dump() {
+        String header = "--- " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()) +
+                " build=" + BuildConfig.VERSION_NAME + "(" + BuildConfig.VERSION_CODE + ")" +
+                " type=" + BuildConfig.BUILD_TYPE +
+                " uptime=" + SystemClock.elapsedRealtime() / 1000 + "s\n";
+        String snapshot = Metrics.getInstance().snapshot();
+
+        Log.i(TAG, header.trim());
+        for (String line : snapshot.split("\n")) {
+            Log.i(TAG, line);
+        }
+
+        synchronized (FILE_LOCK) {
+            try {
+                if (file.length() > MAX_FILE_BYTES) {
+                    File old = new File(file.getPath() + ".1");
+                    if (!file.renameTo(old)) Log.w(TAG, "Could not rotate " + file);
+                }
+                try (FileOutputStream out = new FileOutputStream(file, true)) {
+                    out.write(header.getBytes(StandardCharsets.UTF_8));
+                    out.write(snapshot.getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.encryptedmessenger;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * OutboundQueue is the bounded, ordered queue of chat messages waiting to be sent.
+ * <p>
+ * Messages stay queued while the connection is down and are written in order once it is back.
+ * What happens when the queue is full is decided by its {@link OverflowPolicy}, and a message
+ * whose write failed is put back at the head until it runs out of attempts.
+ * </p>
+ */
+public final class OutboundQueue {
+
+    /**
+     * What {@link #offer} does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        // Wait up to the offer timeout for space, then reject
+        BLOCK,
+        // Drop the oldest queued message to make room
+        DROP_OLDEST,
+        // Reject the new message straight away
+        REJECT
+    }
+
+    /**
+     * A queued message and the number of times it has been tried.
+     */
+    public static final class Entry {
+        public final String plaintext;
+        private int attempts = 0;
+
+        Entry(String plaintext) {
+            this.plaintext = plaintext;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private final LinkedBlockingDeque<Entry> deque;
+    private final OverflowPolicy policy;
+    private final long offerTimeoutMs;
+    private final int maxAttempts;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Called after a message is queued, so the consumer can wake up
+    private volatile Runnable onQueued;
+
+    /**
+     * @param capacity Maximum number of queued messages.
+     * @param policy What to do when the queue is full.
+     * @param offerTimeoutMs How long {@link OverflowPolicy#BLOCK} waits for space.
+     * @param maxAttempts How many times a message is written before it is given up on.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long offerTimeoutMs, int maxAttempts) {
+        this.deque = new LinkedBlockingDeque<>(capacity);
+        this.policy = policy;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the hook run after every message is queued.
+     */
+    public void setOnQueued(Runnable onQueued) {
+        this.onQueued = onQueued;
+    }
+
+    /**
+     * Queues a message at the tail.
+     *
+     * @param plaintext The message to send.
+     * @return False if the message was rejected because the queue is full.
+     * @throws InterruptedException If interrupted while waiting for space.
+     */
+    public boolean offer(String plaintext) throws InterruptedException {
+        Entry entry = new Entry(plaintext);
+        switch (policy) {
+            case BLOCK:
+                if (deque.offerLast(entry, offerTimeoutMs, TimeUnit.MILLISECONDS)) return queued();
+                break;
+            case DROP_OLDEST:
+                while (!deque.offerLast(entry)) {
+                    if (deque.pollFirst() != null) dropped.incrementAndGet();
+                }
+                return queued();
+            case REJECT:
+                if (deque.offerLast(entry)) return queued();
+                break;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Queues a message at the head, ahead of anything held while disconnected.
+     *
+     * @param plaintext The message to send.
+     * @return False if the queue is full.
+     */
+    public boolean offerFirst(String plaintext) {
+        if (deque.offerFirst(new Entry(plaintext))) return queued();
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes the next message, or returns null if the queue is empty.
+     */
+    public Entry poll() {
+        Entry entry = deque.pollFirst();
+        if (entry != null) entry.attempts++;
+        return entry;
+    }
+
+    /**
+     * Puts a message whose write failed back at the head.
+     *
+     * @param entry The entry returned by {@link #poll}.
+     * @return False if the message has used all its attempts, or there is no room, and was dropped.
+     */
+    public boolean retry(Entry entry) {
+        if (entry.attempts < maxAttempts && deque.offerFirst(entry)) return true;
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return deque.isEmpty();
+    }
+
+    public int size() {
+        return deque.size();
+    }
+
+    /**
+     * Returns the number of messages rejected or dropped so far.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void clear() {
+        deque.clear();
+    }
+
+    private boolean queued() {
+        Runnable hook = onQueued;
+        if (hook != null) hook.run();
+        return true;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.encryptedmessenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * OutboundStats counts what the outbound path puts on the wire.
+ * <p>
+ * A "write" is one flush of the socket stream, so lines per write shows how well
+ * queued lines are being coalesced into fewer syscalls and radio wake-ups.
+ * </p>
+ */
+public final class OutboundStats {
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+
+    /**
+     * Records one flushed batch.
+     *
+     * @param batchBytes Bytes written in the batch.
+     * @param batchLines Lines written in the batch.
+     */
+    void recordWrite(long batchBytes, long batchLines) {
+        bytes.addAndGet(batchBytes);
+        lines.addAndGet(batchLines);
+        writes.incrementAndGet();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getLines() {
+        return lines.get();
+    }
+
+    public double getLinesPerWrite() {
+        long w = writes.get();
+        return w == 0 ? 0 : (double) lines.get() / w;
+    }
+
+    @Override
+    public String toString() {
+        return "bytes=" + getBytes() +
+                " writes=" + getWrites() +
+                " lines=" + getLines() +
+                String.format(" linesPerWrite=%.2f", getLinesPerWrite());
+    }
+}
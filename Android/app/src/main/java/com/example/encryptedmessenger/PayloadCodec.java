@@ -0,0 +1,159 @@
+package com.example.encryptedmessenger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * PayloadCodec optionally compresses a message's plaintext before it is encrypted.
+ * <p>
+ * A compressed plaintext starts with a zero byte, which UTF-8 chat text never does, then a
+ * method byte, then the data:
+ * <br>
+ * 1. {@code METHOD_STORED}, the rest is the plaintext as it is. Used only for the rare plaintext
+ * that itself starts with a zero byte.
+ * <br>
+ * 2. {@code METHOD_DEFLATE}, the rest is raw Deflate primed with {@link #DICTIONARY}.
+ * </p>
+ * <p>
+ * Plaintexts shorter than the threshold, or that do not get smaller, are sent as they are, so
+ * short messages cost nothing extra. Decoding always understands both forms, whether or not
+ * this side compresses.
+ * </p>
+ * <p>
+ * The dictionary is part of the wire format and must match the Windows client's byte for byte.
+ * Instances are NOT thread-safe, each {@link CipherSession} owns its own.
+ * </p>
+ */
+final class PayloadCodec {
+    static final byte MARKER = 0;
+    static final byte METHOD_STORED = 0;
+    static final byte METHOD_DEFLATE = 1;
+    static final int HEADER_SIZE = 2;
+
+    // Largest plaintext a compressed payload may expand to, same as the longest line accepted
+    static final int MAX_DECODED_SIZE = 1024 * 1024;
+
+    // Common chat text, most frequent last since Deflate reaches recent bytes with shorter codes
+    static final byte[] DICTIONARY = (
+            "https://www. .com http:// because about would could should really think going"
+                    + " there their they're what when where which with have this that from just"
+                    + " know like okay yeah sure thanks thank you please sorry message room chat"
+                    + " tomorrow today tonight later morning see you soon I'm I'll don't can't"
+                    + " it's that's what's lol haha ok yes no the and for are but not you all"
+                    + " has left the chat room"
+                    + " has entered the chat room"
+                    + ": ").getBytes(StandardCharsets.UTF_8);
+
+    private final int minBytes;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] out = new byte[1024];
+
+    /**
+     * @param minBytes Plaintexts shorter than this are never compressed.
+     */
+    PayloadCodec(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * Returns true if a decrypted plaintext was encoded by {@link #encode} and needs {@link #decode}.
+     */
+    static boolean isEncoded(byte[] in, int off, int len) {
+        return len > 0 && in[off] == MARKER;
+    }
+
+    /**
+     * Compresses a plaintext if it is long enough and gets smaller.
+     *
+     * @return Length of the encoded plaintext in {@link #buffer()}, or -1 to send the plaintext as it is.
+     */
+    int encode(byte[] in, int off, int len) {
+        boolean mustMark = len > 0 && in[off] == MARKER;
+        if (len >= minBytes && len > HEADER_SIZE) {
+            int n = deflate(in, off, len);
+            if (n >= 0) return n;
+        }
+        if (!mustMark) return -1;
+
+        // Keep a leading zero byte from being read as the marker
+        out = ensure(out, len + HEADER_SIZE);
+        out[0] = MARKER;
+        out[1] = METHOD_STORED;
+        System.arraycopy(in, off, out, HEADER_SIZE, len);
+        return len + HEADER_SIZE;
+    }
+
+    /**
+     * Returns the length written to {@link #buffer()}, or -1 if the output would not be smaller.
+     */
+    private int deflate(byte[] in, int off, int len) {
+        out = ensure(out, len);
+        out[0] = MARKER;
+        out[1] = METHOD_DEFLATE;
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(in, off, len);
+        deflater.finish();
+        int n = deflater.deflate(out, HEADER_SIZE, len - HEADER_SIZE);
+        // Ran out of room before finishing, so it would not have been smaller
+        if (!deflater.finished()) return -1;
+        return n + HEADER_SIZE;
+    }
+
+    /**
+     * Restores a plaintext that {@link #isEncoded} reported as encoded.
+     *
+     * @return Length of the plaintext in {@link #buffer()}.
+     * @throws IllegalArgumentException If the method is unknown, the data is corrupt, or it
+     * expands past {@code MAX_DECODED_SIZE}.
+     */
+    int decode(byte[] in, int off, int len) {
+        if (len < HEADER_SIZE) throw new IllegalArgumentException("encoded payload too short");
+        byte method = in[off + 1];
+
+        if (method == METHOD_STORED) {
+            out = ensure(out, len - HEADER_SIZE);
+            System.arraycopy(in, off + HEADER_SIZE, out, 0, len - HEADER_SIZE);
+            return len - HEADER_SIZE;
+        }
+        if (method != METHOD_DEFLATE) throw new IllegalArgumentException("unknown payload method " + method);
+
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(in, off + HEADER_SIZE, len - HEADER_SIZE);
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (out.length >= MAX_DECODED_SIZE) throw new IllegalArgumentException("payload expands too far");
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_DECODED_SIZE));
+                }
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated payload");
+                }
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt payload", e);
+        }
+        return n;
+    }
+
+    /**
+     * Holds the output of the last {@link #encode} or {@link #decode}, until the next call.
+     */
+    byte[] buffer() {
+        return out;
+    }
+
+    private static byte[] ensure(byte[] buf, int size) {
+        return buf.length >= size ? buf : new byte[Math.max(size, buf.length * 2)];
+    }
+}
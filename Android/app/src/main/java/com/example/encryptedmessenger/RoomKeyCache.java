@@ -0,0 +1,210 @@
+package com.example.encryptedmessenger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+
+/**
+ * RoomKeyCache memoises scrypt room keys so a room only pays for derivation once.
+ * <p>
+ * 1. An in-memory LRU tier that lives for the process.
+ * <br>
+ * 2. An optional on-disk tier, enabled with KEY_CACHE_PERSIST, where keys are stored
+ * encrypted with an AES-GCM key held in the Android Keystore.
+ * </p>
+ * <p>
+ * Entries are keyed by the room name alone, one per room. Each holds the key with a hash of the
+ * passphrase, checked on every lookup, so a changed passphrase misses the cache instead of
+ * returning a stale key. On disk the hash is encrypted along with the key, so the stored
+ * entries cannot be used to test passphrases without the device's Keystore key and scrypt.
+ * </p>
+ */
+public final class RoomKeyCache {
+    private static final String TAG = "RoomKeyCache";
+
+    private static final int MAX_MEMORY_ENTRIES = 16;
+    private static final String PREFS_NAME = "RoomKeyCache";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String WRAP_KEY_ALIAS = "room_key_cache";
+    private static final String WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_BITS = 128;
+
+    // Each entry is the 32-byte room key followed by the 32-byte passphrase check
+    private static final int KEY_SIZE = 32;
+
+    private static final Metrics.Histogram KEY_SCRYPT = Metrics.getInstance().histogram(Metrics.KEY_SCRYPT);
+
+    private static RoomKeyCache instance;
+
+    private final SharedPreferences prefs;
+    private final boolean persistent;
+
+    // Room to key and passphrase check, access-ordered, evicts the least recently used room
+    private final Map<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    };
+
+    private RoomKeyCache(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.persistent = AppConfig.isKeyCachePersistent();
+    }
+
+    public static synchronized RoomKeyCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new RoomKeyCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the room key, deriving and caching it on a miss.
+     *
+     * @param room The chat room name.
+     * @param passphrase The room passphrase.
+     * @return 32-byte room key.
+     * @throws Exception If key derivation fails.
+     */
+    public byte[] getOrDerive(String room, String passphrase) throws Exception {
+        byte[] check = passphraseCheck(room, passphrase);
+
+        synchronized (this) {
+            // Memory tier
+            byte[] entry = memory.get(room);
+            if (entry != null && matches(entry, check)) return Arrays.copyOf(entry, KEY_SIZE);
+
+            // Disk tier
+            entry = persistent ? readFromDisk(room) : null;
+            if (entry != null && matches(entry, check)) {
+                memory.put(room, entry);
+                return Arrays.copyOf(entry, KEY_SIZE);
+            }
+        }
+
+        // Derive outside the lock so other rooms are not held up by scrypt
+        long start = System.nanoTime();
+        byte[] key = EncryptionHelper.deriveRoomKey(room, passphrase);
+        KEY_SCRYPT.recordSince(start);
+
+        // Replaces the room's entry if it was for another passphrase
+        byte[] entry = new byte[KEY_SIZE + check.length];
+        System.arraycopy(key, 0, entry, 0, KEY_SIZE);
+        System.arraycopy(check, 0, entry, KEY_SIZE, check.length);
+        synchronized (this) {
+            memory.put(room, entry);
+            if (persistent) writeToDisk(room, entry);
+        }
+        return key;
+    }
+
+    /**
+     * Drops the cached key for a room from both tiers.
+     *
+     * @param room The chat room name.
+     */
+    public synchronized void invalidate(String room) {
+        memory.remove(room);
+        prefs.edit().remove(room).apply();
+    }
+
+    /**
+     * Drops every cached key.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        prefs.edit().clear().apply();
+    }
+
+    /**
+     * Hashes the room and passphrase, stored with the key to tell whether a lookup's passphrase matches.
+     * <br>
+     * Only ever written to disk encrypted with the Keystore key.
+     */
+    private static byte[] passphraseCheck(String room, String passphrase) throws Exception {
+        MessageDigest d = MessageDigest.getInstance("SHA-256");
+        d.update(room.getBytes(StandardCharsets.UTF_8));
+        d.update((byte) 0);
+        return d.digest(passphrase.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compares an entry's passphrase check in constant time.
+     */
+    private static boolean matches(byte[] entry, byte[] check) {
+        return entry.length == KEY_SIZE + check.length &&
+                MessageDigest.isEqual(Arrays.copyOfRange(entry, KEY_SIZE, entry.length), check);
+    }
+
+    private byte[] readFromDisk(String entry) {
+        String stored = prefs.getString(entry, null);
+        if (stored == null) return null;
+        try {
+            byte[] raw = Base64.decode(stored, Base64.NO_WRAP);
+            Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getWrapKey(), new GCMParameterSpec(GCM_TAG_BITS, raw, 0, GCM_IV_SIZE));
+            return cipher.doFinal(raw, GCM_IV_SIZE, raw.length - GCM_IV_SIZE);
+        } catch (Exception e) {
+            // Unreadable entry (e.g. Keystore key was reset), fall back to deriving
+            Log.w(TAG, "Dropping unreadable cached key", e);
+            prefs.edit().remove(entry).apply();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String entry, byte[] value) {
+        try {
+            Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, getWrapKey());
+            byte[] iv = cipher.getIV();
+            byte[] ct = cipher.doFinal(value);
+
+            byte[] raw = new byte[iv.length + ct.length];
+            System.arraycopy(iv, 0, raw, 0, iv.length);
+            System.arraycopy(ct, 0, raw, iv.length, ct.length);
+            prefs.edit().putString(entry, Base64.encodeToString(raw, Base64.NO_WRAP)).apply();
+        } catch (Exception e) {
+            // Disk tier is best effort, the memory tier still holds the key
+            Log.w(TAG, "Could not persist room key", e);
+        }
+    }
+
+    /**
+     * Loads the Keystore wrapping key, creating it on first use.
+     */
+    private static SecretKey getWrapKey() throws Exception {
+        KeyStore ks = KeyStore.getInstance(KEYSTORE);
+        ks.load(null);
+        if (ks.containsAlias(WRAP_KEY_ALIAS)) {
+            return ((KeyStore.SecretKeyEntry) ks.getEntry(WRAP_KEY_ALIAS, null)).getSecretKey();
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(
+                WRAP_KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.encryptedmessenger;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.encryptedmessenger.DatabaseHelper.SavedLogin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * SavedLoginsAdapter shows the saved logins as cards with connect and delete buttons.
+ * <p>
+ * Deleting a login removes just its row, the rest of the list is left as it is.
+ * </p>
+ */
+final class SavedLoginsAdapter extends RecyclerView.Adapter<SavedLoginsAdapter.Holder> {
+
+    /**
+     * Button presses on a row.
+     */
+    interface Listener {
+        void onConnect(SavedLogin login);
+
+        void onDelete(SavedLogin login);
+    }
+
+    private final List<SavedLogin> items = new ArrayList<>();
+    private final Listener listener;
+
+    static final class Holder extends RecyclerView.ViewHolder {
+        final TextView roomText;
+        final TextView passwordText;
+        final Button connectButton;
+        final Button deleteButton;
+
+        Holder(View view) {
+            super(view);
+            roomText = view.findViewById(R.id.roomText);
+            passwordText = view.findViewById(R.id.passwordText);
+            connectButton = view.findViewById(R.id.connectButton);
+            deleteButton = view.findViewById(R.id.deleteButton);
+        }
+    }
+
+    SavedLoginsAdapter(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the whole list, used once the logins have loaded.
+     */
+    void setItems(List<SavedLogin> logins) {
+        items.clear();
+        items.addAll(logins);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Removes one login's row.
+     */
+    void remove(SavedLogin login) {
+        int position = items.indexOf(login);
+        if (position < 0) return;
+        items.remove(position);
+        notifyItemRemoved(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size();
+    }
+
+    @NonNull
+    @Override
+    public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_saved_login, parent, false);
+        return new Holder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull Holder holder, int position) {
+        SavedLogin login = items.get(position);
+        holder.roomText.setText(holder.itemView.getContext().getString(R.string.saved_room, login.room));
+        holder.passwordText.setText(holder.itemView.getContext().getString(R.string.saved_password, login.password));
+        holder.connectButton.setOnClickListener(v -> listener.onConnect(login));
+        holder.deleteButton.setOnClickListener(v -> listener.onDelete(login));
+    }
+}
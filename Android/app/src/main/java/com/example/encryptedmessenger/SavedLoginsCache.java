@@ -0,0 +1,148 @@
+package com.example.encryptedmessenger;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.encryptedmessenger.DatabaseHelper.SavedLogin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * SavedLoginsCache keeps the saved logins table in memory for LoginActivity and SavedLoginsActivity.
+ * <p>
+ * 1. The table is read once, on a background thread, and every later change updates the copy
+ * in memory instead of reading the table again.
+ * <br>
+ * 2. Reads and writes run in order on one worker thread, so a save or delete made before the
+ * first load has finished is never lost or shown twice.
+ * <br>
+ * 3. Callers get an unmodifiable snapshot, delivered on the main thread.
+ * </p>
+ */
+public final class SavedLoginsCache {
+    private static final String TAG = "SavedLoginsCache";
+
+    /**
+     * Receives the saved logins on the main thread.
+     */
+    interface Callback {
+        void onLoaded(List<SavedLogin> logins);
+    }
+
+    private static SavedLoginsCache instance;
+
+    private final DatabaseHelper helper;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+    // Room to login in table order, worker thread only, null until first read
+    private LinkedHashMap<String, SavedLogin> logins;
+
+    // Latest published copy of logins
+    private volatile List<SavedLogin> snapshot;
+
+    private SavedLoginsCache(Context context) {
+        helper = new DatabaseHelper(context);
+
+        Thread worker = new Thread(this::workLoop, "saved-logins");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static synchronized SavedLoginsCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new SavedLoginsCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Starts reading the table in the background so the saved logins screen opens with it ready.
+     */
+    void prefetch() {
+        if (snapshot == null) tasks.add(this::ensureLoaded);
+    }
+
+    /**
+     * Delivers the saved logins on the main thread, straight away if they are already in memory.
+     * <br>
+     * Call from the main thread.
+     */
+    void load(Callback callback) {
+        List<SavedLogin> current = snapshot;
+        if (current != null) {
+            callback.onLoaded(current);
+            return;
+        }
+
+        tasks.add(() -> {
+            try {
+                ensureLoaded();
+            } catch (Exception e) {
+                Log.w(TAG, "Could not read saved logins", e);
+            }
+            List<SavedLogin> loaded = snapshot == null ? Collections.emptyList() : snapshot;
+            mainHandler.post(() -> callback.onLoaded(loaded));
+        });
+    }
+
+    /**
+     * Saves or replaces a room's login. A replaced login moves to the end, as it does in the table.
+     */
+    void save(String room, String password) {
+        tasks.add(() -> {
+            if (!helper.insertLogin(room, password) || logins == null) return;
+            logins.remove(room);
+            logins.put(room, new SavedLogin(room, password));
+            publish();
+        });
+    }
+
+    /**
+     * Deletes a room's login.
+     */
+    void delete(String room) {
+        tasks.add(() -> {
+            helper.deleteLogin(room);
+            if (logins != null && logins.remove(room) != null) publish();
+        });
+    }
+
+    private void ensureLoaded() {
+        if (logins != null) return;
+        LinkedHashMap<String, SavedLogin> loaded = new LinkedHashMap<>();
+        for (SavedLogin login : helper.loadLogins()) {
+            loaded.put(login.room, login);
+        }
+        logins = loaded;
+        publish();
+    }
+
+    private void publish() {
+        snapshot = Collections.unmodifiableList(new ArrayList<>(logins.values()));
+    }
+
+    private void workLoop() {
+        while (true) {
+            Runnable task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.w(TAG, "Saved logins task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.encryptedmessenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * SchemaMigrations is the ordered list of schema changes for {@link DatabaseHelper}.
+ * <p>
+ * 1. Version 1 is the baseline schema, the saved logins table.
+ * <br>
+ * 2. Every later version is one {@link Migration}: a short list of SQL statements that only
+ * add to the schema, such as a table, an index or a column with a default.
+ * <br>
+ * 3. A new database runs the baseline and then every migration, an upgrade runs only the
+ * migrations above its current version. Both paths therefore end in the same schema.
+ * </p>
+ * <p>
+ * The schema version is kept in its own table, {@link #VERSION_TABLE}, not in SQLiteOpenHelper's
+ * version. That one comes from the configured DB_VERSION, which older builds told users to bump,
+ * so it says nothing about which tables exist. A database without the version table only has
+ * the baseline for certain, so every migration is run on it. The migrations written before the
+ * table existed are therefore idempotent. Later ones only ever run once.
+ * </p>
+ * <p>
+ * Callers run {@link #migrate} in one transaction, so a failed step leaves the database at its old
+ * version with its data intact. A new schema change is a new entry at the end of {@link #build},
+ * never an edit to an existing one.
+ * </p>
+ * <p>
+ * It has no Android dependencies, so the scripts can be run against any SQLite on the JVM.
+ * </p>
+ */
+final class SchemaMigrations {
+
+    /**
+     * Runs one SQL statement, for example {@code SQLiteDatabase::execSQL}.
+     */
+    interface Executor {
+        void execSQL(String sql);
+    }
+
+    /**
+     * Runs a query returning one number, for example {@code DatabaseUtils.longForQuery}.
+     */
+    interface Query {
+        long longForQuery(String sql);
+    }
+
+    /**
+     * The statements that take the schema from {@code version - 1} to {@code version}.
+     */
+    static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+
+    static final int BASE_VERSION = 1;
+    static final String VERSION_TABLE = "schema_version";
+
+    private final String[] baseline;
+    private final List<Migration> migrations;
+
+    /**
+     * @param loginsTable Saved logins table name, from the app config.
+     * @param colId Its ID column.
+     * @param colRoom Its room column.
+     * @param colPassword Its password column.
+     */
+    SchemaMigrations(String loginsTable, String colId, String colRoom, String colPassword) {
+        baseline = new String[]{
+                "CREATE TABLE " + loginsTable + " (" +
+                        colId + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        colRoom + " TEXT UNIQUE, " +
+                        colPassword + " TEXT)"
+        };
+        migrations = Collections.unmodifiableList(build());
+    }
+
+    /**
+     * Every schema change after the baseline, in version order.
+     */
+    private static List<Migration> build() {
+        List<Migration> list = new ArrayList<>();
+
+        // Rooms are identified by their routing token, never by name. The (room, timestamp)
+        // index also holds the row id, so it serves keyset paging on (timestamp, id) without a sort.
+        // Predates the version table, so it must stay idempotent.
+        list.add(new Migration(2, "encrypted message history",
+                "CREATE TABLE IF NOT EXISTS " + DatabaseHelper.MESSAGES_TABLE + " (" +
+                        DatabaseHelper.MSG_ID + " INTEGER PRIMARY KEY, " +
+                        DatabaseHelper.MSG_ROOM_TOKEN + " TEXT NOT NULL, " +
+                        DatabaseHelper.MSG_TIMESTAMP + " INTEGER NOT NULL, " +
+                        DatabaseHelper.MSG_PAYLOAD + " BLOB NOT NULL)",
+                "CREATE INDEX IF NOT EXISTS idx_messages_room_time ON " + DatabaseHelper.MESSAGES_TABLE +
+                        " (" + DatabaseHelper.MSG_ROOM_TOKEN + ", " + DatabaseHelper.MSG_TIMESTAMP + ")"));
+
+        return list;
+    }
+
+    /**
+     * Returns the version a fully migrated database is at.
+     */
+    int getLatestVersion() {
+        return migrations.isEmpty() ? BASE_VERSION : migrations.get(migrations.size() - 1).version;
+    }
+
+    List<Migration> getMigrations() {
+        return migrations;
+    }
+
+    /**
+     * Creates the latest schema in an empty database and records its version.
+     */
+    void create(Executor db) {
+        create(db, getLatestVersion());
+        setVersion(db, getLatestVersion());
+    }
+
+    /**
+     * Creates the schema as it was at {@code version} in an empty database, as an older app would have,
+     * without the version table.
+     */
+    void create(Executor db, int version) {
+        for (String sql : baseline) {
+            db.execSQL(sql);
+        }
+        upgrade(db, BASE_VERSION, version);
+    }
+
+    /**
+     * Brings an existing database up to the latest schema and records its version.
+     * <br>
+     * Safe to run on every open, it does nothing once the database is up to date.
+     *
+     * @return Number of migrations run.
+     */
+    int migrate(Executor db, Query query) {
+        int version = getVersion(query);
+        int latest = getLatestVersion();
+        if (version >= latest) return 0;
+
+        int run = upgrade(db, version, latest);
+        setVersion(db, latest);
+        return run;
+    }
+
+    /**
+     * Returns the recorded schema version, or {@code BASE_VERSION} if there is no version table.
+     */
+    int getVersion(Query query) {
+        long tables = query.longForQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = '" +
+                VERSION_TABLE + "'");
+        if (tables == 0) return BASE_VERSION;
+        return (int) query.longForQuery("SELECT COALESCE(MAX(version), " + BASE_VERSION + ") FROM " + VERSION_TABLE);
+    }
+
+    private static void setVersion(Executor db, int version) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (version INTEGER NOT NULL)");
+        db.execSQL("DELETE FROM " + VERSION_TABLE);
+        db.execSQL("INSERT INTO " + VERSION_TABLE + " (version) VALUES (" + version + ")");
+    }
+
+    /**
+     * Runs every migration above {@code fromVersion}, up to and including {@code toVersion}, in order.
+     *
+     * @return Number of migrations run.
+     */
+    int upgrade(Executor db, int fromVersion, int toVersion) {
+        int run = 0;
+        for (Migration migration : migrations) {
+            if (migration.version <= fromVersion || migration.version > toVersion) continue;
+            for (String sql : migration.statements) {
+                db.execSQL(sql);
+            }
+            run++;
+        }
+        return run;
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.encryptedmessenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * UiBatchStats counts how incoming messages are coalesced into UI frames.
+ * <p>
+ * A "frame" is one drain of {@link MessageBatcher}, so messages per frame shows how much of
+ * a burst was applied with a single list update and scroll.
+ * </p>
+ */
+public final class UiBatchStats {
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong maxPerFrame = new AtomicLong();
+    private final AtomicLong applyNanos = new AtomicLong();
+
+    /**
+     * Records one drained frame.
+     *
+     * @param frameMessages Messages applied in the frame.
+     * @param frameApplyNanos Time spent applying them to the list.
+     */
+    void recordFrame(int frameMessages, long frameApplyNanos) {
+        frames.incrementAndGet();
+        messages.addAndGet(frameMessages);
+        applyNanos.addAndGet(frameApplyNanos);
+        maxPerFrame.accumulateAndGet(frameMessages, Math::max);
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getMaxPerFrame() {
+        return maxPerFrame.get();
+    }
+
+    public double getMessagesPerFrame() {
+        long f = frames.get();
+        return f == 0 ? 0 : (double) messages.get() / f;
+    }
+
+    public double getAverageApplyMs() {
+        long f = frames.get();
+        return f == 0 ? 0 : applyNanos.get() / 1e6 / f;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + getFrames() +
+                " messages=" + getMessages() +
+                " maxPerFrame=" + getMaxPerFrame() +
+                String.format(" messagesPerFrame=%.2f avgApplyMs=%.3f", getMessagesPerFrame(), getAverageApplyMs());
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs {@link ConnectionEngine} against a blocking loopback server on the same JVM.
+ */
+public class ConnectionEngineTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private ServerSocketChannel server;
+    private ConnectionEngine engine;
+    private OutboundQueue queue;
+
+    /**
+     * Records every callback as a short string, in the order the event loop made them.
+     */
+    private final ConnectionEngine.Listener listener = new ConnectionEngine.Listener() {
+        @Override
+        public void onConnecting() {
+            events.add("connecting");
+        }
+
+        @Override
+        public void onConnected() {
+            events.add("connected");
+        }
+
+        @Override
+        public void onLine(String line) {
+            events.add("line:" + line);
+        }
+
+        @Override
+        public void onPayload(byte[] buf, int off, int len) {}
+
+        @Override
+        public void onRoomPayload(byte[] buf, int off, int len) {}
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            events.add("disconnected");
+        }
+
+        @Override
+        public String onHeartbeat(ConnectionEngine.Stream stream) {
+            return null;
+        }
+
+        @Override
+        public void onMessageDropped(ConnectionEngine.Stream stream, String plaintext, Exception cause) {
+            events.add("dropped:" + plaintext);
+        }
+    };
+
+    /**
+     * Sends each message as it is, so the server sees the plaintext.
+     */
+    private static final ConnectionEngine.Encoder PLAIN = new ConnectionEngine.Encoder() {
+        @Override
+        public String encode(String plaintext) {
+            return plaintext;
+        }
+
+        @Override
+        public int encodeFrame(String plaintext, ByteBuffer out) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        // A small receive window so a large write cannot complete until the server reads
+        server.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        engine = new ConnectionEngine("127.0.0.1", server.socket().getLocalPort(), listener,
+                new HeartbeatScheduler(HeartbeatScheduler.Clock.SYSTEM, new Random(1)));
+        engine.setHeartbeatIntervalMs(60_000);
+        engine.setReconnectBackoff(10, 20);
+        queue = new OutboundQueue(16, OutboundQueue.OverflowPolicy.REJECT, 0, 3);
+        engine.addStream(queue, PLAIN).setPaused(false);
+        engine.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.stop();
+        server.close();
+    }
+
+    @Test
+    public void largeMessageIsWrittenAcrossPartialWrites() throws Exception {
+        BufferedReader in = reader(accept());
+
+        char[] body = new char[4 * 1024 * 1024];
+        Arrays.fill(body, 'x');
+        String large = new String(body);
+        assertTrue(queue.offer(large));
+        assertTrue(queue.offer("after"));
+
+        // Nothing is read yet, so the batch is still waiting on the socket
+        assertFalse(engine.awaitIdle(200));
+
+        assertEquals(large, in.readLine());
+        assertEquals("after", in.readLine());
+        assertTrue(engine.awaitIdle(TIMEOUT_MS));
+        assertEquals(2, engine.getStats().getLines());
+    }
+
+    @Test
+    public void linesAreReassembledAcrossReads() throws Exception {
+        SocketChannel client = accept();
+        byte[] cafe = "caf\u00e9\n".getBytes(StandardCharsets.UTF_8);
+        char[] longLine = new char[40_000];
+        Arrays.fill(longLine, 'y');
+
+        send(client, "hel".getBytes(StandardCharsets.UTF_8));
+        send(client, "lo\nwor".getBytes(StandardCharsets.UTF_8));
+        send(client, "ld\r\n".getBytes(StandardCharsets.UTF_8));
+        // Split inside the two bytes of the accented e
+        send(client, Arrays.copyOfRange(cafe, 0, 4));
+        send(client, Arrays.copyOfRange(cafe, 4, cafe.length));
+        // Longer than the read buffer, which has to grow to hold it
+        send(client, (new String(longLine) + "\n").getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("line:hello", next());
+        assertEquals("line:world", next());
+        assertEquals("line:caf\u00e9", next());
+        assertEquals("line:" + new String(longLine), next());
+    }
+
+    @Test
+    public void reconnectsAfterTheServerCloses() throws Exception {
+        SocketChannel first = accept();
+        first.close();
+        assertEquals("disconnected", next());
+
+        // Queued while down, sent once the connection is back
+        assertTrue(queue.offer("held"));
+
+        SocketChannel second = accept();
+        assertEquals("held", reader(second).readLine());
+        assertTrue(engine.isConnected());
+    }
+
+    /**
+     * Accepts the engine's next connection and waits for it to report connected.
+     */
+    private SocketChannel accept() throws InterruptedException, IOException {
+        assertEquals("connecting", next());
+        SocketChannel client = server.accept();
+        assertEquals("connected", next());
+        return client;
+    }
+
+    private String next() throws InterruptedException {
+        String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("timed out waiting for the engine", event);
+        return event;
+    }
+
+    private static void send(SocketChannel client, byte[] data) throws InterruptedException, IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) client.write(buf);
+        // Give the engine time to read each piece on its own
+        Thread.sleep(20);
+    }
+
+    private static BufferedReader reader(SocketChannel client) {
+        return new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Checks which subscribers of an {@link EventBus} receive an event, and on which executor.
+ * <br>
+ * Each test uses its own bus so the process-wide one is left alone.
+ */
+public class EventBusTest {
+
+    static class Event {
+        final String name;
+
+        Event(String name) {
+            this.name = name;
+        }
+    }
+
+    static final class SpecialEvent extends Event {
+        SpecialEvent(String name) {
+            super(name);
+        }
+    }
+
+    private final EventBus bus = new EventBus();
+    private final List<String> received = new ArrayList<>();
+
+    @Test
+    public void eventsGoOnlyToSubscribersOfTheirExactClass() {
+        bus.subscribe(Event.class, EventBus.POSTING, e -> received.add("event:" + e.name));
+        bus.subscribe(SpecialEvent.class, EventBus.POSTING, e -> received.add("special:" + e.name));
+        bus.subscribe(String.class, EventBus.POSTING, s -> received.add("string:" + s));
+
+        bus.post(new Event("a"));
+        bus.post(new SpecialEvent("b"));
+        bus.post(42);
+
+        assertEquals(List.of("event:a", "special:b"), received);
+    }
+
+    @Test
+    public void subscribersRunInTheOrderTheySubscribed() {
+        bus.subscribe(Event.class, EventBus.POSTING, e -> received.add("first:" + e.name));
+        bus.subscribe(Event.class, EventBus.POSTING, e -> received.add("second:" + e.name));
+
+        bus.post(new Event("a"));
+        bus.post(new Event("b"));
+
+        assertEquals(List.of("first:a", "second:a", "first:b", "second:b"), received);
+    }
+
+    @Test
+    public void unsubscribedSubscriberGetsNothingMore() {
+        EventBus.Subscription<Event> first = bus.subscribe(Event.class, EventBus.POSTING,
+                e -> received.add("first:" + e.name));
+        bus.subscribe(Event.class, EventBus.POSTING, e -> received.add("second:" + e.name));
+
+        bus.post(new Event("a"));
+        bus.unsubscribe(first);
+        bus.post(new Event("b"));
+        // Unsubscribing twice changes nothing
+        bus.unsubscribe(first);
+        bus.post(new Event("c"));
+
+        assertEquals(List.of("first:a", "second:a", "second:b", "second:c"), received);
+    }
+
+    @Test
+    public void executorSubscriberRunsOnlyWhenItsExecutorDoes() {
+        List<Runnable> tasks = new ArrayList<>();
+        bus.subscribe(Event.class, tasks::add, e -> received.add("deferred:" + e.name));
+        bus.subscribe(Event.class, EventBus.POSTING, e -> received.add("posting:" + e.name));
+
+        bus.post(new Event("a"));
+        bus.post(new Event("b"));
+        assertEquals(List.of("posting:a", "posting:b"), received);
+        assertEquals(2, tasks.size());
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        assertEquals(List.of("posting:a", "posting:b", "deferred:a", "deferred:b"), received);
+    }
+
+    @Test
+    public void failingSubscriberDoesNotStopTheOthers() {
+        bus.subscribe(Event.class, EventBus.POSTING, e -> {
+            throw new IllegalStateException("subscriber failed");
+        });
+        bus.subscribe(Event.class, EventBus.POSTING, e -> received.add("after:" + e.name));
+
+        bus.post(new Event("a"));
+
+        assertEquals(List.of("after:a"), received);
+    }
+
+    @Test
+    public void postingWithoutSubscribersDoesNothing() {
+        bus.post(new Event("a"));
+        assertTrue(received.isEmpty());
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+
+/**
+ * Steps {@link HeartbeatScheduler} through time with a virtual clock.
+ */
+public class HeartbeatSchedulerTest {
+    private static final long UNMETERED_MS = 5000;
+    private static final long CELLULAR_MS = 10_000;
+
+    /**
+     * Time moves only when the test says so.
+     */
+    private static final class FakeClock implements HeartbeatScheduler.Clock {
+        long now = 1_000_000;
+
+        @Override
+        public long nowMs() {
+            return now;
+        }
+
+        void advance(long ms) {
+            now += ms;
+        }
+    }
+
+    /**
+     * Jitter fixed at one value, 0 picks the shortest delay and just under 1 the longest.
+     */
+    private static final class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+
+    private HeartbeatScheduler scheduler(double jitter) {
+        HeartbeatScheduler scheduler = new HeartbeatScheduler(clock, new FixedRandom(jitter));
+        scheduler.setIntervalMs(UNMETERED_MS);
+        return scheduler;
+    }
+
+    @Test
+    public void newRoomIsDueAtOnce() {
+        HeartbeatScheduler scheduler = scheduler(0);
+        assertEquals(HeartbeatScheduler.NEVER, scheduler.dueAt(HeartbeatScheduler.NEVER));
+        assertTrue(scheduler.isDue(HeartbeatScheduler.NEVER, clock.nowMs()));
+    }
+
+    @Test
+    public void heartbeatDueOneIntervalAfterLastActivity() {
+        HeartbeatScheduler scheduler = scheduler(0);
+        long sentAt = scheduler.now();
+
+        clock.advance(UNMETERED_MS - 1);
+        assertFalse(scheduler.isDue(sentAt, scheduler.now()));
+        clock.advance(1);
+        assertTrue(scheduler.isDue(sentAt, scheduler.now()));
+    }
+
+    @Test
+    public void intervalFollowsTheNetwork() {
+        HeartbeatScheduler scheduler = scheduler(0);
+        long sentAt = scheduler.now();
+
+        // Cellular, the same heartbeat moves out to the longer interval
+        scheduler.setIntervalMs(CELLULAR_MS);
+        clock.advance(UNMETERED_MS);
+        assertFalse(scheduler.isDue(sentAt, scheduler.now()));
+        assertEquals(sentAt + CELLULAR_MS, scheduler.dueAt(sentAt));
+        clock.advance(CELLULAR_MS - UNMETERED_MS);
+        assertTrue(scheduler.isDue(sentAt, scheduler.now()));
+
+        // Back on an unmetered network, an overdue heartbeat goes straight away
+        sentAt = scheduler.now();
+        clock.advance(UNMETERED_MS + 1);
+        scheduler.setIntervalMs(CELLULAR_MS);
+        assertFalse(scheduler.isDue(sentAt, scheduler.now()));
+        scheduler.setIntervalMs(UNMETERED_MS);
+        assertTrue(scheduler.isDue(sentAt, scheduler.now()));
+    }
+
+    @Test
+    public void outgoingMessagesReplaceHeartbeats() {
+        HeartbeatScheduler scheduler = scheduler(0);
+        long lastActivity = scheduler.now();
+        int heartbeats = 0;
+
+        // A message every 3 s keeps the room active, so no heartbeat is ever due
+        for (int i = 0; i < 20; i++) {
+            clock.advance(3000);
+            if (scheduler.isDue(lastActivity, scheduler.now())) heartbeats++;
+            lastActivity = scheduler.now();
+        }
+        assertEquals(0, heartbeats);
+
+        // Once the room goes quiet, heartbeats resume one interval after the last message
+        clock.advance(UNMETERED_MS);
+        assertTrue(scheduler.isDue(lastActivity, scheduler.now()));
+    }
+
+    @Test
+    public void reconnectDelayDoublesUpToTheCap() {
+        HeartbeatScheduler longest = scheduler(0.999999);
+        longest.setBackoff(1000, 8000);
+        long[] expected = {1000, 2000, 4000, 8000, 8000, 8000};
+        for (long ceiling : expected) {
+            assertEquals(ceiling, longest.nextReconnectDelayMs());
+        }
+        assertEquals(expected.length, longest.getFailures());
+
+        HeartbeatScheduler shortest = scheduler(0);
+        shortest.setBackoff(1000, 8000);
+        for (long ceiling : expected) {
+            assertEquals(ceiling / 2, shortest.nextReconnectDelayMs());
+        }
+    }
+
+    @Test
+    public void reconnectDelayStaysWithinJitterRange() {
+        HeartbeatScheduler scheduler = new HeartbeatScheduler(clock, new Random(42));
+        scheduler.setBackoff(1000, 60_000);
+        long ceiling = 1000;
+        for (int i = 0; i < 40; i++) {
+            long delay = scheduler.nextReconnectDelayMs();
+            assertTrue("delay " + delay + " below half of " + ceiling, delay >= ceiling / 2);
+            assertTrue("delay " + delay + " above " + ceiling, delay <= ceiling);
+            ceiling = Math.min(ceiling * 2, 60_000);
+        }
+    }
+
+    @Test
+    public void resetStartsTheBackoffOver() {
+        HeartbeatScheduler scheduler = scheduler(0.999999);
+        scheduler.setBackoff(1000, 60_000);
+        scheduler.nextReconnectDelayMs();
+        scheduler.nextReconnectDelayMs();
+        assertEquals(4000, scheduler.nextReconnectDelayMs());
+
+        scheduler.resetBackoff();
+        assertEquals(0, scheduler.getFailures());
+        assertEquals(1000, scheduler.nextReconnectDelayMs());
+    }
+}
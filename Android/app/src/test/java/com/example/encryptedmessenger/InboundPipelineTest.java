@@ -0,0 +1,184 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Feeds {@link InboundPipeline} synthetic jobs and checks they are dispatched in the order they were published.
+ */
+public class InboundPipelineTest {
+    private static final long TIMEOUT_S = 10;
+
+    /**
+     * One job in flight, processing stands in for decrypting.
+     */
+    static final class Job {
+        int seq;
+        String text;
+    }
+
+    private final List<String> dispatched = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch allDispatched = new CountDownLatch(4);
+    private InboundPipeline<Job> pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) pipeline.stop();
+    }
+
+    private void start(int workers, InboundPipeline.Handler<Job> handler) {
+        pipeline = new InboundPipeline<>(8, workers, Job::new, handler);
+        pipeline.start();
+    }
+
+    private void publish(int count) {
+        for (int i = 0; i < count; i++) {
+            Job job = pipeline.claim();
+            job.seq = i;
+            pipeline.publish();
+        }
+    }
+
+    private void record(Job job) {
+        dispatched.add(job.seq + "=" + job.text);
+        job.text = null;
+        allDispatched.countDown();
+    }
+
+    @Test
+    public void laterJobsFinishingFirstWaitForEarlierOnes() throws InterruptedException {
+        // Job 0 cannot finish until every job behind it has, so it is processed last
+        CountDownLatch othersProcessed = new CountDownLatch(3);
+        start(4, new InboundPipeline.Handler<Job>() {
+            @Override
+            public void process(Job job, int worker) {
+                if (job.seq == 0) {
+                    try {
+                        othersProcessed.await(TIMEOUT_S, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                job.text = "message " + job.seq;
+                if (job.seq != 0) othersProcessed.countDown();
+            }
+
+            @Override
+            public void dispatch(Job job) {
+                record(job);
+            }
+        });
+
+        publish(4);
+
+        assertTrue(allDispatched.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(List.of("0=message 0", "1=message 1", "2=message 2", "3=message 3"), dispatched);
+    }
+
+    @Test
+    public void failedJobIsStillDispatchedInOrder() throws InterruptedException {
+        start(2, new InboundPipeline.Handler<Job>() {
+            @Override
+            public void process(Job job, int worker) {
+                if (job.seq == 1) throw new IllegalStateException("decrypt failed");
+                job.text = "message " + job.seq;
+            }
+
+            @Override
+            public void dispatch(Job job) {
+                record(job);
+            }
+        });
+
+        publish(4);
+
+        assertTrue(allDispatched.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(List.of("0=message 0", "1=null", "2=message 2", "3=message 3"), dispatched);
+    }
+
+    @Test
+    public void withoutWorkersJobsRunOnTheReader() {
+        Thread reader = Thread.currentThread();
+        start(0, new InboundPipeline.Handler<Job>() {
+            @Override
+            public void process(Job job, int worker) {
+                if (job.seq == 2) throw new IllegalStateException("decrypt failed");
+                job.text = Thread.currentThread() == reader ? "reader" : "other";
+            }
+
+            @Override
+            public void dispatch(Job job) {
+                record(job);
+            }
+        });
+
+        publish(4);
+
+        // Each publish dispatched its job before returning
+        assertEquals(List.of("0=reader", "1=reader", "2=null", "3=reader"), dispatched);
+    }
+
+    @Test
+    public void tryClaimReturnsNullWhileFullWithoutWaiting() throws InterruptedException {
+        // Nothing is processed until released, so every slot stays in flight
+        CountDownLatch release = new CountDownLatch(1);
+        start(1, new InboundPipeline.Handler<Job>() {
+            @Override
+            public void process(Job job, int worker) {
+                try {
+                    release.await(TIMEOUT_S, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void dispatch(Job job) {
+                record(job);
+            }
+        });
+
+        for (int i = 0; i < 8; i++) {
+            Job job = pipeline.tryClaim();
+            assertNotNull(job);
+            job.seq = i;
+            pipeline.publish();
+        }
+        assertNull(pipeline.tryClaim());
+
+        // A slot frees up once the oldest job is dispatched
+        release.countDown();
+        assertTrue(allDispatched.await(TIMEOUT_S, TimeUnit.SECONDS));
+        Job job = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (job == null && System.nanoTime() < deadline) {
+            job = pipeline.tryClaim();
+        }
+        assertNotNull(job);
+    }
+
+    @Test
+    public void claimReturnsNullOnceStopped() {
+        start(1, new InboundPipeline.Handler<Job>() {
+            @Override
+            public void process(Job job, int worker) {}
+
+            @Override
+            public void dispatch(Job job) {}
+        });
+        pipeline.stop();
+        assertNull(pipeline.claim());
+    }
+}
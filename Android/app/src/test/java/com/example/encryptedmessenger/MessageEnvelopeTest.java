@@ -0,0 +1,72 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Round-trips plaintexts through {@link MessageEnvelope} and checks what legacy and malformed ones parse to.
+ */
+public class MessageEnvelopeTest {
+    private static final char MARK = MessageEnvelope.MARK;
+
+    @Test
+    public void tracedMessageRoundTrips() {
+        String text = MessageEnvelope.wrap("a1b2", 42, 1_700_000_000_123L, "alice: hello; again");
+
+        MessageEnvelope envelope = MessageEnvelope.parse(text);
+        assertTrue(envelope.isTraced());
+        assertEquals("a1b2", envelope.sender);
+        assertEquals(42, envelope.seq);
+        assertEquals(1_700_000_000_123L, envelope.sentAt);
+        assertEquals("alice: hello; again", envelope.body);
+        assertEquals("alice: hello; again", MessageEnvelope.bodyOf(text));
+    }
+
+    @Test
+    public void bodyMayHoldTheMark() {
+        String body = "bob: " + MARK + "1;x;1;1" + MARK + "quoted";
+        MessageEnvelope envelope = MessageEnvelope.parse(MessageEnvelope.wrap("s", 0, 0, body));
+        assertEquals("s", envelope.sender);
+        assertEquals(body, envelope.body);
+    }
+
+    @Test
+    public void plainBodyWithoutHeaderIsLegacy() {
+        for (String text : new String[]{"alice: hello", "[SYS]bob has joined", "", "1;s;2;3"}) {
+            MessageEnvelope envelope = MessageEnvelope.parse(text);
+            assertFalse(text, envelope.isTraced());
+            assertNull(envelope.sender);
+            assertEquals(-1, envelope.seq);
+            assertEquals(text, envelope.body);
+            assertEquals(text, MessageEnvelope.bodyOf(text));
+        }
+    }
+
+    @Test
+    public void unknownVersionIsStripped() {
+        String text = MARK + "2;s;5;9;new-field" + MARK + "alice: hi";
+        MessageEnvelope envelope = MessageEnvelope.parse(text);
+        assertFalse(envelope.isTraced());
+        assertEquals("alice: hi", envelope.body);
+    }
+
+    @Test
+    public void malformedHeaderIsKeptAsLegacyText() {
+        String[] malformed = {
+                MARK + "1;s;notanumber;5" + MARK + "alice: hi",
+                MARK + "1;s;5" + MARK + "alice: hi",
+                MARK + "1;;5;6" + MARK + "alice: hi",
+                MARK + "1;s;5;6 alice: no closing mark",
+        };
+        for (String text : malformed) {
+            MessageEnvelope envelope = MessageEnvelope.parse(text);
+            assertFalse(text, envelope.isTraced());
+            assertEquals(text, envelope.body);
+        }
+    }
+}
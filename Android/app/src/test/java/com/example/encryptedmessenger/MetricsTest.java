@@ -0,0 +1,115 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.function.LongSupplier;
+
+
+/**
+ * Checks {@link Metrics} histograms against known distributions and the gauge registry.
+ * <br>
+ * Each test uses its own registry so the process-wide one is left alone.
+ */
+public class MetricsTest {
+    private final Metrics metrics = new Metrics();
+
+    @Test
+    public void bucketsCoverEveryValueWithinAnEighth() {
+        for (long v = 0; v < 1_000_000; v = v < 64 ? v + 1 : v + v / 7) {
+            int bucket = Metrics.Histogram.bucketOf(v);
+            long upper = Metrics.Histogram.upperBoundOf(bucket);
+            long lower = bucket == 0 ? 0 : Metrics.Histogram.upperBoundOf(bucket - 1) + 1;
+            assertTrue(v + " above its bucket", v <= upper);
+            assertTrue(v + " below its bucket", v >= lower);
+            assertTrue(v + " in a bucket wider than an eighth", upper - lower <= Math.max(0, lower / 8));
+        }
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.upperBoundOf(Metrics.Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        Metrics.Histogram histogram = metrics.histogram("test");
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        assertWithinAnEighth(500, histogram.getPercentile(0.5));
+        assertWithinAnEighth(900, histogram.getPercentile(0.9));
+        assertWithinAnEighth(990, histogram.getPercentile(0.99));
+        assertEquals(1000, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void histogramUnitsAndEdgeCases() {
+        Metrics.Histogram histogram = metrics.histogram("test");
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getMean(), 0);
+
+        histogram.recordMillis(3);
+        histogram.recordNanos(2_000_000);
+        histogram.record(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(3000, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.0));
+        assertWithinAnEighth(2000, histogram.getPercentile(0.5));
+
+        assertSame(histogram, metrics.histogram("test"));
+    }
+
+    @Test
+    public void gaugeIsReadAtSnapshot() {
+        long[] depth = {3};
+        metrics.gauge("queue.test", () -> depth[0]);
+        assertTrue(metrics.snapshot().contains("queue.test 3\n"));
+
+        depth[0] = 7;
+        assertTrue(metrics.snapshot().contains("queue.test 7\n"));
+
+        metrics.gauge("queue.failing", () -> {
+            throw new IllegalStateException();
+        });
+        assertTrue(metrics.snapshot().contains("queue.failing -1\n"));
+    }
+
+    @Test
+    public void removingAReplacedGaugeKeepsItsReplacement() {
+        LongSupplier first = () -> 1;
+        LongSupplier second = () -> 2;
+        metrics.gauge("queue.test", first);
+        metrics.gauge("queue.test", second);
+
+        // The owner of the first gauge stopping must not remove the one that replaced it
+        metrics.removeGauge("queue.test", first);
+        assertTrue(metrics.snapshot().contains("queue.test 2\n"));
+
+        metrics.removeGauge("queue.test", second);
+        assertFalse(metrics.snapshot().contains("queue.test"));
+    }
+
+    @Test
+    public void resetZeroesCountersAndHistogramsButNotGauges() {
+        metrics.counter("test.count").add(5);
+        metrics.histogram("test.latency").record(100);
+        metrics.gauge("queue.test", () -> 4);
+
+        metrics.reset();
+
+        assertEquals(0, metrics.counter("test.count").get());
+        assertEquals(0, metrics.histogram("test.latency").getCount());
+        assertEquals(0, metrics.histogram("test.latency").getMax());
+        assertTrue(metrics.snapshot().contains("queue.test 4\n"));
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
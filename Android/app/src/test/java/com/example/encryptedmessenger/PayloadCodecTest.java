@@ -0,0 +1,145 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+
+/**
+ * Round-trips plaintexts through {@link PayloadCodec} and feeds it payloads it must refuse.
+ */
+public class PayloadCodecTest {
+    private static final int MIN_BYTES = 64;
+
+    private final PayloadCodec codec = new PayloadCodec(MIN_BYTES);
+
+    @Test
+    public void chatTextRoundTripsSmaller() {
+        byte[] plain = utf8("alice: thanks, see you tomorrow morning, I'll message the room when I'm there okay?");
+        int n = codec.encode(plain, 0, plain.length);
+        assertTrue("not compressed", n > 0 && n < plain.length);
+
+        byte[] encoded = Arrays.copyOf(codec.buffer(), n);
+        assertEquals(PayloadCodec.MARKER, encoded[0]);
+        assertEquals(PayloadCodec.METHOD_DEFLATE, encoded[1]);
+        assertTrue(PayloadCodec.isEncoded(encoded, 0, n));
+
+        assertArrayEquals(plain, decode(encoded));
+    }
+
+    @Test
+    public void dictionaryShrinksShortMessages() {
+        byte[] plain = utf8("bob has left the chat room, see you soon, thanks for the message lol");
+        int withDictionary = codec.encode(plain, 0, plain.length) - PayloadCodec.HEADER_SIZE;
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(plain);
+        deflater.finish();
+        int withoutDictionary = deflater.deflate(new byte[plain.length * 2]);
+        deflater.end();
+
+        assertTrue(withDictionary + " not below " + withoutDictionary, withDictionary < withoutDictionary);
+    }
+
+    @Test
+    public void shortOrIncompressibleTextIsSentAsItIs() {
+        byte[] plain = utf8("alice: hi");
+        assertEquals(-1, codec.encode(plain, 0, plain.length));
+        assertFalse(PayloadCodec.isEncoded(plain, 0, plain.length));
+
+        byte[] noise = new byte[512];
+        new Random(1).nextBytes(noise);
+        noise[0] = 'x';
+        assertEquals(-1, codec.encode(noise, 0, noise.length));
+    }
+
+    @Test
+    public void leadingZeroByteIsStored() {
+        byte[] plain = {0, 'h', 'i'};
+        int n = codec.encode(plain, 0, plain.length);
+        byte[] encoded = Arrays.copyOf(codec.buffer(), n);
+        assertEquals(PayloadCodec.METHOD_STORED, encoded[1]);
+        assertArrayEquals(plain, decode(encoded));
+    }
+
+    @Test
+    public void encodesWithinALargerBuffer() {
+        byte[] plain = utf8("alice: what's going on tonight? I think we should really see what they're doing later");
+        byte[] framed = new byte[plain.length + 10];
+        System.arraycopy(plain, 0, framed, 5, plain.length);
+
+        int n = codec.encode(framed, 5, plain.length);
+        byte[] encoded = new byte[n + 3];
+        System.arraycopy(codec.buffer(), 0, encoded, 3, n);
+        int m = codec.decode(encoded, 3, n);
+        assertArrayEquals(plain, Arrays.copyOf(codec.buffer(), m));
+    }
+
+    @Test
+    public void decodesUpToTheSizeLimit() {
+        byte[] atLimit = deflate(new byte[PayloadCodec.MAX_DECODED_SIZE]);
+        assertEquals(PayloadCodec.MAX_DECODED_SIZE, codec.decode(atLimit, 0, atLimit.length));
+
+        byte[] overLimit = deflate(new byte[PayloadCodec.MAX_DECODED_SIZE + 1]);
+        assertRejected(overLimit, "payload expands too far");
+    }
+
+    @Test
+    public void malformedPayloadsAreRejected() {
+        byte[] valid = deflate(utf8("alice: thanks, see you tomorrow morning, I'll message the room later"));
+
+        assertRejected(new byte[]{PayloadCodec.MARKER}, "encoded payload too short");
+        assertRejected(new byte[]{PayloadCodec.MARKER, 7, 1, 2}, "unknown payload method 7");
+        assertRejected(Arrays.copyOf(valid, valid.length / 2), "truncated payload");
+
+        byte[] corrupt = {PayloadCodec.MARKER, PayloadCodec.METHOD_DEFLATE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertRejected(corrupt, "corrupt payload");
+
+        // A rejected payload does not spoil the codec for the next one
+        assertArrayEquals(utf8("alice: thanks, see you tomorrow morning, I'll message the room later"), decode(valid));
+    }
+
+    private byte[] decode(byte[] encoded) {
+        int n = codec.decode(encoded, 0, encoded.length);
+        return Arrays.copyOf(codec.buffer(), n);
+    }
+
+    private void assertRejected(byte[] encoded, String message) {
+        try {
+            codec.decode(encoded, 0, encoded.length);
+            fail("accepted " + message);
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Builds a Deflate payload directly, whatever its size, as a peer would send it.
+     */
+    private static byte[] deflate(byte[] plain) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setDictionary(PayloadCodec.DICTIONARY);
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] out = new byte[plain.length + 64];
+        out[0] = PayloadCodec.MARKER;
+        out[1] = PayloadCodec.METHOD_DEFLATE;
+        int n = deflater.deflate(out, PayloadCodec.HEADER_SIZE, out.length - PayloadCodec.HEADER_SIZE);
+        assertTrue(deflater.finished());
+        deflater.end();
+        return Arrays.copyOf(out, n + PayloadCodec.HEADER_SIZE);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.encryptedmessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Runs {@link SchemaMigrations} against a real SQLite on the JVM.
+ * <p>
+ * For every historical version, and for a logins-only database whose configured version is already
+ * past the latest migration, a migrated database must end in the same schema as a new database,
+ * with its saved logins intact.
+ * </p>
+ */
+public class SchemaMigrationsTest {
+    private static final String TABLE = "logins";
+    private static final String COL_ID = "id";
+    private static final String COL_ROOM = "room";
+    private static final String COL_PASSWORD = "password";
+
+    private final SchemaMigrations migrations = new SchemaMigrations(TABLE, COL_ID, COL_ROOM, COL_PASSWORD);
+
+    @Test
+    public void versionsIncreaseByOne() {
+        int expected = SchemaMigrations.BASE_VERSION + 1;
+        for (SchemaMigrations.Migration migration : migrations.getMigrations()) {
+            assertEquals(migration.description, expected++, migration.version);
+        }
+        assertEquals(expected - 1, migrations.getLatestVersion());
+    }
+
+    @Test
+    public void upgradeFromEveryVersionMatchesCreate() throws SQLException {
+        List<String> expected = latestSchema();
+
+        int latest = migrations.getLatestVersion();
+        for (int version = SchemaMigrations.BASE_VERSION; version <= latest; version++) {
+            try (Connection db = open()) {
+                migrations.create(executor(db), version);
+                insertLogin(db, "room-a", "pass-a");
+                insertLogin(db, "room-b", "pass-b");
+
+                migrations.migrate(executor(db), query(db));
+
+                assertEquals("schema upgraded from " + version, expected, schemaOf(db));
+                assertEquals("logins upgraded from " + version,
+                        List.of("room-a=pass-a", "room-b=pass-b"), loginsOf(db));
+                assertEquals(latest, migrations.getVersion(query(db)));
+            }
+        }
+    }
+
+    @Test
+    public void loginsOnlyDatabaseAtAHighConfiguredVersionGetsHistory() throws SQLException {
+        List<String> expected = latestSchema();
+
+        // An install whose DB_VERSION was bumped before history existed: the helper's version
+        // is already at or above the latest migration, but only the logins table is there
+        int latest = migrations.getLatestVersion();
+        for (int configured = latest; configured <= latest + 3; configured++) {
+            try (Connection db = open()) {
+                migrations.create(executor(db), SchemaMigrations.BASE_VERSION);
+                executor(db).execSQL("PRAGMA user_version = " + configured);
+                insertLogin(db, "room-a", "pass-a");
+
+                int run = migrations.migrate(executor(db), query(db));
+
+                assertEquals("migrations run at configured " + configured, latest - SchemaMigrations.BASE_VERSION, run);
+                assertEquals("schema at configured " + configured, expected, schemaOf(db));
+                assertTrue(schemaOf(db).toString().contains("table " + DatabaseHelper.MESSAGES_TABLE + " "));
+                assertTrue(schemaOf(db).toString().contains("index idx_messages_room_time "));
+                assertEquals(List.of("room-a=pass-a"), loginsOf(db));
+            }
+        }
+    }
+
+    @Test
+    public void upToDateDatabaseRunsNothing() throws SQLException {
+        try (Connection db = open()) {
+            migrations.create(executor(db));
+            assertEquals(0, migrations.migrate(executor(db), query(db)));
+
+            int latest = migrations.getLatestVersion();
+            assertEquals(0, migrations.upgrade(executor(db), latest, latest));
+        }
+        try (Connection db = open()) {
+            migrations.create(executor(db), SchemaMigrations.BASE_VERSION);
+            migrations.migrate(executor(db), query(db));
+            assertEquals(0, migrations.migrate(executor(db), query(db)));
+        }
+    }
+
+    @Test
+    public void upgradedDatabaseAcceptsHistory() throws SQLException {
+        try (Connection db = open()) {
+            migrations.create(executor(db), SchemaMigrations.BASE_VERSION);
+            migrations.migrate(executor(db), query(db));
+
+            try (PreparedStatement insert = db.prepareStatement("INSERT INTO " + DatabaseHelper.MESSAGES_TABLE +
+                    " (" + DatabaseHelper.MSG_ROOM_TOKEN + ", " + DatabaseHelper.MSG_TIMESTAMP + ", " +
+                    DatabaseHelper.MSG_PAYLOAD + ") VALUES (?, ?, ?)")) {
+                insert.setString(1, "token");
+                insert.setLong(2, 1);
+                insert.setBytes(3, new byte[]{1, 2, 3});
+                assertEquals(1, insert.executeUpdate());
+            }
+            assertTrue(schemaOf(db).toString().contains("idx_messages_room_time"));
+        }
+    }
+
+    private List<String> latestSchema() throws SQLException {
+        try (Connection db = open()) {
+            migrations.create(executor(db));
+            return schemaOf(db);
+        }
+    }
+
+    private static Connection open() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    private static SchemaMigrations.Executor executor(Connection db) {
+        return sql -> {
+            try (Statement statement = db.createStatement()) {
+                statement.execute(sql);
+            } catch (SQLException e) {
+                throw new IllegalStateException(sql, e);
+            }
+        };
+    }
+
+    private static SchemaMigrations.Query query(Connection db) {
+        return sql -> {
+            try (Statement statement = db.createStatement();
+                 ResultSet rs = statement.executeQuery(sql)) {
+                rs.next();
+                return rs.getLong(1);
+            } catch (SQLException e) {
+                throw new IllegalStateException(sql, e);
+            }
+        };
+    }
+
+    private static void insertLogin(Connection db, String room, String password) throws SQLException {
+        try (PreparedStatement insert = db.prepareStatement(
+                "INSERT INTO " + TABLE + " (" + COL_ROOM + ", " + COL_PASSWORD + ") VALUES (?, ?)")) {
+            insert.setString(1, room);
+            insert.setString(2, password);
+            insert.executeUpdate();
+        }
+    }
+
+    private static List<String> loginsOf(Connection db) throws SQLException {
+        List<String> logins = new ArrayList<>();
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery(
+                     "SELECT " + COL_ROOM + ", " + COL_PASSWORD + " FROM " + TABLE + " ORDER BY " + COL_ID)) {
+            while (rs.next()) {
+                logins.add(rs.getString(1) + "=" + rs.getString(2));
+            }
+        }
+        return logins;
+    }
+
+    /**
+     * Every table and index with its SQL, and every table's columns, sorted by name.
+     */
+    private static List<String> schemaOf(Connection db) throws SQLException {
+        List<String> schema = new ArrayList<>();
+        List<String> tables = new ArrayList<>();
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT type, name, tbl_name, sql FROM sqlite_master " +
+                     "WHERE name NOT LIKE 'sqlite_%' ORDER BY type, name")) {
+            while (rs.next()) {
+                schema.add(rs.getString(1) + " " + rs.getString(2) + " on " + rs.getString(3) + ": " + rs.getString(4));
+                if (rs.getString(1).equals("table")) tables.add(rs.getString(2));
+            }
+        }
+        for (String table : tables) {
+            try (Statement statement = db.createStatement();
+                 ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+                while (rs.next()) {
+                    schema.add(table + "." + rs.getString("name") + " " + rs.getString("type") +
+                            " notnull=" + rs.getInt("notnull") + " default=" + rs.getString("dflt_value") +
+                            " pk=" + rs.getInt("pk"));
+                }
+            }
+        }
+        return schema;
+    }
+}
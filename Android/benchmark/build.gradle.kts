@@ -0,0 +1,47 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+// Benchmarks run against the app's plain-Java classes, compiled straight from its sources
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include(
+                "**/Base64Codec.java",
+                "**/ChatMessage.java",
+                "**/CipherSession.java",
+                "**/EncryptionHelper.java",
+                "**/EventBus.java",
+                "**/FrameCodec.java",
+                "**/InboundPayload.java",
+                "**/InboundPipeline.java",
+                "**/Metrics.java",
+                "**/PayloadCodec.java",
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.bcprov.jdk15to18)
+}
+
+// ./gradlew :benchmark:jmh, results in build/results/jmh/results.json
+jmh {
+    jmhVersion.set(libs.versions.jmh.get())
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+
+    // Narrow a run, e.g. -PjmhInclude=CipherBenchmark
+    providers.gradleProperty("jmhInclude").orNull?.let { includes.add(it) }
+}
@@ -0,0 +1,68 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Base64 encode and decode of encrypted payloads.
+ * <p>
+ * Compares {@link java.util.Base64}, as used by {@link EncryptionHelper}, with {@link Base64Codec},
+ * which works on array ranges and reused buffers as used by {@link CipherSession}.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class Base64Benchmark {
+
+    // Payload sizes, nonce and tag included
+    @Param({"44", "284", "4124", "65564"})
+    public int size;
+
+    private byte[] raw;
+    private String encoded;
+    private byte[] encodeScratch;
+    private byte[] decodeScratch;
+
+    @Setup
+    public void setup() {
+        raw = new byte[size];
+        new Random(1).nextBytes(raw);
+        encoded = Base64.getEncoder().encodeToString(raw);
+        encodeScratch = new byte[Base64Codec.encodedLength(size)];
+        decodeScratch = new byte[Base64Codec.maxDecodedLength(encoded.length())];
+    }
+
+    @Benchmark
+    public String jdkEncode() {
+        return Base64.getEncoder().encodeToString(raw);
+    }
+
+    @Benchmark
+    public byte[] jdkDecode() {
+        return Base64.getDecoder().decode(encoded);
+    }
+
+    @Benchmark
+    public String codecEncode() {
+        int n = Base64Codec.encode(raw, 0, raw.length, encodeScratch, 0);
+        return new String(encodeScratch, 0, n, StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public int codecDecode() {
+        return Base64Codec.decode(encoded, 0, encoded.length(), decodeScratch, 0);
+    }
+}
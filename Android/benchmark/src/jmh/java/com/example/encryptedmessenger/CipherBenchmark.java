@@ -0,0 +1,74 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Encrypt and decrypt throughput across message sizes.
+ * <p>
+ * Compares the one-shot {@link EncryptionHelper} calls with a reused {@link CipherSession},
+ * which produce the same wire format.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CipherBenchmark {
+
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    private byte[] key;
+    private byte[] aad;
+    private byte[] plaintext;
+    private String plaintextString;
+    private String payloadB64;
+    private CipherSession session;
+
+    @Setup
+    public void setup() throws Exception {
+        key = new byte[32];
+        new Random(1).nextBytes(key);
+        aad = "benchmark-aad".getBytes(StandardCharsets.UTF_8);
+
+        char[] text = new char[size];
+        Arrays.fill(text, 'a');
+        plaintextString = new String(text);
+        plaintext = plaintextString.getBytes(StandardCharsets.UTF_8);
+
+        payloadB64 = EncryptionHelper.encrypt(key, plaintext, aad);
+        session = new CipherSession(key, aad);
+    }
+
+    @Benchmark
+    public String helperEncrypt() throws Exception {
+        return EncryptionHelper.encrypt(key, plaintext, aad);
+    }
+
+    @Benchmark
+    public byte[] helperDecrypt() throws Exception {
+        return EncryptionHelper.decrypt(key, payloadB64, aad);
+    }
+
+    @Benchmark
+    public String sessionEncrypt() throws Exception {
+        return session.encryptToBase64(plaintextString);
+    }
+
+    @Benchmark
+    public String sessionDecrypt() throws Exception {
+        return session.decryptFromBase64(payloadB64, 0);
+    }
+}
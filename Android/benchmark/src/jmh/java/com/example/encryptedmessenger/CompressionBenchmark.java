@@ -0,0 +1,129 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bytes on the wire against CPU time for compress-then-encrypt across message sizes.
+ * <p>
+ * {@code plain*} encrypt the message as it is and {@code compressed*} run it through
+ * {@link PayloadCodec} first, both through the same Base64 line encoding the text protocol sends.
+ * {@code chat} text is built from common words, {@code random} is Base64 of random bytes, like a
+ * pasted key, which does not compress.
+ * </p>
+ * <p>
+ * The {@code wireBytes} and {@code plaintextBytes} counters are summed over each iteration,
+ * so their ratio is the size on the wire relative to the plaintext.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    private static final String[] WORDS = {
+            "the", "room", "is", "free", "tomorrow", "morning", "see", "you", "soon", "thanks",
+            "I", "think", "we", "should", "meet", "later", "okay", "what", "about", "lunch",
+            "sure", "sounds", "good", "can't", "make", "it", "today", "maybe", "next", "week"
+    };
+
+    @Param({"16", "64", "256", "1024", "4096", "65536"})
+    public int size;
+
+    @Param({"chat", "random"})
+    public String text;
+
+    private String plaintext;
+    private String plainPayload;
+    private String compressedPayload;
+    private CipherSession plainCipher;
+    private CipherSession compressingCipher;
+    private CipherSession reader;
+
+    /**
+     * Bytes sent and bytes of plaintext, summed over each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long wireBytes;
+        public long plaintextBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            wireBytes = 0;
+            plaintextBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] aad = "benchmark-aad".getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[32];
+        Random random = new Random(1);
+        random.nextBytes(key);
+
+        plaintext = "user: " + makeText(random);
+        plainCipher = new CipherSession(key, aad);
+        compressingCipher = new CipherSession(key, aad);
+        compressingCipher.setCompression(true, 0);
+        reader = new CipherSession(key, aad);
+
+        plainPayload = plainCipher.encryptToBase64(plaintext);
+        compressedPayload = compressingCipher.encryptToBase64(plaintext);
+    }
+
+    private String makeText(Random random) {
+        StringBuilder sb = new StringBuilder(size + 16);
+        if (text.equals("random")) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            sb.append(Base64.getEncoder().encodeToString(bytes));
+        } else {
+            while (sb.length() < size) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String plainEncrypt(Wire wire) throws Exception {
+        String payload = plainCipher.encryptToBase64(plaintext);
+        wire.wireBytes += payload.length();
+        wire.plaintextBytes += plaintext.length();
+        return payload;
+    }
+
+    @Benchmark
+    public String compressedEncrypt(Wire wire) throws Exception {
+        String payload = compressingCipher.encryptToBase64(plaintext);
+        wire.wireBytes += payload.length();
+        wire.plaintextBytes += plaintext.length();
+        return payload;
+    }
+
+    @Benchmark
+    public String plainDecrypt() throws Exception {
+        return reader.decryptFromBase64(plainPayload, 0);
+    }
+
+    @Benchmark
+    public String compressedDecrypt() throws Exception {
+        return reader.decryptFromBase64(compressedPayload, 0);
+    }
+}
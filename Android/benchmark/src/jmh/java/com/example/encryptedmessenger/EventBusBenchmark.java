@@ -0,0 +1,121 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Fan-out of received messages to the service's notification check, as ChatSession delivers them.
+ * <p>
+ * {@code busPosting} is the current path, the service subscribes on the posting thread and
+ * checks each message there. {@code busExecutor} subscribes on another thread, one task per message.
+ * </p>
+ * <p>
+ * {@code broadcastModel} stands in for the LocalBroadcastManager path it replaced, which cannot run
+ * on the JVM. Each message's fields are copied into a map of extras, as an Intent's Bundle holds them,
+ * handed to another thread, standing in for the main thread, and read back out there.
+ * The real path also matches intent filters under a lock, so this is its lower bound.
+ * </p>
+ * <p>
+ * Each operation delivers {@code BURST} messages and waits until the subscriber has seen all of them.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class EventBusBenchmark {
+    private static final int BURST = 256;
+
+    private final ChatMessage[] messages = new ChatMessage[BURST];
+    private ExecutorService mainThread;
+    private EventBus postingBus;
+    private EventBus executorBus;
+
+    // Written by the subscriber, read by the benchmark thread
+    private volatile int seen;
+    private volatile boolean notify;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < BURST; i++) {
+            messages[i] = new ChatMessage("benchmark", "user: message " + i, ChatMessage.TYPE_USER);
+        }
+        mainThread = Executors.newSingleThreadExecutor();
+
+        postingBus = new EventBus();
+        postingBus.subscribe(ChatMessage.class, EventBus.POSTING, this::check);
+        executorBus = new EventBus();
+        executorBus.subscribe(ChatMessage.class, mainThread, this::check);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mainThread.shutdownNow();
+    }
+
+    private void check(ChatMessage message) {
+        // The service's test for whether a message needs a notification
+        notify = !message.isSystemMessage() && message.room != null;
+        seen++;
+    }
+
+    private int await() {
+        while (seen < BURST) {
+            Thread.onSpinWait();
+        }
+        return seen;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int busPosting() {
+        seen = 0;
+        for (ChatMessage message : messages) {
+            postingBus.post(message);
+        }
+        return await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int busExecutor() {
+        seen = 0;
+        for (ChatMessage message : messages) {
+            executorBus.post(message);
+        }
+        return await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int broadcastModel() {
+        seen = 0;
+        for (ChatMessage message : messages) {
+            Map<String, Object> extras = new HashMap<>();
+            extras.put("message", message.text);
+            extras.put("room", message.room);
+            extras.put("isSystemMessage", message.isSystemMessage());
+            mainThread.execute(() -> {
+                String text = (String) extras.get("message");
+                String room = (String) extras.get("room");
+                boolean isSystemMessage = (Boolean) extras.get("isSystemMessage");
+                notify = !isSystemMessage && room != null && text != null;
+                seen++;
+            });
+        }
+        return await();
+    }
+}
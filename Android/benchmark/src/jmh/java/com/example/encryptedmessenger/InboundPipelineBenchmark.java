@@ -0,0 +1,134 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bursts of received lines through {@link InboundPipeline}, as ChatConnection feeds it from the socket.
+ * <p>
+ * Each operation submits {@code BURST} lines from one thread, standing in for the event-loop
+ * thread, and waits until all of them are dispatched. Workers Base64-decode and decrypt, and
+ * dispatch builds the {@link ChatMessage}. {@code workers = 0} does everything on the submitting
+ * thread, the path before the pipeline. Compare them on a device with several cores.
+ * </p>
+ * <p>
+ * Dispatch checks that messages come out in the order they went in, a run that reorders any fails.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class InboundPipelineBenchmark {
+    private static final String MESSAGE_PREFIX = "MSG:";
+    private static final String SYSTEM_TAG = "[SYS]";
+    private static final String ROOM = "benchmark";
+    private static final int BURST = 256;
+
+    @Param({"0", "1", "2", "4"})
+    public int workers;
+
+    @Param({"256", "4096"})
+    public int size;
+
+    /**
+     * One received line in flight.
+     */
+    static final class Job {
+        int seq;
+        String line;
+        String text;
+    }
+
+    private final String[] lines = new String[BURST];
+    private CipherSession[] ciphers;
+    private InboundPayload[] payloads;
+    private InboundPipeline<Job> pipeline;
+
+    // Written by whichever worker dispatches, read by the submitting thread
+    private volatile int dispatched;
+    private volatile String failure;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] aad = "benchmark-aad".getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[32];
+        Random random = new Random(1);
+        random.nextBytes(key);
+
+        char[] text = new char[size];
+        Arrays.fill(text, 'a');
+        for (int i = 0; i < BURST; i++) {
+            lines[i] = MESSAGE_PREFIX + EncryptionHelper.encrypt(key,
+                    ("user" + i + ": " + new String(text)).getBytes(StandardCharsets.UTF_8), aad);
+        }
+
+        // A cipher and decode buffer per worker, as each room keeps one per concurrent decrypt
+        int n = Math.max(1, workers);
+        ciphers = new CipherSession[n];
+        payloads = new InboundPayload[n];
+        for (int i = 0; i < n; i++) {
+            ciphers[i] = new CipherSession(key, aad);
+            payloads[i] = new InboundPayload();
+        }
+
+        pipeline = new InboundPipeline<>(BURST, workers, Job::new, new InboundPipeline.Handler<Job>() {
+            @Override
+            public void process(Job job, int worker) {
+                InboundPayload payload = payloads[worker];
+                if (!payload.decode(job.line, MESSAGE_PREFIX.length())) return;
+                try {
+                    job.text = ciphers[worker].decryptToString(payload.raw, payload.offset, payload.length);
+                } catch (Exception ignored) {}
+            }
+
+            @Override
+            public void dispatch(Job job) {
+                ChatMessage message = job.text == null ? null : ChatMessage.fromPlaintext(ROOM, job.text, SYSTEM_TAG);
+                if (message == null || !message.text.startsWith("user" + job.seq + ":")) {
+                    failure = "message " + job.seq + " dispatched out of order or not decrypted";
+                }
+                job.line = null;
+                job.text = null;
+                dispatched++;
+            }
+        });
+        pipeline.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.stop();
+        if (failure != null) throw new IllegalStateException(failure);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int burst() {
+        dispatched = 0;
+        for (int i = 0; i < BURST; i++) {
+            Job job = pipeline.claim();
+            job.seq = i;
+            job.line = lines[i];
+            pipeline.publish();
+        }
+        while (dispatched < BURST) {
+            Thread.onSpinWait();
+        }
+        return dispatched;
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The received-line path from ChatConnection and ChatSession: prefix check, Base64 decode,
+ * decrypt, and building the {@link ChatMessage} that is dispatched to the UI.
+ * <p>
+ * The Android broadcast and UI dispatch are left out, they cannot run on the JVM.
+ * {@code foreignRoom} measures the cost of a line whose key does not match, which is thrown away.
+ * </p>
+ * <p>
+ * {@code textFrame} and {@code binaryFrame} start from the bytes read off the socket, so they compare
+ * the two framings including the byte-to-String step that binary framing skips.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class IncomingPathBenchmark {
+    private static final String MESSAGE_PREFIX = "MSG:";
+    private static final String SYSTEM_TAG = "[SYS]";
+    private static final String ROOM = "benchmark";
+
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private String line;
+    private byte[] lineBytes;
+    private byte[] frameBytes;
+    private InboundPayload payload;
+    private CipherSession ownCipher;
+    private CipherSession foreignCipher;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] aad = "benchmark-aad".getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[32];
+        byte[] otherKey = new byte[32];
+        Random random = new Random(1);
+        random.nextBytes(key);
+        random.nextBytes(otherKey);
+
+        char[] text = new char[size];
+        Arrays.fill(text, 'a');
+        line = MESSAGE_PREFIX + EncryptionHelper.encrypt(key, ("user: " + new String(text)).getBytes(StandardCharsets.UTF_8), aad);
+        lineBytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+        byte[] raw = Base64.getDecoder().decode(line.substring(MESSAGE_PREFIX.length()));
+        ByteBuffer frame = ByteBuffer.allocate(raw.length + 8);
+        FrameCodec.putHeader(frame, FrameCodec.TYPE_MESSAGE, raw.length);
+        frame.put(raw);
+        frameBytes = Arrays.copyOf(frame.array(), frame.position());
+
+        payload = new InboundPayload();
+        ownCipher = new CipherSession(key, aad);
+        foreignCipher = new CipherSession(otherKey, aad);
+    }
+
+    @Benchmark
+    public ChatMessage ownRoom() throws Exception {
+        if (!line.startsWith(MESSAGE_PREFIX)) return null;
+        if (!payload.decode(line, MESSAGE_PREFIX.length())) return null;
+        String text = ownCipher.decryptToString(payload.raw, payload.offset, payload.length);
+        return ChatMessage.fromPlaintext(ROOM, text, SYSTEM_TAG);
+    }
+
+    @Benchmark
+    public ChatMessage textFrame() throws Exception {
+        // Scan for the newline the way the engine's reader does
+        int end = 0;
+        while (lineBytes[end] != '\n') end++;
+        String text = new String(lineBytes, 0, end, StandardCharsets.UTF_8);
+        if (!text.startsWith(MESSAGE_PREFIX)) return null;
+        if (!payload.decode(text, MESSAGE_PREFIX.length())) return null;
+        return ChatMessage.fromPlaintext(ROOM, ownCipher.decryptToString(payload.raw, payload.offset, payload.length), SYSTEM_TAG);
+    }
+
+    @Benchmark
+    public ChatMessage binaryFrame() throws Exception {
+        ChatMessage[] out = new ChatMessage[1];
+        FrameCodec.decode(frameBytes, 0, frameBytes.length, (type, buf, off, len) -> {
+            payload.wrap(buf, off, len);
+            try {
+                out[0] = ChatMessage.fromPlaintext(ROOM, ownCipher.decryptToString(payload.raw, payload.offset, payload.length), SYSTEM_TAG);
+            } catch (Exception ignored) {}
+        });
+        return out[0];
+    }
+
+    @Benchmark
+    public ChatMessage foreignRoom() {
+        if (!line.startsWith(MESSAGE_PREFIX)) return null;
+        if (!payload.decode(line, MESSAGE_PREFIX.length())) return null;
+        try {
+            String text = foreignCipher.decryptToString(payload.raw, payload.offset, payload.length);
+            return ChatMessage.fromPlaintext(ROOM, text, SYSTEM_TAG);
+        } catch (Exception ex) {
+            // Not for this room
+            return null;
+        }
+    }
+}
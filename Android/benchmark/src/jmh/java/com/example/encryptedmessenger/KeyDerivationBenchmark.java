@@ -0,0 +1,26 @@
+package com.example.encryptedmessenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of the scrypt room key derivation, paid once per room before anything can be sent or read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class KeyDerivationBenchmark {
+
+    @Benchmark
+    public byte[] deriveRoomKey() throws Exception {
+        return EncryptionHelper.deriveRoomKey("benchmark", "passphrase");
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.encryptedmessenger.relay;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+
+/**
+ * Outbound is one item queued for one or more clients, in whichever framing each client reads.
+ * <p>
+ * An item is created in the form it arrived in and converted to the other form at most once,
+ * the first time a client that reads the other framing writes it. Both forms are shared by
+ * every recipient and never modified.
+ * </p>
+ * <p>
+ * A room message also has a tagged copy for clients that read the room tag, built lazily
+ * from the untagged item in the same way.
+ * </p>
+ */
+final class Outbound {
+    // Sent to a client that offered binary framing, everything after it is frames
+    static final Outbound HELLO_REPLY = new Outbound(line(Protocol.HELLO), null, null, null, true);
+
+    private final byte[] prefix;
+    private final byte[] payload;
+    private final int size;
+    final boolean switchesToBinary;
+
+    // Set on a tagged copy only: the item it tags and the room token
+    private final Outbound untagged;
+    private final String token;
+
+    // Written once each, racing threads compute the same bytes
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    private Outbound(byte[] text, byte[] binary, byte[] payload, byte[] prefix, boolean switchesToBinary) {
+        this.text = text;
+        this.binary = binary;
+        this.payload = payload;
+        this.prefix = prefix;
+        this.size = text != null ? text.length : binary.length;
+        this.switchesToBinary = switchesToBinary;
+        this.untagged = null;
+        this.token = null;
+    }
+
+    private Outbound(Outbound untagged, String token) {
+        this.prefix = null;
+        this.payload = null;
+        this.size = untagged.size + Protocol.ROOM_PREFIX.length + token.length() + 1;
+        this.switchesToBinary = false;
+        this.untagged = untagged;
+        this.token = token;
+    }
+
+    /**
+     * A protocol line such as a user count.
+     */
+    static Outbound control(String line) {
+        return new Outbound(line(line), null, null, null, false);
+    }
+
+    /**
+     * A message received as a text line.
+     *
+     * @param line The line including its newline.
+     * @param prefix The message prefix, or null if binary framing is off.
+     */
+    static Outbound textMessage(byte[] line, byte[] prefix) {
+        return new Outbound(line, null, null, prefix, false);
+    }
+
+    /**
+     * A message received as a binary frame.
+     *
+     * @param payload Raw nonce || ciphertext+tag.
+     * @param prefix The message prefix, used to rebuild the text line for text clients.
+     */
+    static Outbound payload(byte[] payload, byte[] prefix) {
+        return new Outbound(null, Protocol.frame(Protocol.TYPE_MESSAGE, payload, 0, payload.length), payload, prefix, false);
+    }
+
+    /**
+     * Returns a copy of this message carrying its room tag: "__ROOM__token:" before the line,
+     * or a room message frame.
+     */
+    Outbound tagged(String token) {
+        return new Outbound(this, token);
+    }
+
+    /**
+     * Bytes counted against a client's queue limit, fixed when the item is created.
+     */
+    int size() {
+        return size;
+    }
+
+    byte[] bytes(boolean binaryFraming) {
+        if (binaryFraming) {
+            byte[] b = binary;
+            if (b == null) binary = b = toBinary();
+            return b;
+        }
+        byte[] t = text;
+        if (t == null) text = t = toText();
+        return t;
+    }
+
+    /**
+     * Message lines become raw message frames, anything else a control frame.
+     */
+    private byte[] toBinary() {
+        if (untagged != null) return toTaggedBinary();
+
+        int len = text.length - 1;
+        if (prefix != null && Protocol.startsWith(text, 0, len, prefix)) {
+            try {
+                ByteBuffer b64 = ByteBuffer.wrap(text, prefix.length, len - prefix.length);
+                ByteBuffer raw = Base64.getDecoder().decode(b64);
+                return Protocol.frame(Protocol.TYPE_MESSAGE, raw.array(), 0, raw.remaining());
+            } catch (IllegalArgumentException ignored) {
+                // Not Base64, passed on as a plain line
+            }
+        }
+        return Protocol.frame(Protocol.TYPE_CONTROL, text, 0, len);
+    }
+
+    private byte[] toText() {
+        if (untagged != null) {
+            byte[] line = untagged.bytes(false);
+            byte[] tag = (new String(Protocol.ROOM_PREFIX, StandardCharsets.US_ASCII) + token + ":")
+                    .getBytes(StandardCharsets.US_ASCII);
+            byte[] out = Arrays.copyOf(tag, tag.length + line.length);
+            System.arraycopy(line, 0, out, tag.length, line.length);
+            return out;
+        }
+
+        byte[] b64 = Base64.getEncoder().encode(payload);
+        byte[] out = Arrays.copyOf(prefix, prefix.length + b64.length + 1);
+        System.arraycopy(b64, 0, out, prefix.length, b64.length);
+        out[out.length - 1] = '\n';
+        return out;
+    }
+
+    /**
+     * Puts the token in front of the payload of a message frame. Anything that is not a
+     * message frame, or a token that is not hex, is sent untagged.
+     */
+    private byte[] toTaggedBinary() {
+        byte[] frame = untagged.bytes(true);
+        byte[] tokenBytes = Protocol.unhex(token);
+
+        // Skip the varint length to the type byte
+        int i = 0;
+        while ((frame[i] & 0x80) != 0) i++;
+        i++;
+        if (tokenBytes == null || frame[i] != Protocol.TYPE_MESSAGE) return frame;
+
+        int bodyStart = i + 1;
+        byte[] body = Arrays.copyOf(tokenBytes, Protocol.TOKEN_SIZE + frame.length - bodyStart);
+        System.arraycopy(frame, bodyStart, body, Protocol.TOKEN_SIZE, frame.length - bodyStart);
+        return Protocol.frame(Protocol.TYPE_ROOM_MESSAGE, body, 0, body.length);
+    }
+
+    private static byte[] line(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.encryptedmessenger.relay;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Protocol holds the line prefixes shared with server.py and the clients, the binary frame
+ * format, and a minimal reader for the flat JSON objects older clients send in heartbeats.
+ */
+final class Protocol {
+
+    // Private constructor to prevent instantiation
+    private Protocol() {}
+
+    static final byte[] HEARTBEAT_PREFIX = "__HEARTBEAT__".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] LEAVE_PREFIX = "__LEAVE__".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] ROOM_PREFIX = "__ROOM__".getBytes(StandardCharsets.US_ASCII);
+    static final String COUNT_PREFIX = "__COUNT__";
+
+    // Binary framing, see the app's FrameCodec for the negotiation
+    static final String HELLO = "__HELLO__bin1";
+    static final String SWITCH = "__BINARY__";
+    static final int TYPE_MESSAGE = 1;
+    static final int TYPE_ROOM_MESSAGE = 2;
+    static final int TYPE_CONTROL = 3;
+    static final int TOKEN_SIZE = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Returns true if {@code buf[off..off+len)} starts with {@code prefix}.
+     */
+    static boolean startsWith(byte[] buf, int off, int len, byte[] prefix) {
+        if (len < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[off + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first {@code b} in {@code buf[from..to)}, or -1.
+     */
+    static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Builds a frame: varint length of type and body, the type byte, then the body.
+     */
+    static byte[] frame(int type, byte[] body, int off, int len) {
+        int value = len + 1;
+        int header = 1;
+        for (int v = value >>> 7; v != 0; v >>>= 7) header++;
+
+        byte[] out = new byte[header + value];
+        int i = 0;
+        while ((value & ~0x7F) != 0) {
+            out[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[i++] = (byte) value;
+        out[i++] = (byte) type;
+        System.arraycopy(body, off, out, i, len);
+        return out;
+    }
+
+    /**
+     * Parses a hex room token back into its bytes.
+     *
+     * @return The bytes, or null if it is not {@link #TOKEN_SIZE} bytes of hex.
+     */
+    static byte[] unhex(String token) {
+        if (token.length() != TOKEN_SIZE * 2) return null;
+        byte[] out = new byte[TOKEN_SIZE];
+        for (int i = 0; i < TOKEN_SIZE; i++) {
+            int hi = Character.digit(token.charAt(i * 2), 16);
+            int lo = Character.digit(token.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
+    /**
+     * Returns 16 token bytes as the lowercase hex used in text heartbeats.
+     */
+    static String hex(byte[] buf, int off, int len) {
+        char[] out = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            out[i * 2] = HEX[(buf[off + i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[buf[off + i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Reads a string field from a flat JSON object, such as {"token":"ab12"}.
+     * <br>
+     * Escapes are not expected in tokens, room names or passwords and are kept as-is.
+     *
+     * @return The value, or null if the field is missing or not a string.
+     */
+    static String jsonString(String json, String field) {
+        int i = valueStart(json, field);
+        if (i < 0 || i >= json.length() || json.charAt(i) != '"') return null;
+        int end = json.indexOf('"', i + 1);
+        return end < 0 ? null : json.substring(i + 1, end);
+    }
+
+    /**
+     * Reads a boolean field from a flat JSON object.
+     *
+     * @return True only if the field is present and true.
+     */
+    static boolean jsonTrue(String json, String field) {
+        int i = valueStart(json, field);
+        return i >= 0 && json.startsWith("true", i);
+    }
+
+    private static int valueStart(String json, String field) {
+        int i = json.indexOf("\"" + field + "\"");
+        if (i < 0) return -1;
+        i = json.indexOf(':', i + field.length() + 2);
+        if (i < 0) return -1;
+        i++;
+        while (i < json.length() && json.charAt(i) == ' ') i++;
+        return i;
+    }
+}
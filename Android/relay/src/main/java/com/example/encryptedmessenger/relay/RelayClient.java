@@ -0,0 +1,288 @@
+package com.example.encryptedmessenger.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * RelayClient is one connected client, owned by a single {@link RelayLoop}.
+ * <p>
+ * Any loop may queue lines for it with {@link #enqueue}. Only the owning loop reads from
+ * the socket, writes to it and changes its room state.
+ * </p>
+ * <p>
+ * Reading and writing switch to binary frames independently, each at the exact point in the
+ * stream that the negotiation lines mark.
+ * </p>
+ */
+final class RelayClient {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] SWITCH = Protocol.SWITCH.getBytes(StandardCharsets.US_ASCII);
+
+    private final RelayLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final int maxQueuedBytes;
+
+    // Outbound items, framed for this client when they are written
+    private final ConcurrentLinkedQueue<Outbound> out = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    // Owner loop only
+    private ByteBuffer readBuf = ByteBuffer.allocate(4096);
+    private final ByteBuffer writeBuf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private ByteBuffer current;
+    private boolean writePending = false;
+    private final Map<String, Long> tokens = new HashMap<>();
+    private volatile String legacyRoom;
+    private volatile boolean tagged = false;
+    private long lastHeartbeatAt = 0;
+    private boolean helloAnswered = false;
+    private boolean binaryIn = false;
+    private boolean binaryOut = false;
+
+    /**
+     * Receives each complete line or frame read from the socket.
+     */
+    interface LineHandler {
+        void onLine(RelayClient client, byte[] buf, int off, int len);
+
+        void onFrame(RelayClient client, int type, byte[] buf, int off, int len);
+    }
+
+    RelayClient(RelayLoop loop, SocketChannel channel, SelectionKey key, int maxQueuedBytes) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void markClosed() {
+        closed = true;
+    }
+
+    Set<String> getTokens() {
+        return tokens.keySet();
+    }
+
+    Map<String, Long> getTokenTimes() {
+        return tokens;
+    }
+
+    String getLegacyRoom() {
+        return legacyRoom;
+    }
+
+    void setLegacyRoom(String legacyRoom) {
+        this.legacyRoom = legacyRoom;
+    }
+
+    /**
+     * Returns true if room messages are sent to this client with their room tag kept.
+     */
+    boolean isTagged() {
+        return tagged;
+    }
+
+    void setTagged(boolean tagged) {
+        this.tagged = tagged;
+    }
+
+    long getLastHeartbeatAt() {
+        return lastHeartbeatAt;
+    }
+
+    void setLastHeartbeatAt(long lastHeartbeatAt) {
+        this.lastHeartbeatAt = lastHeartbeatAt;
+    }
+
+    /**
+     * Accepts the client's binary framing offer. Owner loop only.
+     * <br>
+     * Output switches once the answer is written, input once the client's switch line is read.
+     */
+    void answerHello() {
+        if (helloAnswered) return;
+        helloAnswered = true;
+        enqueue(Outbound.HELLO_REPLY);
+    }
+
+    /**
+     * Reads what is available and passes each complete line, without its newline, or each
+     * complete frame to the handler. Owner loop only.
+     *
+     * @param maxLineLength Longest line or frame accepted before the client is dropped.
+     * @throws IOException If the read fails, the client closed, or a line is too long.
+     */
+    void read(LineHandler handler, int maxLineLength) throws IOException {
+        int n = channel.read(readBuf);
+        if (n < 0) throw new IOException("connection closed by client");
+
+        byte[] buf = readBuf.array();
+        int end = readBuf.position();
+        int start = 0;
+        while (start < end) {
+            if (binaryIn) {
+                int used = readFrame(handler, buf, start, end, maxLineLength);
+                if (used == 0) break;
+                start += used;
+                continue;
+            }
+
+            int i = Protocol.indexOf(buf, start, end, (byte) '\n');
+            if (i < 0) break;
+            int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+            int lineStart = start;
+            start = i + 1;
+            if (lineEnd == lineStart) continue;
+
+            if (helloAnswered && isSwitch(buf, lineStart, lineEnd - lineStart)) {
+                // Everything after the client's switch line is frames
+                binaryIn = true;
+                continue;
+            }
+            handler.onLine(this, buf, lineStart, lineEnd - lineStart);
+        }
+
+        // Keep the partial line or frame, growing the buffer if a single one does not fit
+        readBuf.position(start);
+        readBuf.limit(end);
+        readBuf.compact();
+        if (!readBuf.hasRemaining()) {
+            if (readBuf.capacity() >= maxLineLength) throw new IOException("line too long");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuf.capacity() * 2, maxLineLength));
+            readBuf.flip();
+            bigger.put(readBuf);
+            readBuf = bigger;
+        }
+    }
+
+    /**
+     * Decodes one frame.
+     *
+     * @return Bytes consumed, or 0 if the frame is not complete yet.
+     */
+    private int readFrame(LineHandler handler, byte[] buf, int off, int end, int maxLength) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int i = off;
+        while (true) {
+            if (i >= end) return 0;
+            int b = buf[i++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 28) throw new IOException("frame length too long");
+        }
+        if (length < 1 || length > maxLength) throw new IOException("bad frame length " + length);
+        if (end - i < length) return 0;
+
+        handler.onFrame(this, buf[i] & 0xFF, buf, i + 1, length - 1);
+        return i + length - off;
+    }
+
+    private static boolean isSwitch(byte[] buf, int off, int len) {
+        return len == SWITCH.length && Protocol.startsWith(buf, off, len, SWITCH);
+    }
+
+    /**
+     * Queues an item for this client. Safe to call from any thread.
+     * <br>
+     * A client whose queue is full is disconnected instead of buffering without limit.
+     *
+     * @param item Shared with other recipients, framed for this client when written.
+     */
+    void enqueue(Outbound item) {
+        if (closed) return;
+        if (queuedBytes.addAndGet(item.size()) > maxQueuedBytes) {
+            queuedBytes.addAndGet(-item.size());
+            loop.requestClose(this);
+            return;
+        }
+        out.add(item);
+        if (flushScheduled.compareAndSet(false, true)) loop.scheduleFlush(this);
+    }
+
+    /**
+     * Writes as much queued output as the socket takes. Owner loop only.
+     *
+     * @throws IOException If the write fails.
+     */
+    void flush() throws IOException {
+        flushScheduled.set(false);
+        while (true) {
+            if (current == null || !current.hasRemaining()) {
+                current = nextBuffer();
+                if (current == null) break;
+            }
+
+            channel.write(current);
+            if (current.hasRemaining()) {
+                // Socket buffer full, wait for OP_WRITE
+                if (!writePending) {
+                    writePending = true;
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+        }
+
+        if (writePending) {
+            writePending = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Packs queued items into the write buffer so small lines share a syscall.
+     *
+     * @return The next buffer to write, or null if nothing is queued.
+     */
+    private ByteBuffer nextBuffer() {
+        Outbound item = out.peek();
+        if (item == null) return null;
+
+        byte[] data = item.bytes(binaryOut);
+        if (data.length > writeBuf.capacity()) {
+            // Too big to pack, write the shared array directly
+            take(item);
+            return ByteBuffer.wrap(data);
+        }
+
+        writeBuf.clear();
+        while (data.length <= writeBuf.remaining()) {
+            take(item);
+            writeBuf.put(data);
+            if ((item = out.peek()) == null) break;
+            data = item.bytes(binaryOut);
+        }
+        writeBuf.flip();
+        return writeBuf;
+    }
+
+    private void take(Outbound item) {
+        out.poll();
+        queuedBytes.addAndGet(-item.size());
+        // Items after the hello answer are framed
+        if (item.switchesToBinary) binaryOut = true;
+    }
+}
@@ -0,0 +1,334 @@
+package com.example.encryptedmessenger.relay;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * RelayLoop is one event-loop thread serving a share of the relay's clients.
+ * <p>
+ * It reads and frames lines, answers heartbeats, hands messages to the {@link RoomRegistry}
+ * for fan-out, and writes each client's queued output. Other loops hand it work through
+ * lock-free queues and a selector wake-up.
+ * </p>
+ * <p>
+ * When the message prefix is known it also accepts binary framing offers. Messages then cross
+ * between text and binary clients as {@link Outbound} items that convert at most once.
+ * </p>
+ */
+final class RelayLoop implements RelayClient.LineHandler {
+    private static final long SWEEP_INTERVAL_MS = 5000;
+    private static final byte[] HELLO = Protocol.HELLO.getBytes(StandardCharsets.US_ASCII);
+
+    private final RoomRegistry rooms;
+    private final int maxQueuedBytes;
+    private final int maxLineLength;
+    private final long inactiveTimeoutMs;
+    private final byte[] messagePrefix;
+    private final Selector selector;
+
+    // Work handed over from the acceptor and other loops
+    private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<RelayClient> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<RelayClient> pendingCloses = new ConcurrentLinkedQueue<>();
+
+    // Loop thread only
+    private final Set<RelayClient> clients = new HashSet<>();
+    private long nextSweepAt = 0;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param messagePrefix The clients' message prefix, or null to stay on text framing.
+     */
+    RelayLoop(RoomRegistry rooms, int maxQueuedBytes, int maxLineLength, long inactiveTimeoutMs,
+              byte[] messagePrefix) throws IOException {
+        this.rooms = rooms;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxLineLength = maxLineLength;
+        this.inactiveTimeoutMs = inactiveTimeoutMs;
+        this.messagePrefix = messagePrefix;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop.
+     */
+    void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write a client's queued output.
+     */
+    void scheduleFlush(RelayClient client) {
+        pendingFlushes.add(client);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to drop a client, for example because its write queue is full.
+     */
+    void requestClose(RelayClient client) {
+        pendingCloses.add(client);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long now = now();
+                selector.select(Math.max(1, nextSweepAt - now));
+
+                SocketChannel channel;
+                while ((channel = newChannels.poll()) != null) {
+                    accept(channel);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    RelayClient client = (RelayClient) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) client.read(this, maxLineLength);
+                        if (key.isValid() && key.isWritable()) client.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        close(client);
+                    }
+                }
+
+                // Output queued by this or other loops while handling lines
+                RelayClient client;
+                while ((client = pendingFlushes.poll()) != null) {
+                    if (client.isClosed()) continue;
+                    try {
+                        client.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        close(client);
+                    }
+                }
+
+                while ((client = pendingCloses.poll()) != null) {
+                    close(client);
+                }
+
+                now = now();
+                if (now >= nextSweepAt) {
+                    sweep(now);
+                    nextSweepAt = now + SWEEP_INTERVAL_MS;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Relay loop failed: " + e);
+        } finally {
+            for (RelayClient client : new ArrayList<>(clients)) {
+                close(client);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept(SocketChannel channel) {
+        try {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            RelayClient client = new RelayClient(this, channel, key, maxQueuedBytes);
+            key.attach(client);
+            clients.add(client);
+            rooms.add(client);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void close(RelayClient client) {
+        if (client.isClosed()) return;
+        client.markClosed();
+        clients.remove(client);
+        rooms.remove(client);
+        try {
+            client.getChannel().close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void onLine(RelayClient client, byte[] buf, int off, int len) {
+        // Heartbeat message
+        if (Protocol.startsWith(buf, off, len, Protocol.HEARTBEAT_PREFIX)) {
+            int start = off + Protocol.HEARTBEAT_PREFIX.length;
+            handleHeartbeat(client, new String(buf, start, off + len - start, StandardCharsets.UTF_8));
+            return;
+        }
+
+        // Room closed, "__LEAVE__<token>"
+        if (Protocol.startsWith(buf, off, len, Protocol.LEAVE_PREFIX)) {
+            int start = off + Protocol.LEAVE_PREFIX.length;
+            leaveRoom(client, new String(buf, start, off + len - start, StandardCharsets.US_ASCII));
+            return;
+        }
+
+        // Message for one room, "__ROOM__<token>:<message>"
+        if (Protocol.startsWith(buf, off, len, Protocol.ROOM_PREFIX)) {
+            int start = off + Protocol.ROOM_PREFIX.length;
+            int sep = Protocol.indexOf(buf, start, off + len, (byte) ':');
+            if (sep < 0) return;
+            String token = new String(buf, start, sep - start, StandardCharsets.US_ASCII);
+            recordActivity(client, token);
+            rooms.sendToRoom(token, Outbound.textMessage(copyLine(buf, sep + 1, off + len), messagePrefix));
+            return;
+        }
+
+        // Binary framing offer, only accepted if text clients can be sent the converted messages
+        if (Protocol.startsWith(buf, off, len, HELLO)) {
+            if (messagePrefix != null && len == HELLO.length) client.answerHello();
+            return;
+        }
+
+        // Untagged message from an old client, forward to all clients
+        rooms.broadcast(Outbound.textMessage(copyLine(buf, off, off + len), messagePrefix));
+    }
+
+    @Override
+    public void onFrame(RelayClient client, int type, byte[] buf, int off, int len) {
+        switch (type) {
+            case Protocol.TYPE_ROOM_MESSAGE:
+                if (len <= Protocol.TOKEN_SIZE) return;
+                String token = Protocol.hex(buf, off, Protocol.TOKEN_SIZE);
+                recordActivity(client, token);
+                byte[] payload = Arrays.copyOfRange(buf, off + Protocol.TOKEN_SIZE, off + len);
+                rooms.sendToRoom(token, Outbound.payload(payload, messagePrefix));
+                break;
+            case Protocol.TYPE_MESSAGE:
+                rooms.broadcast(Outbound.payload(Arrays.copyOfRange(buf, off, off + len), messagePrefix));
+                break;
+            case Protocol.TYPE_CONTROL:
+                if (len > 0) onLine(client, buf, off, len);
+                break;
+            default:
+                // Unknown frame types are skipped
+                break;
+        }
+    }
+
+    /**
+     * Copies a line and appends its newline. The copy is shared by every recipient.
+     */
+    private static byte[] copyLine(byte[] buf, int from, int to) {
+        byte[] line = Arrays.copyOfRange(buf, from, to + 1);
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    /**
+     * Counts a room message as a heartbeat from its sender, so clients that are sending messages
+     * can skip their heartbeats.
+     */
+    private void recordActivity(RelayClient client, String token) {
+        Map<String, Long> tokens = client.getTokenTimes();
+        if (!tokens.containsKey(token)) return;
+        long now = now();
+        tokens.put(token, now);
+        client.setLastHeartbeatAt(now);
+    }
+
+    /**
+     * Records a heartbeat, like server.py.
+     * <br>
+     * Clients send "__HEARTBEAT__token" per open room. Older ones send JSON with the token, or with
+     * the room name and password. Counts are pushed by the {@link RoomRegistry} when they change.
+     */
+    private void handleHeartbeat(RelayClient client, String body) {
+        long now = now();
+        client.setLastHeartbeatAt(now);
+
+        if (!body.startsWith("{")) {
+            // Clients that send the compact heartbeat read tagged room messages
+            client.setTagged(true);
+            joinRoom(client, body, now);
+            return;
+        }
+
+        String token = Protocol.jsonString(body, "token");
+        if (token != null) {
+            if (Protocol.jsonTrue(body, "leave")) {
+                leaveRoom(client, token);
+            } else {
+                joinRoom(client, token, now);
+            }
+            return;
+        }
+
+        String room = Protocol.jsonString(body, "room");
+        String password = Protocol.jsonString(body, "password");
+        if (room != null && password != null) rooms.joinLegacy(room + "\0" + password, client);
+    }
+
+    private void joinRoom(RelayClient client, String token, long now) {
+        if (token.isEmpty()) return;
+        client.getTokenTimes().put(token, now);
+        rooms.join(token, client);
+    }
+
+    private void leaveRoom(RelayClient client, String token) {
+        client.getTokenTimes().remove(token);
+        rooms.leave(token, client);
+    }
+
+    /**
+     * Drops rooms a client stopped sending heartbeats or messages for, and clients that went silent.
+     */
+    private void sweep(long now) {
+        List<RelayClient> inactive = new ArrayList<>();
+        for (RelayClient client : clients) {
+            Iterator<Map.Entry<String, Long>> it = client.getTokenTimes().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (now - entry.getValue() > inactiveTimeoutMs) {
+                    it.remove();
+                    rooms.leave(entry.getKey(), client);
+                }
+            }
+
+            // Clients that never sent a heartbeat are kept, as with server.py
+            long last = client.getLastHeartbeatAt();
+            if (last != 0 && now - last > inactiveTimeoutMs) inactive.add(client);
+        }
+        for (RelayClient client : inactive) {
+            close(client);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.encryptedmessenger.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * RelayServer is a Java NIO replacement for server.py that speaks the same line protocol.
+ * <p>
+ * 1. One acceptor thread hands new connections to a fixed set of {@link RelayLoop} event loops.
+ * <br>
+ * 2. Each loop frames received bytes into lines and handles heartbeats, room-tagged messages
+ * and untagged messages from older clients.
+ * <br>
+ * 3. Room membership lives in a shared {@link RoomRegistry}, so a message is only copied into
+ * the write queues of the clients in its room.
+ * <br>
+ * 4. Every client has a bounded write queue. A client that stops reading is disconnected
+ * rather than letting its backlog grow without limit.
+ * <br>
+ * 5. Given the clients' message prefix, it accepts binary framing from clients that offer it
+ * and converts messages between text and binary clients.
+ * </p>
+ * <p>
+ * Run with {@code ./gradlew :relay:run --args="--port 23194"}.
+ * </p>
+ */
+public final class RelayServer {
+    public static final int DEFAULT_PORT = 23194;
+
+    private final InetSocketAddress address;
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final RelayLoop[] loops;
+
+    // Settings, only changed before start
+    private int maxQueuedBytes = 1024 * 1024;
+    private int maxLineLength = 1024 * 1024;
+    private long inactiveTimeoutMs = 15_000;
+    private String messagePrefix;
+
+    private ServerSocketChannel server;
+    private Thread acceptor;
+    private volatile boolean running = false;
+    private int nextLoop = 0;
+
+    /**
+     * @param address Address to listen on, port 0 picks a free port.
+     * @param loopCount Number of event-loop threads.
+     */
+    public RelayServer(InetSocketAddress address, int loopCount) {
+        this.address = address;
+        this.loops = new RelayLoop[Math.max(1, loopCount)];
+    }
+
+    public void setMaxQueuedBytes(int maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    public void setInactiveTimeoutMs(long inactiveTimeoutMs) {
+        this.inactiveTimeoutMs = inactiveTimeoutMs;
+    }
+
+    /**
+     * Sets the clients' MESSAGE_PREFIX. Binary framing is only offered back when it is set,
+     * since text clients need the prefix on messages that arrived as frames.
+     */
+    public void setMessagePrefix(String messagePrefix) {
+        this.messagePrefix = messagePrefix;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Returns the port actually bound, useful when started on port 0.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Binds the listening socket and starts the acceptor and event-loop threads.
+     *
+     * @throws IOException If the socket cannot be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+
+        byte[] prefix = messagePrefix == null || messagePrefix.isEmpty() ? null
+                : messagePrefix.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new RelayLoop(rooms, maxQueuedBytes, maxLineLength, inactiveTimeoutMs, prefix);
+            loops[i].start("relay-loop-" + i);
+        }
+
+        running = true;
+        acceptor = new Thread(this::acceptLoop, "relay-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Closes the listening socket and every client connection.
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignored) {}
+        for (RelayLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                // Spread connections over the loops
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) System.out.println("Accept failed: " + e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = "0.0.0.0";
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String messagePrefix = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[i + 1];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--message-prefix":
+                    messagePrefix = args[i + 1];
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    break;
+            }
+        }
+
+        RelayServer relay = new RelayServer(new InetSocketAddress(host, port), threads);
+        relay.setMessagePrefix(messagePrefix);
+        relay.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(relay::stop));
+        System.out.println("Relay listening on " + host + ":" + relay.getPort() + " with " + threads + " loops");
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.encryptedmessenger.relay;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * RoomRegistry tracks which clients are in which room, shared by every event loop.
+ * <p>
+ * Rooms are keyed by the opaque routing token clients send in their heartbeat.
+ * Clients that never send a token are "legacy" clients and receive every message, as with server.py.
+ * Clients that send the compact heartbeat get their rooms' messages with the room tag kept.
+ * </p>
+ * <p>
+ * Counts are the size of a room's member set, so they never scan all clients. A room's count is
+ * pushed to its members only when someone joins or leaves, never in reply to a plain heartbeat.
+ * The push is queued while the room's entry is locked, so members get a room's counts in order.
+ * </p>
+ */
+public final class RoomRegistry {
+
+    // Every connected client
+    private final Set<RelayClient> clients = ConcurrentHashMap.newKeySet();
+
+    // Clients that have not joined a room by token
+    private final Set<RelayClient> legacy = ConcurrentHashMap.newKeySet();
+
+    // Room token -> members
+    private final Map<String, Set<RelayClient>> rooms = new ConcurrentHashMap<>();
+
+    // Legacy "room\0password" -> members, only used for their user count
+    private final Map<String, Set<RelayClient>> legacyRooms = new ConcurrentHashMap<>();
+
+    void add(RelayClient client) {
+        clients.add(client);
+        legacy.add(client);
+    }
+
+    /**
+     * Removes a closed client from every room.
+     */
+    void remove(RelayClient client) {
+        clients.remove(client);
+        legacy.remove(client);
+        for (String token : client.getTokens()) {
+            leave(token, client);
+        }
+        if (client.getLegacyRoom() != null) removeMember(legacyRooms, client.getLegacyRoom(), client, Protocol.COUNT_PREFIX);
+    }
+
+    /**
+     * Adds a client to a room, pushing the new count to the room if it was not already in it.
+     */
+    void join(String token, RelayClient client) {
+        legacy.remove(client);
+        addMember(rooms, token, client, countPrefix(token));
+    }
+
+    /**
+     * Removes a client from a room, pushing the new count to the members left.
+     */
+    void leave(String token, RelayClient client) {
+        removeMember(rooms, token, client, countPrefix(token));
+    }
+
+    /**
+     * Records the room of a client that still sends the room name and password.
+     * <br>
+     * Old clients get the untagged count of the legacy clients in their room.
+     */
+    void joinLegacy(String roomKey, RelayClient client) {
+        String previous = client.getLegacyRoom();
+        if (roomKey.equals(previous)) return;
+        if (previous != null) removeMember(legacyRooms, previous, client, Protocol.COUNT_PREFIX);
+        client.setLegacyRoom(roomKey);
+        addMember(legacyRooms, roomKey, client, Protocol.COUNT_PREFIX);
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public int getMemberCount(String token) {
+        Set<RelayClient> members = rooms.get(token);
+        return members == null ? 0 : members.size();
+    }
+
+    /**
+     * Queues a message for everyone in a room, plus legacy clients that cannot say which room they are in.
+     * <br>
+     * Members that read tagged messages get it with the room tag kept, so they can tell which room
+     * it is for without decrypting it.
+     *
+     * @param token The room token.
+     * @param message The message without its tag, shared by every recipient.
+     */
+    void sendToRoom(String token, Outbound message) {
+        Set<RelayClient> members = rooms.get(token);
+        if (members != null) {
+            Outbound tagged = message.tagged(token);
+            for (RelayClient client : members) {
+                client.enqueue(client.isTagged() ? tagged : message);
+            }
+        }
+        for (RelayClient client : legacy) {
+            client.enqueue(message);
+        }
+    }
+
+    /**
+     * Queues an untagged message for every client.
+     */
+    void broadcast(Outbound message) {
+        for (RelayClient client : clients) {
+            client.enqueue(message);
+        }
+    }
+
+    private static String countPrefix(String token) {
+        return Protocol.COUNT_PREFIX + token + ":";
+    }
+
+    private static void addMember(Map<String, Set<RelayClient>> map, String key, RelayClient client,
+                                  String countPrefix) {
+        map.compute(key, (k, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            if (members.add(client)) pushCount(members, countPrefix);
+            return members;
+        });
+    }
+
+    private static void removeMember(Map<String, Set<RelayClient>> map, String key, RelayClient client,
+                                     String countPrefix) {
+        map.computeIfPresent(key, (k, members) -> {
+            if (members.remove(client)) pushCount(members, countPrefix);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Queues the room's count for each member. Called with the room's entry locked.
+     */
+    private static void pushCount(Set<RelayClient> members, String countPrefix) {
+        if (members.isEmpty()) return;
+        Outbound count = Outbound.control(countPrefix + members.size());
+        for (RelayClient member : members) {
+            member.enqueue(count);
+        }
+    }
+}
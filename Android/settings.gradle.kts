@@ -21,3 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "EncryptedMessenger"
 include(":app")
+include(":relay")
+include(":benchmark")
@@ -1,9 +1,10 @@
+import os
 import socket
 import threading
 import time
 
 from Config.config_reader import config_parser
-from encryption_utils import derive_room_key, encrypt, decrypt
+from encryption_utils import derive_room_key, derive_room_token, encrypt, decrypt, encode_payload, decode_payload
 
 
 # Load configuration values from client_config.ini
@@ -12,6 +13,77 @@ SERVER_PORT = config_parser("./Config/client_config.ini", "DEFAULT", "PORT")
 MESSAGE_PREFIX = config_parser("./Config/client_config.ini", "DEFAULT", "MESSAGE_PREFIX").encode("utf-8")
 SYSTEM_TAG = config_parser("./Config/client_config.ini", "DEFAULT", "SYSTEM_TAG")
 
+# Protocol lines shared with the server and the Android client
+HEARTBEAT_PREFIX = b"__HEARTBEAT__"
+LEAVE_PREFIX = b"__LEAVE__"
+ROOM_PREFIX = b"__ROOM__"
+
+# Seconds between heartbeats, skipped while messages are being sent. Below the server's 15 s timeout
+HEARTBEAT_INTERVAL = 5
+
+# Optional trace header inside the plaintext, shared with the Android client:
+# MARK + "1;" + sender + ";" + seq + ";" + sent_at_ms + MARK + body
+ENVELOPE_MARK = "\x1e"
+ENVELOPE_VERSION = "1"
+try:
+    MESSAGE_ENVELOPE = config_parser("./Config/client_config.ini", "DEFAULT", "MESSAGE_ENVELOPE").lower() == "true"
+except KeyError:
+    MESSAGE_ENVELOPE = False
+
+# Compress plaintexts of at least COMPRESSION_MIN_BYTES before encrypting, compressed ones are always read
+try:
+    COMPRESSION = config_parser("./Config/client_config.ini", "DEFAULT", "COMPRESSION").lower() == "true"
+except KeyError:
+    COMPRESSION = False
+try:
+    COMPRESSION_MIN_BYTES = int(config_parser("./Config/client_config.ini", "DEFAULT", "COMPRESSION_MIN_BYTES"))
+except (KeyError, ValueError):
+    COMPRESSION_MIN_BYTES = 24
+
+
+def wrap_envelope(sender: str, seq: int, body: str) -> str:
+    """
+    Add a trace header with the sender, sequence number and current time to a plaintext.
+
+    Args:
+        sender (str): Identifies the sending session.
+        seq (int): Increases by one with each traced message from the sender.
+        body (str): The untraced plaintext.
+
+    Returns:
+        str: The traced plaintext.
+    """
+    return f"{ENVELOPE_MARK}{ENVELOPE_VERSION};{sender};{seq};{int(time.time() * 1000)}{ENVELOPE_MARK}{body}"
+
+
+def parse_envelope(text: str):
+    """
+    Split a decrypted plaintext into its trace header and body.
+    Legacy plaintext and malformed headers are returned whole, headers of unknown versions are stripped.
+
+    Args:
+        text (str): The decrypted plaintext.
+
+    Returns:
+        tuple: (sender, seq, sent_at_ms, body), the first three None if the message was not traced.
+    """
+    if not text.startswith(ENVELOPE_MARK):
+        return None, None, None, text
+    end = text.find(ENVELOPE_MARK, 1)
+    if end < 0:
+        return None, None, None, text
+    body = text[end + 1:]
+    fields = text[1:end].split(";")
+    if fields[0] != ENVELOPE_VERSION:
+        return None, None, None, body
+    try:
+        sender, seq, sent_at = fields[1:]
+        if not sender:
+            raise ValueError("empty sender")
+        return sender, int(seq), int(sent_at), body
+    except ValueError:
+        return None, None, None, text
+
 
 class Client:
     """
@@ -24,10 +96,14 @@ class Client:
         status_callback (callable): Function to call when connection status changes.
         socket (socket.socket): Active socket connection.
         key (bytes): Encryption key derived from room + passphrase.
+        token (bytes): Routing token derived from the key, tags the room's messages.
         name (str): Name of the client/user.
         room (str): Chat room identifier.
         passphrase (str): Passphrase for deriving encryption key.
         buffer (bytearray): Buffer for incoming data before processing.
+        dropped_foreign (int): Messages tagged for another room, dropped without decrypting.
+        dropped_rejected (int): Messages no key could decrypt.
+        latencies_ms (dict): One-way latencies of traced messages, by sender, the newest 100 each.
         _stop_reconnect (bool): Flag to stop reconnection attempts.
     """
     def __init__(self, server_ip: str, server_port: int, message_callback, status_callback=None):
@@ -36,29 +112,66 @@ class Client:
         self.server_port = server_port
         self.socket = None
         self.key = None
+        self.token = None
         self.name = None
         self.room = None
         self.passphrase = None
         self.buffer = bytearray()
+        self.dropped_foreign = 0
+        self.dropped_rejected = 0
+        self.latencies_ms = {}
+        self._sender_id = os.urandom(8).hex()
+        self._next_seq = 0
         self.message_callback = message_callback
         self.status_callback = status_callback
         self._stop_reconnect = False
         self._first_connection = True
         self._first_connection_leave = True
+        self._send_lock = threading.Lock()
+        self._last_sent = 0.0
+        self._heartbeat_started = False
 
     def send_line(self, prefix: bytes, payload_b64: bytes):
         """
-        Send a line of data to the server.
+        Send a message line to the server, tagged with the room token.
 
         Args:
             prefix (bytes): Message prefix.
             payload_b64 (bytes): Payload base64 encoded bytes.
         """
         try:
-            self.socket.sendall(prefix + payload_b64 + b"\n")
+            self._send_raw(ROOM_PREFIX + self.token + b":" + prefix + payload_b64 + b"\n")
         except Exception:
             self.message_callback("[!] Failed to send message")
 
+    def _send_raw(self, data: bytes):
+        """
+        Write one or more complete lines, never interleaved with another thread's lines.
+
+        Args:
+            data (bytes): The lines, including their newlines.
+        """
+        with self._send_lock:
+            self.socket.sendall(data)
+            self._last_sent = time.monotonic()
+
+    def _heartbeat_loop(self):
+        """
+        Send the room's heartbeat whenever nothing has been sent for a heartbeat interval.
+        A tagged message counts as a heartbeat on the server.
+        """
+        while not self._stop_reconnect:
+            wait = self._last_sent + HEARTBEAT_INTERVAL - time.monotonic()
+            if wait > 0:
+                time.sleep(wait)
+                continue
+            try:
+                self._send_raw(HEARTBEAT_PREFIX + self.token + b"\n")
+            except Exception:
+                # Reconnect loop handles the broken socket, try again next interval
+                time.sleep(HEARTBEAT_INTERVAL)
+        self._heartbeat_started = False
+
     def receiver(self):
         """
         Continuously receive and process messages from the server.
@@ -79,6 +192,14 @@ class Client:
                     line = bytes(self.buffer[:idx])
                     del self.buffer[:idx + 1]
 
+                    # Messages tagged for another room are dropped on the tag alone
+                    if line.startswith(ROOM_PREFIX):
+                        token, sep, rest = line[len(ROOM_PREFIX):].partition(b":")
+                        if not sep or token != self.token:
+                            self.dropped_foreign += 1
+                            continue
+                        line = rest
+
                     # Only process messages with the correct prefix
                     if line.startswith(MESSAGE_PREFIX):
                         payload_b64 = line[len(MESSAGE_PREFIX):]
@@ -86,7 +207,12 @@ class Client:
                             continue
                         try:
                             # Attempt to decrypt and decode message
-                            plaintext = decrypt(self.key, payload_b64).decode("utf-8", errors="replace")
+                            plaintext = decode_payload(decrypt(self.key, payload_b64)).decode("utf-8", errors="replace")
+                            sender, _, sent_at, plaintext = parse_envelope(plaintext)
+                            if sender is not None:
+                                samples = self.latencies_ms.setdefault(sender, [])
+                                samples.append(int(time.time() * 1000) - sent_at)
+                                del samples[:-100]
 
                             # if plaintext.startswith(SYSTEM_TAG):
                             #     system_message = plaintext.strip()
@@ -95,7 +221,7 @@ class Client:
                             self.message_callback(plaintext.strip())
                         except Exception:
                             # Ignore decryption failures
-                            pass
+                            self.dropped_rejected += 1
             except Exception:
                 if self.status_callback:
                     self.status_callback("reconnecting")
@@ -115,6 +241,7 @@ class Client:
         self.room = room
         self.passphrase = passphrase
         self.key = derive_room_key(room, passphrase)
+        self.token = derive_room_token(self.key).encode("ascii")
         self._stop_reconnect = False
         self._start_reconnect_loop()
 
@@ -130,6 +257,12 @@ class Client:
                     self.socket.connect((self.server_ip, self.server_port))
                     # Start the receiver thread once connected
                     threading.Thread(target=self.receiver, daemon=True).start()
+
+                    # Join the room straight away, then keep it alive
+                    self._send_raw(HEARTBEAT_PREFIX + self.token + b"\n")
+                    if not self._heartbeat_started:
+                        self._heartbeat_started = True
+                        threading.Thread(target=self._heartbeat_loop, daemon=True).start()
                     if self.status_callback:
                         self.status_callback("connected")
 
@@ -154,9 +287,11 @@ class Client:
         Args:
             message (str): Message to send.
         """
-        plaintext = f"{self.name}: {message}".encode("utf-8")
-        b64_payload = encrypt(self.key, plaintext)
-        self.send_line(MESSAGE_PREFIX, b64_payload)
+        plaintext = f"{self.name}: {message}"
+        if MESSAGE_ENVELOPE:
+            plaintext = wrap_envelope(self._sender_id, self._next_seq, plaintext)
+            self._next_seq += 1
+        self.send_line(MESSAGE_PREFIX, self._encrypt(plaintext.encode("utf-8")))
 
     def send_system_message(self, content: str):
         """
@@ -165,8 +300,21 @@ class Client:
             content (str): Content to send.
         """
         plaintext = f"{SYSTEM_TAG}{content}".encode("utf-8")
-        b64_payload = encrypt(self.key, plaintext)
-        self.send_line(MESSAGE_PREFIX, b64_payload)
+        self.send_line(MESSAGE_PREFIX, self._encrypt(plaintext))
+
+    def _encrypt(self, plaintext: bytes) -> bytes:
+        """
+        Compress a plaintext if enabled, then encrypt it.
+
+        Args:
+            plaintext (bytes): The UTF-8 plaintext.
+
+        Returns:
+            bytes: Base64-encoded payload.
+        """
+        if COMPRESSION:
+            plaintext = encode_payload(plaintext, COMPRESSION_MIN_BYTES)
+        return encrypt(self.key, plaintext)
 
     def disconnect(self):
         """Disconnect from the server and stop reconnection attempts."""
@@ -174,6 +322,7 @@ class Client:
         try:
             if self._first_connection_leave:
                 self.send_system_message(f"{self.name} has left the chat room")
+                self._send_raw(LEAVE_PREFIX + self.token + b"\n")
                 time.sleep(0.1)
         except Exception:
             pass
@@ -1,6 +1,8 @@
 import os
 import base64
 import hashlib
+import hmac
+import zlib
 from cryptography.hazmat.primitives.kdf.scrypt import Scrypt
 from cryptography.hazmat.primitives.ciphers.aead import ChaCha20Poly1305
 
@@ -8,6 +10,24 @@ from Config.config_reader import config_parser
 
 ADDITIONAL_AUTHENTICATED_DATA = config_parser("./Config/client_config.ini", "DEFAULT", "ADDITIONAL_AUTHENTICATED_DATA").encode("utf-8")
 
+# Compressed plaintext: zero byte, method byte, data. Matches the Android client's PayloadCodec
+PAYLOAD_MARKER = 0
+METHOD_STORED = 0
+METHOD_DEFLATE = 1
+MAX_DECODED_SIZE = 1024 * 1024
+
+# Preset Deflate dictionary, part of the wire format, must match PayloadCodec.DICTIONARY byte for byte
+DICTIONARY = (
+    "https://www. .com http:// because about would could should really think going"
+    " there their they're what when where which with have this that from just"
+    " know like okay yeah sure thanks thank you please sorry message room chat"
+    " tomorrow today tonight later morning see you soon I'm I'll don't can't"
+    " it's that's what's lol haha ok yes no the and for are but not you all"
+    " has left the chat room"
+    " has entered the chat room"
+    ": "
+).encode("utf-8")
+
 
 def derive_room_key(room: str, passkey: str) -> bytes:
     """
@@ -32,6 +52,20 @@ def derive_room_key(room: str, passkey: str) -> bytes:
     return kdf.derive(passkey.encode("utf-8"))
 
 
+def derive_room_token(key: bytes) -> str:
+    """
+    Get the routing token that identifies a room to the server without revealing the room or key.
+    Matches the Android client's EncryptionHelper.deriveRoomToken.
+
+    Args:
+        key (bytes): The 32-byte room key.
+
+    Returns:
+        str: The first 16 bytes of HMAC-SHA256(key, "room-token") as lowercase hex.
+    """
+    return hmac.new(key, b"room-token", hashlib.sha256).digest()[:16].hex()
+
+
 def encrypt(key: bytes, plaintext: bytes) -> bytes:
     """
     Encrypt a message using ChaCha20-Poly1305 AEAD.
@@ -58,6 +92,61 @@ def encrypt(key: bytes, plaintext: bytes) -> bytes:
     return base64.b64encode(nonce + ct)
 
 
+def encode_payload(plaintext: bytes, min_bytes: int) -> bytes:
+    """
+    Compress a plaintext before encryption if it is long enough and gets smaller.
+
+    Args:
+        plaintext (bytes): The UTF-8 plaintext.
+        min_bytes (int): Plaintexts shorter than this are never compressed.
+
+    Returns:
+        bytes: The compressed plaintext with its header, or the plaintext as it is.
+    """
+    if len(plaintext) >= min_bytes and len(plaintext) > 2:
+        deflater = zlib.compressobj(6, zlib.DEFLATED, -15, zdict=DICTIONARY)
+        data = deflater.compress(plaintext) + deflater.flush()
+        if len(data) + 2 <= len(plaintext):
+            return bytes([PAYLOAD_MARKER, METHOD_DEFLATE]) + data
+
+    # Keep a leading zero byte from being read as the marker
+    if plaintext[:1] == bytes([PAYLOAD_MARKER]):
+        return bytes([PAYLOAD_MARKER, METHOD_STORED]) + plaintext
+    return plaintext
+
+
+def decode_payload(plaintext: bytes) -> bytes:
+    """
+    Restore a decrypted plaintext that was compressed, plain ones are returned as they are.
+
+    Args:
+        plaintext (bytes): The decrypted plaintext.
+
+    Returns:
+        bytes: The original UTF-8 plaintext.
+
+    Raises:
+        ValueError: If the method is unknown or the data is corrupt or expands too far.
+    """
+    if plaintext[:1] != bytes([PAYLOAD_MARKER]):
+        return plaintext
+    if len(plaintext) < 2:
+        raise ValueError("encoded payload too short")
+    if plaintext[1] == METHOD_STORED:
+        return plaintext[2:]
+    if plaintext[1] != METHOD_DEFLATE:
+        raise ValueError(f"unknown payload method {plaintext[1]}")
+
+    try:
+        inflater = zlib.decompressobj(-15, zdict=DICTIONARY)
+        data = inflater.decompress(plaintext[2:], MAX_DECODED_SIZE)
+    except zlib.error as e:
+        raise ValueError("corrupt payload") from e
+    if inflater.unconsumed_tail or not inflater.eof:
+        raise ValueError("payload truncated or expands too far")
+    return data
+
+
 def decrypt(key: bytes, payload_b64: bytes) -> bytes:
     """
     Decrypt a message using ChaCha20-Poly1305 AEAD.
@@ -11,10 +11,198 @@ SERVER_PORT = 23194
 # Global list of connected clients (sockets)
 clients = []
 
-# Maps sockets
+# Maps sockets to the room tokens they have joined: {"tokens": {token: last_seen}, "legacy": (room, password), "last_seen": time, "tagged": bool}
 client_info = {}
 
+# Room token -> set of sockets in that room, messages tagged with a token only go to its group
+groups = {}
+
+# Clients that never sent a room token get every message, as before
+legacy_clients = set()
+
+# (room, password) -> set of old clients that sent it, only used for their user count
+legacy_groups = {}
+
+# Guards clients, client_info, groups, legacy_clients and legacy_groups
+state_lock = threading.Lock()
+
+# Serialises count pushes, so the last count a client gets is the current one.
+# Re-entrant because a failed send removes the client, which pushes again
+count_lock = threading.RLock()
+
 HEARTBEAT_PREFIX = b"__HEARTBEAT__"
+LEAVE_PREFIX = b"__LEAVE__"
+ROOM_PREFIX = b"__ROOM__"
+
+# Binary framing offer, not supported here, so the client stays on text lines
+HELLO_PREFIX = b"__HELLO__"
+
+# Seconds without a heartbeat or room message before a room (or a whole client) is dropped
+INACTIVE_TIMEOUT = 15
+
+
+def leave_group(connection, key, table=None):
+    """
+    Remove a connection from a room group. Caller must hold state_lock.
+
+    Args:
+        connection (socket.socket): The client's socket connection.
+        key: The room token, or the (room, password) key of a legacy group.
+        table (dict): The groups to remove it from, the token groups by default.
+
+    Returns:
+        bool: True if the connection was in the group, so its count changed.
+    """
+    if table is None:
+        table = groups
+    members = table.get(key)
+    if members is None or connection not in members:
+        return False
+    members.discard(connection)
+    if not members:
+        del table[key]
+    return True
+
+
+def push_count(token):
+    """
+    Send a room's user count to everyone in it. Called after its membership changes,
+    without state_lock held.
+
+    Args:
+        token (str): The room token.
+    """
+    with count_lock:
+        with state_lock:
+            members = list(groups.get(token, ()))
+        send_to(members, f"__COUNT__{token}:{len(members)}\n".encode("utf-8"))
+
+
+def push_legacy_count(room_key):
+    """
+    Send an old client's room its untagged user count. Called after its membership changes,
+    without state_lock held.
+
+    Args:
+        room_key (tuple): The (room, password) the old clients sent.
+    """
+    with count_lock:
+        with state_lock:
+            members = list(legacy_groups.get(room_key, ()))
+        send_to(members, f"__COUNT__{len(members)}\n".encode("utf-8"))
+
+
+def join_room(connection, token, tagged=False):
+    """
+    Record a room heartbeat. The room's count is pushed only if the connection just joined.
+
+    Args:
+        connection (socket.socket): The client's socket connection.
+        token (str): The opaque room token, derived from the room key.
+        tagged (bool): True if the client reads room messages with their tag kept.
+    """
+    now = time.time()
+    with state_lock:
+        info = client_info.setdefault(connection, {"tokens": {}, "legacy": None, "last_seen": now, "tagged": False})
+        info["last_seen"] = now
+        info["tagged"] = info["tagged"] or tagged
+        info["tokens"][token] = now
+        legacy_clients.discard(connection)
+        members = groups.setdefault(token, set())
+        joined = connection not in members
+        members.add(connection)
+
+    if joined:
+        push_count(token)
+
+
+def leave_room(connection, token):
+    """
+    Remove a room from a connection when the client closes it.
+
+    Args:
+        connection (socket.socket): The client's socket connection.
+        token (str): The room token.
+    """
+    with state_lock:
+        info = client_info.get(connection)
+        if info:
+            info["tokens"].pop(token, None)
+        left = leave_group(connection, token)
+
+    if left:
+        push_count(token)
+
+
+def join_legacy_room(connection, room_key):
+    """
+    Record a heartbeat from an old client that sends the room name and password.
+
+    Args:
+        connection (socket.socket): The client's socket connection.
+        room_key (tuple): The (room, password) it sent.
+    """
+    now = time.time()
+    with state_lock:
+        info = client_info.setdefault(connection, {"tokens": {}, "legacy": None, "last_seen": now, "tagged": False})
+        info["last_seen"] = now
+        previous = info["legacy"]
+        if previous == room_key:
+            return
+        if previous is not None:
+            leave_group(connection, previous, legacy_groups)
+        info["legacy"] = room_key
+        legacy_groups.setdefault(room_key, set()).add(connection)
+
+    if previous is not None:
+        push_legacy_count(previous)
+    push_legacy_count(room_key)
+
+
+def handle_heartbeat(connection, body):
+    """
+    Handle a heartbeat line.
+
+    Clients send "__HEARTBEAT__<token>" once per open room, where the token is an opaque value
+    derived from the room key, and "__LEAVE__<token>" when they close one. These clients get room
+    messages with the "__ROOM__<token>:" tag kept, so they can drop other rooms' messages without
+    decrypting them. Older clients send JSON instead, with the token (and "leave": true to leave)
+    or with the room name and password, and get messages untagged.
+
+    Args:
+        connection (socket.socket): The client's socket connection.
+        body (bytes): The line after the heartbeat prefix.
+    """
+    if not body.startswith(b"{"):
+        join_room(connection, body.decode("ascii"), tagged=True)
+        return
+
+    payload = json.loads(body.decode())
+    token = payload.get("token")
+    if token:
+        if payload.get("leave"):
+            leave_room(connection, token)
+        else:
+            join_room(connection, token)
+    else:
+        join_legacy_room(connection, (payload.get("room"), payload.get("password")))
+
+
+def record_activity(connection, token):
+    """
+    Count a room message as a heartbeat from its sender, so clients that are sending messages
+    can skip their heartbeats.
+
+    Args:
+        connection (socket.socket): The client's socket connection.
+        token (str): The room token the message was tagged with.
+    """
+    now = time.time()
+    with state_lock:
+        info = client_info.get(connection)
+        if info and token in info["tokens"]:
+            info["tokens"][token] = now
+            info["last_seen"] = now
 
 
 def handle_client(connection, address):
@@ -26,76 +214,166 @@ def handle_client(connection, address):
         address (tuple): The (IP, port) tuple of the client.
     """
     print("Client {} connected".format(address))
+    buffer = b""
     while True:
         try:
             # Receive data from client
-            data = connection.recv(1024)
+            data = connection.recv(4096)
             # Empty data means the client disconnected
             if not data:
                 break
 
-            # Heartbeat message
-            if data.startswith(HEARTBEAT_PREFIX):
-                try:
-                    payload = json.loads(data[len(HEARTBEAT_PREFIX):].decode())
-                    room = payload.get("room")
-                    password = payload.get("password")
-                    client_info[connection] = {"room": room, "password": password, "last_seen": time.time()}
-
-                    # Count how many clients share same room+password
-                    count = sum(
-                        1 for info in client_info.values()
-                        if info["room"] == room and info["password"] == password
-                    )
-
-                    # Send back the count
-                    connection.send(f"__COUNT__{count}\n".encode("utf-8"))
-                except Exception as e:
-                    print(e)
-                continue
-
-            # Forward data to all other clients
-            broadcast(data, connection)
+            # Clients may send several lines in one write, handle each complete line
+            buffer += data
+            while b"\n" in buffer:
+                line, buffer = buffer.split(b"\n", 1)
+                line = line.rstrip(b"\r")
+                if not line:
+                    continue
+
+                # Heartbeat message
+                if line.startswith(HEARTBEAT_PREFIX):
+                    try:
+                        handle_heartbeat(connection, line[len(HEARTBEAT_PREFIX):])
+                    except Exception as e:
+                        print(e)
+                    continue
+
+                # Room closed, "__LEAVE__<token>"
+                if line.startswith(LEAVE_PREFIX):
+                    leave_room(connection, line[len(LEAVE_PREFIX):].decode("ascii", errors="replace"))
+                    continue
+
+                # Message for one room, "__ROOM__<token>:<message>"
+                if line.startswith(ROOM_PREFIX):
+                    token, sep, message = line[len(ROOM_PREFIX):].partition(b":")
+                    if sep:
+                        token = token.decode("utf-8", errors="replace")
+                        record_activity(connection, token)
+                        send_to_room(token, message + b"\n")
+                    continue
+
+                # Binary framing offer, left unanswered
+                if line.startswith(HELLO_PREFIX):
+                    continue
+
+                # Untagged message from an old client, forward to all clients
+                broadcast(line + b"\n", connection)
         except Exception as e:
             # Connection error or abrupt disconnect
             print(e)
             break
 
     print(f"Client {address} disconnected")
-    clients.remove(connection)
-    client_info.pop(connection, None)
-    connection.close()
+    remove_client(connection)
 
 
-def broadcast(data, connection):
+def remove_client(client):
     """
-    Send data to all connected clients except the sender.
+    Close a client and remove it from every room.
 
     Args:
-        data (bytes): The data/message to broadcast.
-        connection (socket.socket): The socket of the sender (excluded).
+        client (socket.socket): The client's socket connection.
     """
-    # Copy list to avoid modification issues
-    for client in clients.copy():
+    left = []
+    legacy_room = None
+    with state_lock:
+        if client in clients:
+            clients.remove(client)
+        legacy_clients.discard(client)
+        info = client_info.pop(client, None)
+        if info:
+            left = [token for token in info["tokens"] if leave_group(client, token)]
+            if info["legacy"] is not None and leave_group(client, info["legacy"], legacy_groups):
+                legacy_room = info["legacy"]
+    try:
+        client.close()
+    except Exception:
+        pass
+
+    # Tell the rooms it was in
+    for token in left:
+        push_count(token)
+    if legacy_room is not None:
+        push_legacy_count(legacy_room)
+
+
+def send_to(targets, data):
+    """
+    Send data to each target, removing any client that fails.
+
+    Args:
+        targets (iterable): The sockets to send to.
+        data (bytes): The line to send, including the newline.
+    """
+    for client in targets:
         try:
             client.send(data)
         except:
             # If sending fails, close and remove client
-            client.close()
-            clients.remove(client)
-            client_info.pop(client, None)
+            remove_client(client)
+
+
+def send_to_room(token, data):
+    """
+    Send a message to the clients in one room, plus old clients that cannot say which rooms they are in.
+    Clients that read tagged messages get it with its room tag.
+
+    Args:
+        token (str): The room token.
+        data (bytes): The message line, with the room tag already removed.
+    """
+    with state_lock:
+        tagged = []
+        untagged = list(legacy_clients)
+        for c in groups.get(token, ()):
+            if client_info.get(c, {}).get("tagged"):
+                tagged.append(c)
+            else:
+                untagged.append(c)
+    send_to(tagged, ROOM_PREFIX + token.encode("utf-8") + b":" + data)
+    send_to(untagged, data)
+
+
+def broadcast(data, connection):
+    """
+    Send data to all connected clients.
+
+    Args:
+        data (bytes): The data/message to broadcast.
+        connection (socket.socket): The socket of the sender.
+    """
+    # Copy list to avoid modification issues
+    with state_lock:
+        targets = clients.copy()
+    send_to(targets, data)
 
 
 def cleanup_inactive():
+    """
+    Evict rooms and clients that have stopped sending heartbeats or room messages, and push the
+    new count to the rooms they left. Runs forever on its own thread, checking every 5 seconds.
+    """
     while True:
         now = time.time()
-        inactive = [c for c, info in client_info.items() if now - info["last_seen"] > 15]
+
+        expired = set()
+        with state_lock:
+            # Drop rooms a client has stopped sending heartbeats for
+            for c, info in client_info.items():
+                for token, last_seen in list(info["tokens"].items()):
+                    if now - last_seen > INACTIVE_TIMEOUT:
+                        info["tokens"].pop(token, None)
+                        if leave_group(c, token):
+                            expired.add(token)
+
+            inactive = [c for c, info in client_info.items() if now - info["last_seen"] > INACTIVE_TIMEOUT]
+
+        for token in expired:
+            push_count(token)
         for c in inactive:
             print("Removing inactive client", c)
-            client_info.pop(c, None)
-            if c in clients:
-                clients.remove(c)
-                c.close()
+            remove_client(c)
         time.sleep(5)
 
 
@@ -109,14 +387,21 @@ def main():
     server.listen(2)  # Change the number of unaccepted connections that the system will allow before refusing new connections (https://docs.python.org/3.13/library/socket.html#socket.socket.listen)
     print(f"Server listening on {SERVER_IP}:{SERVER_PORT}")
 
+    # Evict clients and rooms that stopped sending heartbeats
+    reaper = threading.Thread(target=cleanup_inactive, daemon=True)
+    reaper.start()
+
     while True:
         # Wait for client connection
         connection, address = server.accept()
-        clients.append(connection)
+        with state_lock:
+            clients.append(connection)
+            legacy_clients.add(connection)
 
         # Create a new thread for each client
         thread = threading.Thread(target=handle_client, args=(connection, address))
         thread.start()
 
 
-main()
+if __name__ == "__main__":
+    main()